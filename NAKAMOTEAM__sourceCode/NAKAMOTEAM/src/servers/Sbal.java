@@ -1,29 +1,37 @@
 package servers;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.net.ConnectException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import javax.net.ssl.SSLSocket;
+import utility.BallotStore;
+import utility.ElGamalAccumulator;
 import utility.ElGamalCT;
 import utility.ElGamalDec;
 import utility.ElGamalPK;
 import utility.ElGamalSK;
+import utility.OffHeapBallotStore;
 import utility.Schnorr;
-import utility.SchnorrSig;
+import utility.ShardRing;
 import utility.SignedShare;
 import utility.SignedVote;
+import utility.TallyEngine;
 import utility.TLSClientBidi;
-import utility.TLSServerBidi;
-import utility.Utils;
+import utility.TLSContextRegistry;
+import utility.TLSNioServer;
+import utility.VoteBatch;
+import utility.WireInputStream;
+import utility.WireOutputStream;
 
 /**
  *
@@ -31,8 +39,14 @@ import utility.Utils;
  */
 public class Sbal {
 
-    // Di seguito sono riportati i numeri di porta dei server Sbal
-    private static final int[] ports = {50000, 50001, 50002};
+    // Di seguito sono riportati i numeri di porta dei server Sbal (configurati in ShardRing, in ordine crescente)
+    private static final int[] ports = ShardRing.defaults().getPorts();
+
+    // event loop NIO di ciascuno Sbal durante il voto (gli Sbal sono tutti nello stesso processo)
+    private static final int LOOPS = Math.max(2, Runtime.getRuntime().availableProcessors() / ports.length);
+    // dimensione massima di una richiesta in attesa di essere completata (un voto ne occupa poche centinaia di byte,
+    // un gruppo di voti di Splat qualche decina di KB)
+    private static final int MAX_MESSAGE = 1 << 20;
 
     /**
      * @brief Metodo che permette di far eseguire tutto ciò che deve fare uno
@@ -45,19 +59,17 @@ public class Sbal {
     private static void activateSbal(int port) throws IOException, ClassNotFoundException, Exception, ConnectException {
         
         // setting delle proprietà: keystore e truststore
-        System.setProperty("javax.net.ssl.keyStore", ".\\certificates\\keystoreBal.jks");
-        System.setProperty("javax.net.ssl.keyStorePassword", "serbal");
-        System.setProperty("javax.net.ssl.trustStore", ".\\certificates\\truststoreBal.jks");
-        System.setProperty("javax.net.ssl.trustStorePassword", "serbal");
-        TLSServerBidi balFromSomeone = new TLSServerBidi(port); // si noti che Bidi sta per bidirectional
+        TLSContextRegistry.setDefault(".\\certificates\\keystoreBal.jks", "serbal", ".\\certificates\\truststoreBal.jks", "serbal");
+        TLSNioServer balFromSomeone = new TLSNioServer(port, MAX_MESSAGE);
         
         // Sbal funge da server, quindi si pone in attesa di qualcuno ("someone"); quindi non funge da client.
         // I client richiedono le connessioni, i server invece si pongono in attesa di connessioni.
-        // balFromSomeone è un'istanza di TLSServerBidi che verrà usata per fare più connessioni
+        // balFromSomeone è un'istanza di TLSNioServer che verrà usata per fare più connessioni: prima e dopo il voto
+        // si usa come TLSServerBidi (una connessione bloccante alla volta), durante il voto serve molte connessioni insieme
 
         
         
-        // quando ci si deve collegare con qualcuno si possono usare due metodi forniti dalla classe TLSServerBidi:
+        // quando ci si deve collegare con qualcuno si possono usare due metodi forniti dalla classe TLSNioServer:
         // - acceptAndCheck(): accetta la connessione verificando chi si sta connettendo
         // - accept(): accetta la connessione e basta
         // Sbal sa che deve collegarsi proprio con Sgen quindi si deve assicurare che la richiesta di connessione provenga da qualcuno
@@ -69,17 +81,17 @@ public class Sbal {
         SSLSocket socket = balFromSomeone.acceptAndCheckClient("CN=sgen,OU=CEN,L=Campania");
         
         // creazione di out e in per la connessione
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+        WireOutputStream out = new WireOutputStream(socket.getOutputStream());
+        WireInputStream in = new WireInputStream(socket.getInputStream());
         
         // Sbal legge il SignedShare che arriva da Sgen.
-        // Si osservi che quando si richiama una readObject() poi bisogna sempre fare un 
-        // cast al tipo dell'oggetto che si sta leggendo.
-        SignedShare share = (SignedShare) in.readObject();
+        // Si osservi che ogni oggetto viaggia come frame binario tipizzato (si veda WireOutputStream):
+        // readSignedShare() rifiuta qualsiasi frame che non sia una SignedShare ben formata.
+        SignedShare share = in.readSignedShare();
 
         // Viene richiamata la verify su Schnorr per verificare se la firma della share è corretta
         // Si noti che i messaggi di errore/successo sono fatti tutti nel modo seguente: messaggio || ERROR/SUCCESS
-        if (!Schnorr.verify(share.getSign(), share.getSignedPK(), Utils.toString(Utils.objToByteArray(share.getShareSK())))) {
+        if (!Schnorr.verify(share.getSign(), share.getSignedPK(), share.getShareSK().encode())) {
             System.out.println("Digital signature of share check ERROR");
             System.out.println("--------------------          " + port);
             out.writeBoolean(false); // LA FIRMA DELLA SHARE NON è BUONA, QUINDI SBAL INVIA FALSE AD SGEN
@@ -98,7 +110,7 @@ public class Sbal {
         ElGamalDec shareDec = new ElGamalDec((ElGamalSK) share.getShareSK());
 
         // invio del pezzo di PK della share verso Sgen
-        out.writeObject(shareDec.getPK());
+        out.writeElGamalPK(shareDec.getPK());
         out.flush();
 
         if (in.readBoolean() == false) { // se il pezzettino di Pk che ho inviato non è buono, segnalo l'errore e chiudo la connessione.
@@ -120,10 +132,10 @@ public class Sbal {
         // Connessione con Sgen per ricevere la PK
         socket = balFromSomeone.acceptAndCheckClient("CN=sgen,OU=CEN,L=Campania"); // La connessione viene accettata solo se a richiederla è Sgen
         // così si evitano avversari/impostori che potrebbero mandare chiavi fasulle
-        out = new ObjectOutputStream(socket.getOutputStream());
-        in = new ObjectInputStream(socket.getInputStream());
+        out = new WireOutputStream(socket.getOutputStream());
+        in = new WireInputStream(socket.getInputStream());
 
-        ElGamalPK PK = (ElGamalPK) in.readObject(); // Sbal ottiene la PK
+        ElGamalPK PK = in.readElGamalPK(); // Sbal ottiene la PK
         if (PK != null) { // Tutto apposto, la PK è arrivata --> Sbal manda 1 ad Sgen 
             out.writeInt(1);
             out.flush();
@@ -147,135 +159,23 @@ public class Sbal {
         System.out.println("\nI am ready to start the e-ballot\n");
         System.out.println("--------------------          " + port);
 
-        // Sbal dispone di un mini database interno contenente coppie di ciphertext-firma
-        HashMap<ElGamalCT, SchnorrSig> listVotes = new HashMap<>();
+        // Sbal dispone di un mini database interno contenente coppie di ciphertext-firma, indicizzate
+        // per impronta del ciphertext e per pseudonimo del votante (si veda BallotStore).
+        // Le coppie sono record a larghezza fissa fuori dallo heap, così anche con molti votanti il GC non le vede
+        BallotStore listVotes = new OffHeapBallotStore(PK);
+        // conteggio cifrato parziale, aggiornato ad ogni voto accettato: un voto sostituito viene tolto
+        // moltiplicando per l'inverso delle componenti del suo ciphertext. In ogni momento runningTally.toCT()
+        // è la cifratura della somma dei voti presenti in listVotes
+        ElGamalAccumulator runningTally = new ElGamalAccumulator(PK);
         
         
-        // ciclo infinito per gestire varie connessioni
-        OUTER:
-        while (true) {
-            System.out.println("sono sbal e sono entrato nel while");
-            System.out.println("--------------------          " + port);
-
-            // si accetta una connessione da qualcuno
-            socket = balFromSomeone.accept();
-            // apertura della connessione con gli stream
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
-            
-            String request = in.readUTF(); // arrivo di una stringa che specifica cosa desidera fare chi si è connesso ad Sbal
-            // ci sono due casi di richieste:
-            // (1) stop: viene inviato esclusivamente dal timer
-            // (2) voting: viene inviato esclusivamente da Splat
-            out.writeInt(1); // invio di ACK al richiedente
-            out.flush();
-            
-            if (null != request) { // la request deve essere diversa da null
-                System.out.println("request is not null and it is: " + request);
-                System.out.println("--------------------          " + port);
-                switch (request) {
-                    case "stop":
-                        out.writeInt(1); // richiesta di stop arrivata, inviata dal server Timer
-                        //out.flush();
-                        out.close();
-                        in.close();
-                        socket.close();
-                        break OUTER;
-                    
-                    case "voting": // Sbal riceve un SignedVote da parte di Splat
-                        SignedVote sv = (SignedVote) in.readObject(); // Sbal riceve il SignedVote
-                        out.writeBoolean(true); // Sbal invia True ad Splat per confermare la corretta ricezione del SignedVote
-                        out.flush();
-                        
-                        if (sv.getVoteCT() == null && sv.getSign() == null) { // caso in cui sia il ciphertext del voto sia la sua firma sono null
-                            // l'invio della stringa "two messages" da parte di Splat verso Sbal significa che in precedenza è stato
-                            // espresso un voto che ora va sostituito con il nuovo
-                            if ("two messages".equals(in.readUTF())) {
-                                SignedVote oldSV = (SignedVote) in.readObject(); // ricezione del vecchio voto
-
-                                out.writeBoolean(true); // Invio di True da Sbal ad Splat
-                                out.flush();
-                                System.out.println("Arriving vote SUCCESS");
-                                System.out.println("--------------------          " + port);
-                                for (ElGamalCT key : listVotes.keySet()) {
-                                    if (key.equals(oldSV.getVoteCT())) { // ricerca del vecchio voto nel database contenente solo ciphertext-firma
-                                        if (listVotes.remove(key, listVotes.get(key))) { // il voto vecchio niene rimosso e non se ne aggiunge nessuno perché il nuovo voto è null
-                                            out.writeBoolean(true); // Sbal invia ad Splat True perché la rimozione del voto è avvenuta correttamente
-                                            out.flush();
-                                            System.out.println("Adding vote SUCCESS");
-                                            System.out.println("--------------------          " + port);
-                                        } else {
-                                            out.writeBoolean(false); // il vecchio voto non è stato trovato, quindi non può essere rimosso
-                                            out.flush();
-                                            System.out.println("Adding vote ERROR");
-                                            System.out.println("--------------------          " + port);
-                                        }
-                                    }
-                                }
-                            }
-                        } else { // caso in cui il voto espresso è diverso da null
-                            if (!Schnorr.verify(sv.getSign(), sv.getSignedPK(), Utils.toString(Utils.objToByteArray(sv.getVoteCT())))) { // verify della firma del voto cifrato
-                                System.out.println("Digital signature of vote check ERROR"); // errore sulla verify
-                                System.out.println("--------------------          " + port);
-                                out.writeBoolean(false);
-                                out.flush();
-                            } else {
-                                out.writeBoolean(true);
-                                out.flush();
-                                System.out.println("Arriving vote SUCCESS"); // è tutto okay con la verify
-                                System.out.println("--------------------          " + port);
-
-                                if ("two messages".equals(in.readUTF())) { // il nuovo voto inviato deve sovrascriverne uno vecchio
-                                    SignedVote oldSV = (SignedVote) in.readObject(); // ricezione del vecchio SignedVote
-
-                                    out.writeBoolean(true); // Invio di True da Sbal ad Splat
-                                    out.flush();
-                                    System.out.println("Arriving vote SUCCESS");
-                                    System.out.println("--------------------          " + port);
-                                    // ricerca del vecchio SignedVote 
-                                    for (ElGamalCT key : listVotes.keySet()) {
-                                        if (key.equals(oldSV.getVoteCT())) {
-                                            // rimozione del vecchio SignedVote ed aggiunta del nuovo
-                                            if (listVotes.remove(key, listVotes.get(key)) && sv.getVoteCT() != null && sv.getSign() != null && !listVotes.containsKey(sv.getVoteCT())) {
-                                                // nell'if di sopra le condizioni che vengono dopo la remove in realtà non sono utili. Si controlla se il nuovo SignedVote sia diverso da null e se effettivamente non esista alcun vecchio SignedVote con lo stesso ciphertext nel db di Sbal
-                                                listVotes.put(sv.getVoteCT(), sv.getSign());
-                                                out.writeBoolean(true);
-                                                out.flush();
-                                                System.out.println("Adding vote SUCCESS");
-                                                System.out.println("--------------------          " + port);
-                                            } else {
-                                                out.writeBoolean(false);
-                                                out.flush();
-                                                System.out.println("Adding vote ERROR");
-                                                System.out.println("--------------------          " + port);
-                                            }
-                                        }
-                                    }
-                                } else { // il nuovo voto è diverso da null, lo si può aggiungere direttamente nel database di Sbal
-                                    if (sv.getVoteCT() != null && sv.getSign() != null && !listVotes.containsKey(sv.getVoteCT())) {
-                                        listVotes.put(sv.getVoteCT(), sv.getSign());
-                                        out.writeBoolean(true);
-                                        out.flush();
-                                        System.out.println("Adding vote SUCCESS");
-                                        System.out.println("--------------------          " + port);
-                                    } else {
-                                        out.writeBoolean(false);
-                                        out.flush();
-                                        System.out.println("Adding vote ERROR");
-                                        System.out.println("--------------------          " + port);
-                                    }
-                                }
-                            }
-                        }
-                        out.close();
-                        in.close();
-                        socket.close(); // chiusura connessione
-                        break;
-                    default:
-                        System.out.println("Request not accepted ERROR"); // caso in cui arriva una richiesta anomala, che non sia nè "voting" né "stop"
-                }
-            }
-        }
+        // Durante il voto Sbal non serve più una connessione alla volta: poche event loop NIO (TLSNioServer)
+        // multiplexano tutte le connessioni, ognuna con il proprio VotingHandler, finché il Timer non invia lo stop.
+        // Le richieste sono quelle di sempre:
+        // (1) stop: viene inviato esclusivamente dal timer
+        // (2) voting: viene inviato esclusivamente da Splat, per un solo voto
+        // (3) session: viene inviato esclusivamente da Splat, che poi invia più voti sulla stessa connessione
+        balFromSomeone.serve(() -> new VotingHandler(balFromSomeone, PK, listVotes, runningTally, port), LOOPS);
         System.out.println("\ne-ballot ended\n");
         System.out.println("--------------------          " + port);
         
@@ -288,33 +188,23 @@ public class Sbal {
         // Ciascun Sbal moltiplica i ciphertext dei voti che ha disposizione ed ottiene un unico ciphertext locale.
         // Ciascun Sbal invia il proprio ciphertext locale agli altri Sbal.
         // Alla fine (per ragioni implementative) solo uno degli Sbal riesce effettivamente a calcolare il ciphertext finale.
-        ElGamalCT localCT = null; // variabile destinata a contenere il ciphertext locale di un Sbal
-        int flag = 0;
-
-        // Si ricordi che nel database di Sbal abbiamo unicamente coppie ciphertext-firma, con il ciphertext che fa da chiave
-        for (ElGamalCT key : listVotes.keySet()) { // si itera sulle chiavi del DB di Sbal, ovvero sui ciphertext dei voti che ha a disposizione
-            if (flag == 0) {
-                localCT = key; // non appena in localCT viene messo il primo ciphertext, flag viene settato a 1
-                flag = 1;
-            } else { // per tutti gli altri ciphertext nel database si richiama il metodo Homomorphism(), che effettua la moltiplicazione del prodotto corrente con il ciphertext i-esimo
-                localCT = ElGamalCT.Homomorphism(PK, localCT, key);
-            }
-        }
+        // Il ciphertext locale è già pronto: è lo snapshot del conteggio parziale tenuto durante il voto
+        ElGamalCT localCT = runningTally.getCount() == 0 ? null : runningTally.toCT(); // null se nessuno ha votato qui
 
         
         // Connessione con gli altri Sbal per inviare il ciphertext locale
         ArrayList<ElGamalCT> arrCT = new ArrayList<>(); // Sbal prepara un array arrCT destinato a contenere i ciphertext locali che gli vengono inviati dagli altri Sbal
         ElGamalCT tmp = null;
 
-        // osservazione: ports contiene le porte associate ai 3 Sbal, ovvero 50.000, 50.001, 50.002
+        // osservazione: ports contiene le porte associate agli Sbal, di default 50.000, 50.001, 50.002
         for (int i = 0; i < ports.length; i++) {
             // IO SBAL INVIO
             if (ports[i] != port) { // se ports[i] è diverso dalla mia porta, allora invio il mio ciphertext locale
                 TLSClientBidi balToBal = new TLSClientBidi("localhost", ports[i]); // creazione connessione con l'altro Sbal
-                out = new ObjectOutputStream(balToBal.getcSock().getOutputStream());
-                in = new ObjectInputStream(balToBal.getcSock().getInputStream());
+                out = new WireOutputStream(balToBal.getcSock().getOutputStream());
+                in = new WireInputStream(balToBal.getcSock().getInputStream());
 
-                out.writeObject(localCT); // invio del ciphertext locale
+                out.writeCT(localCT); // invio del ciphertext locale
                 out.flush();
 
                 if (in.readInt() == 1) { // arrivo dell'ack dal Sbal a cui ho inviato il mio ciphertext locale
@@ -333,10 +223,10 @@ public class Sbal {
                 for (int j = 0; j < ports.length - 1; j++) { // naturalmente devo ricevere dagli altri n-1 Sbal. In questo esempio n-1 = 2
                     // un altro Sbal sta provando ad inviarmi qualcosa
                     socket = balFromSomeone.acceptAndCheckClient("CN=sbal,OU=CEN,L=Campania");
-                    out = new ObjectOutputStream(socket.getOutputStream());
-                    in = new ObjectInputStream(socket.getInputStream());
+                    out = new WireOutputStream(socket.getOutputStream());
+                    in = new WireInputStream(socket.getInputStream());
 
-                    tmp = (ElGamalCT) in.readObject(); // ricevo un ciphertext locale
+                    tmp = in.readCT(); // ricevo un ciphertext locale
 
                     out.writeInt(1); // invio ack al Sbal mittente
                     out.flush();
@@ -368,18 +258,11 @@ public class Sbal {
             return;
         }
 
-        ElGamalCT finalCT = localCT;
-
-        if (localCT == null) { // caso in cui questo Sbal non dispone di alcun voto, ovvero il suo localCT è null
-            finalCT = arrCT.get(0); 
-            for (int i = 1; i < arrCT.size(); i++) {
-                finalCT = ElGamalCT.Homomorphism(PK, finalCT, arrCT.get(i)); // calcolo del prodotto di tutti i ciphertext locali
-            }
-        } else { // caso in cui questo Sbal dispone di almeno un voto
-            for (int i = 0; i < arrCT.size(); i++) {
-                finalCT = ElGamalCT.Homomorphism(PK, finalCT, arrCT.get(i)); // calcolo del prodotto di tutti i ciphertext locali
-            }
+        // calcolo del prodotto di tutti i ciphertext locali (il proprio, se c'è, e quelli degli altri Sbal)
+        if (localCT != null) {
+            arrCT.add(localCT);
         }
+        ElGamalCT finalCT = TallyEngine.tally(PK, arrCT);
 
         // A questo punto ciascuno Sbal ha il finalCT, ovvero il ciphertext del risultato delle elezioni
         // Per motivi implementativi (codice messoci a disposizione da Iovino) la decifratura del ciphertext finale avviene tipo "catena di Sant'Antonio"   
@@ -393,13 +276,13 @@ public class Sbal {
         for (int i = 0; i < ports.length - 1; i++) { // il numero di step da effettuare è n-1, dove n = # Sbal
             if (ports[i] != port) { // IO SBAL RICEVO DAGLI ALTRI 2 SBAL  
                 socket = balFromSomeone.acceptAndCheckClient("CN=sbal,OU=CEN,L=Campania"); // accetto una connessione
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
+                out = new WireOutputStream(socket.getOutputStream());
+                in = new WireInputStream(socket.getInputStream());
 
                 if (i != ports.length - 2) { // non sono all'ultimo step: il Sbal che riceve moltiplica quello che riceve per il proprio contributo
-                    personalDecCT = shareDec.partialDecrypt((ElGamalCT) in.readObject()); 
+                    personalDecCT = shareDec.partialDecrypt(in.readCT()); 
                 } else { // sono all'ultimo step: il Sbal che riceve non deve moltiplicare quello che riceve per qualcos'altro, ma riceve e basta
-                    personalDecCT = (ElGamalCT) in.readObject();
+                    personalDecCT = in.readCT();
                 }
 
                 out.writeInt(1);
@@ -414,10 +297,10 @@ public class Sbal {
                 for (int j = 0; j < ports.length; j++) {
                     if (ports[j] != port) { // Io Sbal mi assicuro di non inviare a me stesso
                         TLSClientBidi balToBal = new TLSClientBidi("localhost", ports[j]);
-                        out = new ObjectOutputStream(balToBal.getcSock().getOutputStream());
-                        in = new ObjectInputStream(balToBal.getcSock().getInputStream());
+                        out = new WireOutputStream(balToBal.getcSock().getOutputStream());
+                        in = new WireInputStream(balToBal.getcSock().getInputStream());
 
-                        out.writeObject(personalDecCT);
+                        out.writeCT(personalDecCT);
                         out.flush();
 
                         if (in.readInt() == 1) {
@@ -435,22 +318,26 @@ public class Sbal {
                 }
             }
         }
-        // alla fine di questo ciclo, il server Sbal con numero di porta 50.002 (in pratica l'ultimo Sbal degli n, ovvero il terzo) si ritrova con la
-        // quantità u^(p(0))*u^(p(1)). Pertanto, facendo richiamare a tale server la partialDecrypt(), questa restituisce in output u^(p(0))*u^(p(1))*u^(p(2))
+        // alla fine di questo ciclo, il server Sbal con il numero di porta più alto (in pratica l'ultimo Sbal degli n, di default il terzo con porta 50.002) si ritrova con la
+        // quantità u^(p(0))*...*u^(p(n-2)). Pertanto, facendo richiamare a tale server la partialDecrypt(), questa restituisce in output u^(p(0))*...*u^(p(n-1))
 
         // Calcolo del risultato finale dell'e-ballot
-        if (port == ports[ports.length - 1]) { // Il calcolo finale viene fatto da un solo Sbal, in particolare da quello con numero di porta uguale a 50.002
+        if (port == ports[ports.length - 1]) { // Il calcolo finale viene fatto da un solo Sbal, in particolare da quello con il numero di porta più alto
             BigInteger res = shareDec.decryptInTheExponent(personalDecCT); // viene chiamato il metodo che si occupa della decifratura con Variazione di El Gamal, che fa prima una partial decrypt
-            System.out.println("The e-ballot result is: " + res);
+            if (res == null) { // il risultato cade fuori dall'intervallo [-N, N] cercato dal baby-step giant-step
+                System.out.println("The e-ballot result is out of range ERROR");
+            } else {
+                System.out.println("The e-ballot result is: " + res);
+            }
             System.out.println("--------------------          " + port);
         }
 
         //Connessione con la bacheca per la stampa dei voti
         TLSClientBidi balToTab = new TLSClientBidi("localhost", 50020); // ciascun Sbal si collega ad Stab e gli manda la propria lista di voti
-        out = new ObjectOutputStream(balToTab.getcSock().getOutputStream());
-        in = new ObjectInputStream(balToTab.getcSock().getInputStream());
+        out = new WireOutputStream(balToTab.getcSock().getOutputStream());
+        in = new WireInputStream(balToTab.getcSock().getInputStream());
 
-        out.writeObject(listVotes); // invio delle coppie cifratura voto -- firma da Sbal ad Stab
+        out.writeBallots(listVotes); // invio delle coppie cifratura voto -- firma da Sbal ad Stab
         out.flush();
 
         if (in.readInt() == 1) { // invio effettuato con successo
@@ -469,6 +356,276 @@ public class Sbal {
 
 
 
+    /**
+     * @brief Metodo che riceve da Splat un voto (il nuovo SignedVote ed
+     * eventualmente il vecchio da sostituire) e lo registra nel database di
+     * Sbal
+     * @param in Stream di input della connessione
+     * @param PK PK di El Gamal
+     * @param listVotes database di Sbal con le coppie ciphertext-firma
+     * @param runningTally conteggio cifrato parziale
+     * @param port Numero della porta dello Sbal
+     * @return True se il voto è stato registrato
+     * @throws java.io.IOException
+     */
+    private static boolean receiveVote(WireInputStream in, ElGamalPK PK, BallotStore listVotes,
+            ElGamalAccumulator runningTally, int port) throws IOException {
+        // Splat invia il nuovo voto e subito dopo il vecchio voto da sostituire (null se non ce n'è uno):
+        // Sbal risponde con un unico booleano, così ogni voto costa un solo scambio sulla connessione
+        SignedVote sv = in.readSignedVote(); // ricezione del nuovo SignedVote
+        SignedVote oldSV = in.readSignedVote(); // ricezione del vecchio SignedVote
+        System.out.println("Arriving vote SUCCESS");
+        System.out.println("--------------------          " + port);
+
+        boolean nullVote = sv.getVoteCT() == null || sv.getSign() == null; // caso in cui il nuovo voto è null
+        // verify della firma del voto cifrato, solo se C e C2 sono elementi del gruppo di PK: un ciphertext fuori dal gruppo
+        // renderebbe impossibile la decifratura del risultato
+        // questa richiesta non porta lo pseudonimo: il votante è quello del vecchio voto
+        return registerVote(null, sv, oldSV,
+                nullVote || (sv.getVoteCT().isValid(PK) && Schnorr.verify(sv.getSign(), sv.getSignedPK(), sv.getVoteCT().encode(PK))),
+                listVotes, runningTally, port);
+    }
+
+    /**
+     * @brief Metodo che riceve da Splat un gruppo di voti: le firme vengono
+     * verificate tutte insieme e i voti registrati uno dopo l'altro
+     * @param batch i nuovi voti con i vecchi da sostituire
+     * @param PK PK di El Gamal
+     * @param listVotes database di Sbal con le coppie ciphertext-firma
+     * @param runningTally conteggio cifrato parziale
+     * @param port Numero della porta dello Sbal
+     * @return per ogni voto del gruppo, True se è stato registrato
+     */
+    private static boolean[] receiveBatch(VoteBatch batch, ElGamalPK PK, BallotStore listVotes,
+            ElGamalAccumulator runningTally, int port) {
+        System.out.println("Arriving batch of " + batch.size() + " votes SUCCESS");
+        System.out.println("--------------------          " + port);
+
+        List<SignedVote> newVotes = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            newVotes.add(batch.getNewVote(i));
+        }
+        // verifica in batch di tutte le firme (un voto null non ha firma e risulta non valido: lo si tratta a parte).
+        // Un voto con C o C2 fuori dal gruppo di PK risulta non valido, come uno con la firma sbagliata
+        boolean[] valid = Schnorr.verifyBatch(PK, newVotes);
+
+        boolean[] added = new boolean[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            SignedVote sv = newVotes.get(i);
+            boolean nullVote = sv.getVoteCT() == null || sv.getSign() == null;
+            added[i] = registerVote(batch.getPseudonym(i), sv, batch.getOldVote(i), nullVote || valid[i], listVotes, runningTally, port);
+        }
+        return added;
+    }
+
+    /**
+     * @brief Metodo che registra nel database di Sbal un voto la cui firma è
+     * già stata verificata, togliendo l'eventuale vecchio voto
+     * @param pseudonym pseudonimo del votante (null se non è noto)
+     * @param sv nuovo voto
+     * @param oldSV vecchio voto da sostituire (null se non ce n'è uno)
+     * @param validSign True se il ciphertext del nuovo voto è nel gruppo di PK e la
+     * sua firma è valida (o se il voto è null)
+     * @param listVotes database di Sbal con le coppie ciphertext-firma
+     * @param runningTally conteggio cifrato parziale
+     * @param port Numero della porta dello Sbal
+     * @return True se il voto è stato registrato
+     */
+    private static boolean registerVote(String pseudonym, SignedVote sv, SignedVote oldSV, boolean validSign, BallotStore listVotes,
+            ElGamalAccumulator runningTally, int port) {
+        if (!validSign) {
+            System.out.println("Digital signature of vote check ERROR");
+            System.out.println("--------------------          " + port);
+            return false;
+        }
+
+        boolean nullVote = sv.getVoteCT() == null || sv.getSign() == null; // caso in cui il nuovo voto è null
+        ElGamalCT oldCT = oldSV == null ? null : oldSV.getVoteCT();
+        ElGamalCT newCT = nullVote ? null : sv.getVoteCT();
+
+        // sostituzione atomica in tempo costante: il voto corrente del votante deve essere proprio oldCT
+        // (nessuno se è null) e newCT non deve essere già presente; se il nuovo voto è null basta rimuovere il vecchio
+        boolean added = (oldCT != null || newCT != null) && listVotes.replace(pseudonym, oldCT, newCT, sv.getSign());
+        if (added) {
+            synchronized (runningTally) {
+                if (oldCT != null) {
+                    runningTally.divide(oldCT); // il vecchio voto esce dal conteggio parziale
+                }
+                if (newCT != null) {
+                    runningTally.multiply(newCT); // il nuovo voto entra nel conteggio parziale
+                }
+            }
+        }
+
+        System.out.println(added ? "Adding vote SUCCESS" : "Adding vote ERROR");
+        System.out.println("--------------------          " + port);
+        return added;
+    }
+
+    /**
+     * @brief Connessione servita durante il voto dalle event loop di
+     * TLSNioServer: legge le richieste man mano che arrivano i byte e risponde
+     * come faceva il vecchio ciclo bloccante
+     */
+    private static final class VotingHandler implements TLSNioServer.Handler {
+
+        // stati della connessione: attesa dell'header dello stream, di una richiesta, di un voto, di un gruppo di voti,
+        // dello pseudonimo di cui Splat chiede il voto corrente
+        private static final int HEADER = 0, REQUEST = 1, VOTE = 2, BATCH = 3, LOOKUP = 4;
+        private static final byte[] WIRE_HEADER = {(byte) (WireOutputStream.MAGIC >> 8), (byte) WireOutputStream.MAGIC, (byte) WireOutputStream.VERSION};
+        private static final byte[] ONE = {0, 0, 0, 1}, TRUE = {1}, FALSE = {0};
+
+        private final TLSNioServer server;
+        private final ElGamalPK PK;
+        private final BallotStore listVotes;
+        private final ElGamalAccumulator runningTally;
+        private final int port;
+        private int state = HEADER;
+        private boolean session = false; // true dopo la richiesta "session": la connessione resta aperta dopo ogni voto
+
+        private VotingHandler(TLSNioServer server, ElGamalPK PK, BallotStore listVotes,
+                ElGamalAccumulator runningTally, int port) {
+            this.server = server;
+            this.PK = PK;
+            this.listVotes = listVotes;
+            this.runningTally = runningTally;
+            this.port = port;
+        }
+
+        @Override
+        public void opened(TLSNioServer.Connection c) {
+            c.send(WIRE_HEADER); // come il costruttore di WireOutputStream
+        }
+
+        @Override
+        public void received(TLSNioServer.Connection c, ByteBuffer in) throws IOException {
+            while (!c.isClosing()) {
+                switch (state) {
+                    case HEADER:
+                        if (in.remaining() < WIRE_HEADER.length) {
+                            return;
+                        }
+                        if ((in.getShort() & 0xFFFF) != WireOutputStream.MAGIC || (in.get() & 0xFF) != WireOutputStream.VERSION) {
+                            System.out.println("Wire header ERROR");
+                            c.close();
+                            return;
+                        }
+                        state = REQUEST;
+                        break;
+                    case REQUEST:
+                        String request = readUTF(in);
+                        if (request == null) {
+                            return; // la richiesta non è ancora arrivata tutta
+                        }
+                        request(c, request);
+                        break;
+                    case VOTE: // il nuovo SignedVote e il vecchio, due frame che devono essere arrivati entrambi
+                        int len = WireInputStream.framesLength(in, 2);
+                        if (len < 0) {
+                            return;
+                        }
+                        byte[] frames = new byte[len];
+                        in.get(frames);
+                        c.send(receiveVote(WireInputStream.fromFrames(frames), PK, listVotes, runningTally, port) ? TRUE : FALSE);
+                        if (!session) {
+                            c.close(); // voto su una connessione usata una sola volta
+                        }
+                        state = REQUEST;
+                        break;
+                    case BATCH: // un unico frame con tutti i voti del gruppo, a cui si risponde con un unico frame di esiti
+                        int blen = WireInputStream.framesLength(in, 1);
+                        if (blen < 0) {
+                            return;
+                        }
+                        byte[] frame = new byte[blen];
+                        in.get(frame);
+                        boolean[] status = receiveBatch(WireInputStream.fromFrames(frame).readVoteBatch(), PK, listVotes, runningTally, port);
+                        ByteArrayOutputStream answer = new ByteArrayOutputStream(8 + status.length);
+                        WireOutputStream out = WireOutputStream.frames(answer);
+                        out.writeBatchStatus(status);
+                        out.flush();
+                        c.send(answer.toByteArray());
+                        state = REQUEST;
+                        break;
+                    case LOOKUP: // uno pseudonimo, a cui si risponde con il suo voto corrente (un frame NULL se non ne ha)
+                        String pseudonym = readUTF(in);
+                        if (pseudonym == null) {
+                            return;
+                        }
+                        ByteArrayOutputStream ballot = new ByteArrayOutputStream();
+                        WireOutputStream lout = WireOutputStream.frames(ballot);
+                        lout.writeSignedVote(listVotes.ballotOf(pseudonym));
+                        lout.flush();
+                        c.send(ballot.toByteArray());
+                        state = REQUEST;
+                        break;
+                    default:
+                        return;
+                }
+            }
+        }
+
+        private void request(TLSNioServer.Connection c, String request) {
+            if (!session) {
+                System.out.println("request is not null and it is: " + request);
+                System.out.println("--------------------          " + port);
+                c.send(ONE); // invio di ACK al richiedente
+                switch (request) {
+                    case "stop": // richiesta di stop, inviata dal server Timer
+                        server.stop(); // da qui in poi nessuna connessione viene più accettata
+                        c.send(ONE);
+                        c.close();
+                        return;
+                    case "voting":
+                        state = VOTE;
+                        return;
+                    case "session":
+                        session = true;
+                        return;
+                    default:
+                        System.out.println("Request not accepted ERROR"); // caso in cui arriva una richiesta anomala
+                        c.close();
+                        return;
+                }
+            }
+            switch (request) { // richieste all'interno di una sessione di Splat
+                case "voting":
+                    state = VOTE;
+                    return;
+                case "batch": // gruppo di voti raccolti da Splat
+                    state = BATCH;
+                    return;
+                case "lookup": // Splat non sa se una sostituzione è andata a buon fine e chiede il voto corrente di un votante
+                    state = LOOKUP;
+                    return;
+                case "ping": // controllo di Splat che la connessione sia ancora attiva
+                    c.send(ONE);
+                    return;
+                case "close":
+                    c.close();
+                    return;
+                default:
+                    System.out.println("Request not accepted ERROR");
+                    System.out.println("--------------------          " + port);
+                    c.close();
+            }
+        }
+
+        // una stringa scritta con writeUTF, o null se non è ancora arrivata tutta
+        private static String readUTF(ByteBuffer in) throws IOException {
+            if (in.remaining() < 2) {
+                return null;
+            }
+            int len = 2 + (in.getShort(in.position()) & 0xFFFF);
+            if (in.remaining() < len) {
+                return null;
+            }
+            byte[] b = new byte[len];
+            in.get(b);
+            return new DataInputStream(new ByteArrayInputStream(b)).readUTF();
+        }
+    }
+
     /**
      * @brief Sbal si occupa di ricevere i voti ed inserirli correttamente nel
      * database, di ottenere il risultato finale del ballottaggio collaborando
@@ -478,10 +635,10 @@ public class Sbal {
      * @throws java.lang.ClassNotFoundException
      */
     
-    // LANCIAMO 3 ISTANZE DIVERSE DI SBAL, QUINDI FACCIAMO UN VERO E PROPRIO MULTI-THREAD.
-    // OGNI THREAD (NE VENGONO CREATI 3 IN TUTTO) è UN'ISTANZA DI SBAL.
-    // AD OGNI SBAL VIENE ASSOCIATO IL NUMERO DI PORTA GIUSTO (50.001, 50.002 o 50.003).
-    // QUINDI BASTA RUNNARE DIRETTAMENTE UNA VOLTA SBAL PER OTTENERNE TRE ISTANZE.
+    // LANCIAMO UN'ISTANZA DI SBAL PER OGNI PORTA CONFIGURATA (DI DEFAULT 3), QUINDI FACCIAMO UN VERO E PROPRIO MULTI-THREAD.
+    // OGNI THREAD è UN'ISTANZA DI SBAL.
+    // AD OGNI SBAL VIENE ASSOCIATO IL NUMERO DI PORTA GIUSTO (DI DEFAULT 50.000, 50.001 o 50.002).
+    // QUINDI BASTA RUNNARE DIRETTAMENTE UNA VOLTA SBAL PER OTTENERE TUTTE LE ISTANZE.
     public static void main(String[] args) throws InterruptedException, ClassNotFoundException, Exception {
         List<Callable<Void>> taskList = new ArrayList<>();
         for (int i = 0; i < ports.length; i++) {
@@ -490,13 +647,13 @@ public class Sbal {
                 @Override
                 public Void call() throws Exception {
                     activateSbal(port); // VIENE RICHIAMATO IL METODO activateSbal, CHE CONTIENE TUTTO QUELLO CHE UNO SBAL DEVE FARE
-                    // QUINDI ABBIAMO IN PARALLELO 3 SBAL CHE ESEGUONO IL PROPRIO METODO activateSbal
+                    // QUINDI ABBIAMO IN PARALLELO TUTTI GLI SBAL CHE ESEGUONO IL PROPRIO METODO activateSbal
                     return null;
                 }
             };
             taskList.add(callable);
         }
-        ExecutorService executor = Executors.newFixedThreadPool(3);
+        ExecutorService executor = Executors.newFixedThreadPool(ports.length);
         executor.invokeAll(taskList);
         executor.shutdown();
         /*
@@ -1,16 +1,21 @@
 package servers;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 import utility.ElGamalGen;
 import utility.ElGamalPK;
 import utility.ElGamalSK;
+import utility.P256Group;
 import utility.Schnorr;
+import utility.SchnorrParameters;
 import utility.SchnorrSig;
+import utility.ShardRing;
 import utility.SignedShare;
 import utility.TLSClientBidi;
-import utility.Utils;
+import utility.TLSContextRegistry;
+import utility.WireInputStream;
+import utility.WireOutputStream;
 
 /**
  *
@@ -20,10 +25,10 @@ public class Sgen {
 
     /*
     TUTTI I SERVER HANNO ASSOCIATO PER LE COMUNICAZIONI UN NUMERO DI PORTA PERCHé TLS FUNZIONA IN QUESTO MODO.
-    50.000, 50.001, 50.002 SONO I NUMERI DI PORTA DEI SERVER SBAL, MENTRE 50.010 è IL NUMERO DI PORTA DEL SERVER SPLAT.
+    50.000, 50.001, 50.002 (DI DEFAULT, SI VEDA SHARDRING) SONO I NUMERI DI PORTA DEI SERVER SBAL, MENTRE 50.010 è IL NUMERO DI PORTA DEL SERVER SPLAT.
     
     */
-    private static final int[] ports = {50000, 50001, 50002, 50010}; 
+    private static final int[] ports = IntStream.concat(Arrays.stream(ShardRing.defaults().getPorts()), IntStream.of(50010)).toArray();
     // ARRAY CONTENENTE LE PORTE DEI SERVER SBAL ED SPLAT: TRATTASI DEI SERVER CON CUI SGEN DEVE COMUNICARE
 
     /**
@@ -41,19 +46,27 @@ public class Sgen {
     
     public static void main(String[] args) throws IOException, ClassNotFoundException {
         
-        // LA PRIMA COSA DA FARE PER SETTARE UN SERVER CONSISTE NEL SETTARE LE SEGUENTI PROPRIETà,
-        // CHE CONSISTONO NELL'ASSEGNAZIONE DEL CERTIFICATO E DEL TRUST STORE.
+        // LA PRIMA COSA DA FARE PER SETTARE UN SERVER CONSISTE NEL REGISTRARE IL PROPRIO CONTESTO TLS,
+        // CHE CONSISTE NELL'ASSEGNAZIONE DEL CERTIFICATO E DEL TRUST STORE.
         // VENGONO SETTATE ANCHE LE PASSWORD PER KEYSTORE E TRUSTSTORE
-        System.setProperty("javax.net.ssl.keyStore", ".\\certificates\\keystoreGen.jks");
-        System.setProperty("javax.net.ssl.keyStorePassword", "sergen");
-        System.setProperty("javax.net.ssl.trustStore", ".\\certificates\\truststoreGen.jks");
-        System.setProperty("javax.net.ssl.trustStorePassword", "sergen");
+        TLSContextRegistry.setDefault(".\\certificates\\keystoreGen.jks", "sergen", ".\\certificates\\truststoreGen.jks", "sergen");
 
         // CREIAMO ORA UN GENERATORE DI EL GAMAL.
         // 512 è IL PARAMETRO DI SICUREZZA, CIOè LA LUNGHEZZA DELLE CHIAVI
         // SI POTREBBE METTERE UN PARAMETRO MOLTO PIù ALTO: PER EL GAMAL L'IDEALE SAREBBE 2048, MA ALL'AUMENTARE DEL PARAMETRO AUMENTA
         // IL TEMPO DI ESECUZIONE, QUINDI ABBIAMO SCELTO UN PARAMETRO CHE ASSICURA UN TEMPO RAGIONEVOLE
-        ElGamalGen gen = new ElGamalGen(512);
+        // CON -Devoting.group=p256 SI USA INVECE EL GAMAL SULLA CURVA ELLITTICA P-256: SICUREZZA DI 128 BIT
+        // CON ESPONENZIAZIONI MOLTO PIù VELOCI E CIFRATI MOLTO PIù CORTI DI QUELLI MODULO UN PRIMO DI PARI SICUREZZA
+        // CON -Devoting.group=dsa SI USA UN p DI 2048 BIT CON UN SOTTOGRUPPO DI ORDINE q DI SOLI 256 BIT:
+        // TUTTI GLI ESPONENTI (CHIAVI, RANDOMNESS, SHARE) SONO LUNGHI 256 BIT E LE ESPONENZIAZIONI COSTANO MOLTO MENO
+        // (SBAL E SPLAT ACCETTANO SOLO CIFRATI I CUI ELEMENTI STANNO NEL SOTTOGRUPPO DI ORDINE q, SI VEDA ElGamalCT.isValid)
+        String group = System.getProperty("evoting.group", "");
+        boolean dsa = "dsa".equalsIgnoreCase(group);
+        ElGamalGen gen = "p256".equalsIgnoreCase(group)
+                ? new ElGamalGen(P256Group.INSTANCE)
+                : dsa
+                ? new ElGamalGen(2048, 256)
+                : new ElGamalGen(512);
 
         // arrPK è UN ARRAY CHE USEREMO PER CONSERVARE LE PUBLIC KEYS ASSOCIATE ALLE VARIE SHARE.
         ElGamalPK[] arrPK = new ElGamalPK[ports.length - 1];
@@ -69,7 +82,9 @@ public class Sgen {
         // QUESTI PEZZI DI PK CI SERVONO PERCHé DEVONO ESSERE UNITI (C'è UN METODO APPOSTA CHE LO FA) PER FORMARE LA PK FINALE
         
         // VIENE CREATO UN OGGETTO ISTANZA DI SCHNORR, CHE SERVE PER FIRMARE
-        Schnorr signer = new Schnorr(512);
+        // CON -Devoting.group=dsa ANCHE IL GRUPPO DI SCHNORR HA UN p DI 2048 BIT E UN q DI 256 BIT (ESPONENTI DI 256 BIT).
+        // I VOTANTI INVECE FIRMANO SEMPRE NEL GRUPPO PREDEFINITO (SchnorrParameters.defaults())
+        Schnorr signer = new Schnorr(dsa ? SchnorrParameters.generate(2048, 256) : SchnorrParameters.generate(512));
 
         // Connessione con tutti i Sbal per inviare le shares
         
@@ -91,23 +106,23 @@ public class Sgen {
             // Ogni volta che si crea una connessione bisogna creare un OutputStream out ed un InputStream in, che
             // nella pratica rappresentano il canale di comunicazione.
             // Se io devo ricevere uso in, se devo inviare uso out.
-            ObjectOutputStream out = new ObjectOutputStream(genToBal.getcSock().getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(genToBal.getcSock().getInputStream());
+            WireOutputStream out = new WireOutputStream(genToBal.getcSock().getOutputStream());
+            WireInputStream in = new WireInputStream(genToBal.getcSock().getInputStream());
 
             ElGamalSK shareSK = gen.getPartialSecret(); // creazione di una share, sfruttando il generatore gen
 
-            SchnorrSig sign = signer.sign(Utils.toString(Utils.objToByteArray(shareSK))); // firma della share
-            // si osservi che il metodo objToByteArray si trova nel file utils e trasforma un oggetto in un array di byte, che
-            // poi può essere trasformato in stringa
+            SchnorrSig sign = signer.sign(shareSK.encode()); // firma della share
+            // si osservi che viene firmata la codifica binaria canonica della share (s||PK a lunghezza fissa),
+            // che Sbal ricalcola allo stesso modo senza passare per la serializzazione Java
 
             // Sgen manda in output un oggetto, che è un pacchetto, istanza di SignedShare, che contiene
             // la share, la firma di Schnorr e la PK di Schnorr (associata alla SK usata per firmare).
             // Si osservi che la SK usata per firmare non è quella del certificato (per motivi implementativi sempre legati a Iovino).
             // I certificati, infatti, non usano la firma di Schnorr... che era l'unica che Iovino ci ha dato.
             // Quindi per questioni implementative abbiamo dovuto distaccarci dai certificati.
-            out.writeObject(new SignedShare(shareSK, sign, signer.getPK()));
+            out.writeSignedShare(new SignedShare(shareSK, sign, signer.getPK()));
             out.flush(); // il metodo flush serve per essere sicuri che sia stato effettivamente mandato qualcosa e
-            // l'abbiamo chiamato dopo ogni writeObject
+            // l'abbiamo chiamato dopo ogni scrittura
 
             // ogni volta che c'è un in. significa che il Server sta aspettando che gli arrivi qualcosa che poi dovrà leggere.
             // Si osservi che readBoolean è bloccante. Quando il codice arriva ad un in si blocca in attesa che arrivi
@@ -127,7 +142,7 @@ public class Sgen {
             // al pezzettino di PK che Sgen ha inviato allo stesso Sbal all'interno della share.
             // Questo è un controllo in più per essere sicuri che il Sbal abbia esattamente lo stesso
             // pezzettino di Pk che è stato mandato da Sgen
-            if (!shareSK.getPK().equals(in.readObject())) {
+            if (!shareSK.getPK().equals(in.readElGamalPK())) {
                 System.out.println("PK check ERROR");
                 out.writeBoolean(false);
                 out.flush();
@@ -163,10 +178,10 @@ public class Sgen {
         for (int i = 0; i < ports.length; i++) {
             TLSClientBidi genToSomeone = new TLSClientBidi("localhost", ports[i]); // Sgen funge ancora da client
 
-            ObjectOutputStream out = new ObjectOutputStream(genToSomeone.getcSock().getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(genToSomeone.getcSock().getInputStream());
+            WireOutputStream out = new WireOutputStream(genToSomeone.getcSock().getOutputStream());
+            WireInputStream in = new WireInputStream(genToSomeone.getcSock().getInputStream());
 
-            out.writeObject(PK); // invio della PK
+            out.writeElGamalPK(PK); // invio della PK
             out.flush(); // Solita flush
 
             // OSSERVAZIONE: Per le verifiche abbiamo usato un booleano.
@@ -1,24 +1,40 @@
 package servers;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import static java.lang.Math.abs;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.security.auth.x500.X500Principal;
 import org.bouncycastle.util.encoders.Hex;
+import utility.BallotBatcher;
 import utility.Credential;
 import utility.ElGamalPK;
+import utility.PasswordHasher;
 import utility.Schnorr;
+import utility.SchnorrPK;
+import utility.ShardRing;
 import utility.SignedVote;
-import utility.TLSClientBidi;
+import utility.TLSContextRegistry;
 import utility.TLSServerBidi;
+import utility.TLSSessionPool;
 import utility.Utils;
 import utility.VotesDB;
+import utility.WireInputStream;
+import utility.WireOutputStream;
 
 /**
  *
@@ -26,13 +42,47 @@ import utility.VotesDB;
  */
 public class Splat {
 
-    // quelli sotto riportati sono i numeri di porta degli Sbal
-    private static final int[] ports = {50000, 50001, 50002};
-
-    private static final HashMap<String, Integer> databaseMI;
+    // anello di consistent hashing degli Sbal (le porte sono configurate in ShardRing): ogni ID va sempre sullo stesso Sbal.
+    // Gli Sbal sono fissati prima che Sgen distribuisca le share, quindi l'anello non cambia durante l'elezione
+    private static final ShardRing ring = ShardRing.defaults();
+
+    private static final ConcurrentHashMap<String, Integer> databaseMI;
+
+    // stato dello stop: chi arriva dopo lo stop non viene servito, chi è già in corso viene atteso al massimo DRAIN_TIMEOUT ms
+    private static final long DRAIN_TIMEOUT = 30000;
+    private static final ReentrantLock inFlightLock = new ReentrantLock();
+    private static final Condition drained = inFlightLock.newCondition();
+    private static int inFlight = 0; // connessioni in corso
+    private static volatile boolean stopping = false;
+
+    // una connessione che non manda nulla per READ_TIMEOUT ms viene chiusa, così un client inattivo non tiene occupato un thread
+    // (né fa aspettare allo stop tutto il DRAIN_TIMEOUT); senza virtual thread le connessioni servite insieme sono al massimo MAX_WORKERS
+    private static final int READ_TIMEOUT = 10000;
+    private static final int MAX_WORKERS = 256;
+
+    // sessioni TLS persistenti verso gli Sbal: fino a BAL_SESSIONS per Sbal, che le serve tutte insieme con le sue event loop,
+    // così i votanti serviti in parallelo non si mettono in fila su un'unica connessione.
+    // Una sessione inutilizzata da più di 5 secondi viene controllata con un ping prima di essere riusata
+    private static final int BAL_SESSIONS = 8;
+    private static final TLSSessionPool balPool = new TLSSessionPool("localhost", ".\\certificates\\keystorePlat.jks", "serplat", BAL_SESSIONS, 5000);
+
+    // raccolta dei voti diretti ad ogni Sbal: un gruppo parte quando ha BATCH_SIZE voti o quando il più vecchio aspetta da BATCH_DELAY ms
+    private static final int BATCH_SIZE = 64;
+    private static final long BATCH_DELAY = 5;
+    private static final ConcurrentHashMap<Integer, BallotBatcher> batchers = new ConcurrentHashMap<>();
+
+    // numero di replaceVote in corso per ogni ID: reconcile riallinea il database di Splat solo se non ce ne sono altri
+    private static final ConcurrentHashMap<String, Integer> votesInFlight = new ConcurrentHashMap<>();
+
+    // database di Splat persistente (write-ahead log e snapshot, si veda VotesLog) se è indicata la cartella splat.db,
+    // altrimenti solo in memoria come prima. splat.db.sync: 0 ogni conferma aspetta l'fsync (group commit), > 0 fsync ogni
+    // tanti ms, < 0 mai; splat.db.snapshot: byte di log dopo i quali si scrive un nuovo snapshot
+    private static final String DB_DIR = System.getProperty("splat.db");
+    private static final long DB_SYNC = Long.getLong("splat.db.sync", 0);
+    private static final long DB_SNAPSHOT = Long.getLong("splat.db.snapshot", 16 << 20);
 
     static { // database fornito dal Ministero degli Interni che contiene i CF dei votanti.
-        databaseMI = new HashMap<>(); // è una semplice hashmap che contiene CF (come chiave) e campo check come valore
+        databaseMI = new ConcurrentHashMap<>(); // è una hashmap (concorrente) che contiene CF (come chiave) e campo check come valore
         databaseMI.put("EMDM00V001", 0);
         databaseMI.put("ACXX99V002", 0);
         databaseMI.put("ADGX99V003", 0);
@@ -101,81 +151,266 @@ public class Splat {
         }
 
         // determinazione del Sbal a cui inviare il voto.
-        // Si prende l'ID, se ne fa l'hashcode e si fa modulo il numero di Sbal
-        // Per sicurezza si fa anche il valore assoluto di quanto viene tornato (per essere sicuri che bal sia 0, 1 o 2)
-        // infatti la funzione hashcode può tornare anche un numero negativo. 
+        // L'ID viene posizionato sull'anello di consistent hashing degli Sbal (si veda ShardRing) e il voto va al primo Sbal che si incontra.
         // Si osservi che è fondamentale che il voto di una certa persona vada sempre nello stesso Sbal.
         // Ad ogni ID corrisponde sempre lo stesso Sbal (fondamentale per modificare/annullare voto precedente di una certa persona)
-        int bal = abs(ID.hashCode() % ports.length);
+        int port = ring.nodeFor(ID);
 
         // stampe di controllo
-        System.out.println("bal: " + bal);
-        System.out.println("port: " + ports[bal]);
+        System.out.println("port: " + port);
+
+        // Splat fa da client, mentre Sbal fa da server.
+        // Il voto non viaggia da solo: il batcher del Sbal corretto lo raccoglie con quelli degli altri votanti serviti
+        // in parallelo (al massimo BATCH_SIZE voti o BATCH_DELAY ms) e li invia tutti con un'unica richiesta "batch"
+        // su una sessione già aperta. Sbal verifica le firme del gruppo insieme e risponde con l'esito di ciascun voto.
+        // Nel caso in cui il voto precedente sia diverso da null, è necessario inviare anch'esso ad Sbal.
+        // Infatti Sbal dovrà trovare tale coppia ciphertext-firma nel suo database e sostituirla con il nuovo voto e la sua firma.
+        // Se invece il votante non aveva mai votato (o il suo ultimo voto è stato un annullamento) al posto del vecchio voto si invia null.
+        // Insieme al voto viaggia lo pseudonimo del votante, con cui Sbal ritrova il suo voto corrente senza scorrere il database
+        boolean added = batcherOf(port).submit(pseudonymOf(ID), newSV, oldSV.getVoteCT() != null && oldSV.getSign() != null ? oldSV : null);
+
+        if (added == false) { // il voto non è stato aggiunto in Sbal
+            System.out.println("Vote not added in Sbal " + port + " ERROR");
+            return false;
+        }
 
-        // avvio della connessione tra Splat e il Sbal corretto
-        // Splat fa da client, mentre Sbal fa da server
-        TLSClientBidi platToBal = new TLSClientBidi("localhost", ports[bal], ".\\certificates\\keystorePlat.jks", "serplat");
-        ObjectOutputStream out = new ObjectOutputStream(platToBal.getcSock().getOutputStream());
-        ObjectInputStream in = new ObjectInputStream(platToBal.getcSock().getInputStream());
+        System.out.println("Vote added in Sbal " + port + " SUCCESS"); // voto correttamente aggiunto in Sbal
+        return true;
+    }
 
-        // Splat dice ad Sbal che intende inviare un voto
-        out.writeUTF("voting");
-        out.flush();
+    /**
+     * @brief Metodo che sostituisce il voto di un Voter: prende il vecchio voto
+     * dal database di Splat, invia vecchio e nuovo voto a Sbal e, se Sbal lo
+     * accetta, salva il nuovo voto anche in Splat con un compare-and-set.
+     * Nessun lock viene tenuto mentre si aspetta Sbal: di due voti concorrenti
+     * dello stesso Voter che partono dallo stesso vecchio voto, Sbal ne accetta
+     * uno solo (quello del suo pseudonimo deve essere ancora il vecchio voto)
+     * e l'altro fallisce.
+     * Se Sbal rifiuta il voto o la sua risposta non arriva, Splat chiede a Sbal
+     * il voto corrente del votante (si veda reconcile) invece di dare per
+     * scontato che il voto non sia stato registrato. Mentre è in corso, il
+     * metodo è contato in votesInFlight
+     * @param platDB database di Splat
+     * @param ID ID univoco del Voter
+     * @param sv nuovo voto espresso dal Voter
+     * @return True se il voto è stato aggiunto
+     * @throws java.lang.Exception
+     */
+    private static boolean replaceVote(VotesDB platDB, String ID, SignedVote sv) throws Exception {
+        votesInFlight.merge(ID, 1, Integer::sum);
+        try {
+            return replaceVoteInFlight(platDB, ID, sv);
+        } finally {
+            votesInFlight.computeIfPresent(ID, (k, n) -> n == 1 ? null : n - 1);
+        }
+    }
 
-        if (in.readInt() != 1) { // ricezione di un Nack
-            System.out.println("Sending string voting ERROR"); // c'è stato un errore nell'invio del SignedVote
+    private static boolean replaceVoteInFlight(VotesDB platDB, String ID, SignedVote sv) throws Exception {
+        SignedVote oldSV = platDB.getSignedVote(ID, sv.getSignedPK()); // Splat va a prendere l'eventuale vecchio voto del Votante presente nel database (in corrispondenza delle credenziali del votante)
+        if (sameVote(oldSV, sv)) {
+            return false; // niente da sostituire (ad esempio un annullamento senza un voto precedente)
         }
-        System.out.println("Sending string voting SUCCESS");
-        
-        
-        out.writeObject(newSV); // invio del nuovo SignedVote del votante
-        out.flush();
-        if (in.readBoolean() == false) { // c'è un problema con la firma del ciphertext del voto
-            System.out.println("Digital signature of vote check ERROR");
-            out.close();
-            in.close();
-            platToBal.getcSock().close();
+        Boolean added = trySendToBal(ID, oldSV, sv);
+        if (added != Boolean.TRUE) {
+            oldSV = reconcile(platDB, ID, oldSV, sv, added == null);
+            if (oldSV == null) {
+                return false;
+            }
+        }
+        // Se il nuovo voto viene aggiunto nel database di Sbal, allora viene aggiunto anche nel database di Splat
+        // Questa cosa è importante perché i server effettivamente deputati al conteggio sono gli Sbal, non Splat.
+        // Sbal ha già scartato i voti concorrenti partiti dallo stesso oldSV, quindi qui il confronto riesce
+        // (o il voto è già quello salvato da un riallineamento concorrente)
+        if (!platDB.compareAndSetSignedVote(ID, oldSV, sv) && !sameVote(platDB.getSignedVote(ID, sv.getSignedPK()), sv)) {
+            System.out.println("Vote of " + ID + " changed meanwhile ERROR");
             return false;
         }
-        // nel caso in cui il voto precedente sia diverso da null, è necessario inviare anch'esso ad Sbal.
-        // Infatti Sbal dovrà trovare tala coppia ciphertext-firma nel suo database e sostituirla con il nuovo voto e la sua firma
-        if (oldSV.getVoteCT() != null && oldSV.getSign() != null) {
-            out.writeUTF("two messages"); // Splat dichiara ad Sbal che sta per inviare anche il vecchio voto
-            out.flush();
-
-            out.writeObject(oldSV); // invio del vecchio voto
-            out.flush();
-
-            if (in.readBoolean() == false) {
-                System.out.println("Digital signature of vote check ERROR");
-                out.close();
-                in.close();
-                platToBal.getcSock().close();
-                return false;
+        return true;
+    }
+
+    /**
+     * @brief Metodo chiamato quando Sbal ha rifiutato un voto o quando non si
+     * sa se lo ha registrato: il voto corrente del votante in Sbal dice come
+     * sono andate le cose. Se è il nuovo voto e la risposta si era persa, la
+     * sostituzione è avvenuta (se invece Sbal ha rifiutato il voto, è un altro
+     * voto uguale, ad esempio un annullamento concorrente); se è il vecchio, il voto è stato davvero
+     * rifiutato; se è un altro, o è stato registrato un voto concorrente dello
+     * stesso ID (il cui compare-and-set non è ancora arrivato) e questo voto
+     * fallisce, o il database di Splat non era allineato con Sbal (crash di
+     * Splat tra la risposta di Sbal e la scrittura nel log, o un esito
+     * sconosciuto precedente). I due casi si distinguono con votesInFlight:
+     * solo se non c'è nessun altro voto in corso per l'ID il database viene
+     * riallineato e il voto inviato un'altra volta
+     * @param platDB database di Splat
+     * @param ID ID univoco del Voter
+     * @param oldSV voto del Voter nel database di Splat
+     * @param sv nuovo voto espresso dal Voter
+     * @param unknown True se la risposta di Sbal non è arrivata, False se Sbal
+     * ha rifiutato il voto
+     * @return il voto che il nuovo voto ha sostituito in Sbal, o null se il
+     * nuovo voto non è stato registrato
+     * @throws java.lang.Exception se non è possibile chiedere il voto a Sbal
+     */
+    private static SignedVote reconcile(VotesDB platDB, String ID, SignedVote oldSV, SignedVote sv, boolean unknown) throws Exception {
+        SignedVote current = lookup(ID, sv.getSignedPK());
+        if (sameVote(current, sv)) {
+            if (!unknown) {
+                return null;
             }
+            System.out.println("Vote of " + ID + " found in Sbal SUCCESS");
+            return oldSV;
+        }
+        if (sameVote(current, oldSV)) {
+            return null;
+        }
+        if (votesInFlight.getOrDefault(ID, 0) > 1) {
+            return null; // Sbal ha accettato un voto concorrente dello stesso ID: è questo a fallire
         }
+        if (!platDB.compareAndSetSignedVote(ID, oldSV, current)) {
+            return null; // nel frattempo è stato registrato un altro voto dello stesso ID
+        }
+        System.out.println("Vote of " + ID + " out of sync with Sbal, realigned");
+        Boolean added = trySendToBal(ID, current, sv);
+        if (added == Boolean.TRUE || (added == null && sameVote(lookup(ID, sv.getSignedPK()), sv))) {
+            return current;
+        }
+        return null;
+    }
 
-        // Dato che il vecchio voto era Null, ovvero il votante in questione non aveva mai votato
-        // (o il suo ultimo voto è stato un annullamento) basta che Splat invii solo il nuovo SignedVote
-        out.writeUTF("one message"); 
-        out.flush();
+    /**
+     * @brief Metodo che invia il voto a Sbal (si veda sendToBal)
+     * @return True se Sbal ha registrato il voto, False se lo ha rifiutato,
+     * null se la sua risposta non è arrivata (esito sconosciuto)
+     * @throws java.lang.Exception
+     */
+    private static Boolean trySendToBal(String ID, SignedVote oldSV, SignedVote newSV) throws Exception {
+        try {
+            return sendToBal(ID, oldSV, newSV);
+        } catch (IOException e) {
+            System.out.println("Answer of Sbal " + ring.nodeFor(ID) + " lost ERROR: " + e.getMessage());
+            return null;
+        }
+    }
 
-        if (in.readBoolean() == false) { // il voto non è stato aggiunto in Sbal
-            System.out.println("Vote not added in Sbal " + bal + "ERROR");
-            out.close();
-            in.close();
-            platToBal.getcSock().close();
-            return false;
+    /**
+     * @brief Metodo che chiede allo Sbal del Voter il suo voto corrente
+     * (richiesta "lookup" su una sessione)
+     * @param ID ID univoco del Voter
+     * @param signedPK PK da associare al voto restituito
+     * @return il voto corrente in Sbal (ciphertext e firma null se non ne ha uno)
+     * @throws java.lang.Exception
+     */
+    private static SignedVote lookup(String ID, SchnorrPK signedPK) throws Exception {
+        TLSSessionPool.Session s = balPool.borrow(ring.nodeFor(ID));
+        SignedVote current;
+        try {
+            s.getOut().writeUTF("lookup");
+            s.getOut().writeUTF(pseudonymOf(ID));
+            s.getOut().flush();
+            current = s.getIn().readSignedVote();
+        } catch (IOException e) {
+            balPool.invalidate(s);
+            throw e;
         }
+        balPool.release(s);
+        return current == null ? new SignedVote(null, null, signedPK) : new SignedVote(current.getVoteCT(), current.getSign(), signedPK);
+    }
 
-        System.out.println("Vote added in Sbal " + bal + " SUCCESS"); // voto correttamente aggiunto in Sbal
-        return true;
+    /**
+     * @brief Metodo che confronta due voti (ciphertext e firma)
+     */
+    private static boolean sameVote(SignedVote a, SignedVote b) {
+        return Objects.equals(a.getVoteCT(), b.getVoteCT()) && Objects.equals(a.getSign(), b.getSign());
     }
 
+    /**
+     * @brief Metodo che calcola lo pseudonimo con cui gli Sbal conoscono il
+     * votante: i primi 128 bit dello SHA-256 del suo ID, così l'ID non esce
+     * da Splat
+     * @param ID ID del votante
+     * @return lo pseudonimo in esadecimale
+     */
+    private static String pseudonymOf(String ID) {
+        return Utils.toHex(Utils.sha256().digest(ID.getBytes(StandardCharsets.UTF_8)), 16);
+    }
 
+    /**
+     * @brief Metodo che restituisce il batcher dei voti diretti allo Sbal con
+     * la porta indicata (creato al primo uso)
+     * @param port Numero della porta dello Sbal
+     */
+    private static BallotBatcher batcherOf(int port) {
+        return batchers.computeIfAbsent(port, p -> new BallotBatcher(balPool, p, BATCH_SIZE, BATCH_DELAY));
+    }
+
+    /**
+     * @brief Metodo che crea l'executor delle connessioni: un virtual thread
+     * per connessione se la JVM li supporta (Java 21 o successive), altrimenti
+     * un pool di al massimo MAX_WORKERS thread che cresce e si riduce con le
+     * connessioni e rifiuta quelle in più
+     */
+    private static ExecutorService newWorkers() {
+        try {
+            // chiamata via reflection perché il progetto compila anche per Java 8
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return new ThreadPoolExecutor(0, MAX_WORKERS, 60, TimeUnit.SECONDS, new SynchronousQueue<>());
+        }
+    }
 
+    /**
+     * @brief Metodo che registra una nuova connessione in corso
+     * @return False se lo stop è già arrivato
+     */
+    private static boolean started() {
+        inFlightLock.lock();
+        try {
+            if (stopping) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
 
+    /**
+     * @brief Metodo che registra la fine di una connessione
+     */
+    private static void finished() {
+        inFlightLock.lock();
+        try {
+            inFlight--;
+            drained.signalAll();
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
 
+    /**
+     * @brief Metodo chiamato dalla richiesta di stop: chiude il server socket
+     * e attende che terminino le altre connessioni in corso
+     * @param platFromSomeone server socket di Splat
+     * @throws java.io.IOException
+     * @throws java.lang.InterruptedException
+     */
+    private static void drain(TLSServerBidi platFromSomeone) throws IOException, InterruptedException {
+        inFlightLock.lock();
+        try {
+            stopping = true;
+            platFromSomeone.close(); // il while del main esce dalla accept
+            long left = TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT);
+            while (inFlight > 1 && left > 0) { // 1 è la connessione dello stop stesso
+                left = drained.awaitNanos(left);
+            }
+            if (inFlight > 1) {
+                System.out.println("Waiting for " + (inFlight - 1) + " connections ERROR");
+            }
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
 
     /**
      * @brief Splat si occupa di far registrare e di far votare i Voters e di
@@ -188,10 +423,7 @@ public class Splat {
     public static void main(String[] args) throws IOException, ClassNotFoundException, NoSuchAlgorithmException, Exception {
         
         // setting del keystore e del truststore, con tanto di password
-        System.setProperty("javax.net.ssl.keyStore", ".\\certificates\\keystorePlat.jks");
-        System.setProperty("javax.net.ssl.keyStorePassword", "serplat");
-        System.setProperty("javax.net.ssl.trustStore", ".\\certificates\\truststorePlat.jks");
-        System.setProperty("javax.net.ssl.trustStorePassword", "serplat");
+        TLSContextRegistry.setDefault(".\\certificates\\keystorePlat.jks", "serplat", ".\\certificates\\truststorePlat.jks", "serplat");
 
         // LA PRIMA COSA CHE DEVE FARE SPLAT è CONNETTERSI AD SGEN PER OTTENERE LA PK DI CIFRATURA DEI VOTI
         // Connessione con Sgen per ricevere la PK. Splat fa da server
@@ -199,11 +431,11 @@ public class Splat {
         SSLSocket socket = platFromSomeone.acceptAndCheckClient("CN=sgen,OU=CEN,L=Campania"); // Splat accetta la connessione da Sgen
 
         // Vengono creati i due outputstream per la connessione
-        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-        ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+        WireOutputStream out = new WireOutputStream(socket.getOutputStream());
+        WireInputStream in = new WireInputStream(socket.getInputStream());
 
         // Splat riceve la PK per cifrare i voti da Sgen
-        ElGamalPK PK = (ElGamalPK) in.readObject();
+        ElGamalPK PK = in.readElGamalPK();
         out.writeInt(1); // Splat invia ad Sgen un riscontro del fatto di aver ricevuto la PK: Questo 1 rappresenta un feedback del ricevitore.. una sorta di ack che abbiamo implementato noi
         out.flush();
         System.out.println("Arriving PK SUCCESS");
@@ -216,49 +448,106 @@ public class Splat {
         // INIZIO DELLA FASE DI VOTO
         // I votanti si connettono con Splat
         // Un votante può richiedere la registrazione oppure può richiedere di votare
-        // Si osservi che nell'implementazione, per semplicità, dato che viene lanciata un'unica istanza di Splat,
-        // può essere gestito un solo votante alla volta.
+        // Si osservi che, pur essendo lanciata un'unica istanza di Splat, più votanti vengono serviti in parallelo.
         
         // Connessione con Voter per ottenere credenziali
-        VotesDB platDB = new VotesDB(); // creazione di un'istanza di "database" con campi ID, pwd hashata, salt, ciphertext, firma
-
-        // QUELLO CHE SEGUE è UN WHILE INFINITO.
-        // All'interno di tale while è presente un "break OUTER", il quale, per via dell'etichetta OUTER fa sì che il while
-        // dal quale si esce sia proprio quello più esterno (tipicamente invece un break fa uscire dal ciclo più interno)
-        // IN PRATICA break OUTER determina l'uscita dal while(true) e la terminazione del programma.
-        
-        OUTER: // etichetta associata al break outer di qualche riga più giù
+        // creazione di un'istanza di "database" con campi ID, pwd hashata, salt, ciphertext, firma
+        // (se Splat riparte dopo un crash, registrazioni e voti vengono ripresi dal log)
+        // (e con loro i campi check di databaseMI, così chi ha già ricevuto le credenziali non può registrarsi di nuovo)
+        VotesDB platDB = DB_DIR == null ? new VotesDB(databaseMI) : VotesDB.open(databaseMI, Paths.get(DB_DIR), DB_SYNC, DB_SNAPSHOT);
+
+        // Ogni connessione viene servita da un proprio thread (un virtual thread se la JVM li supporta),
+        // così un votante lento o un Sbal lento non bloccano gli altri votanti.
+        // Il while termina quando la richiesta di stop chiude il server socket
+        ExecutorService workers = newWorkers();
         while (true) {
-            socket = platFromSomeone.accept(); // accept direttamente (e non acceptAndCheckClient) perché potrebbe arrivare una richesta da uno qualsiasi dei votanti
-            // stream per la comunicazione
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
-            
-            String request = in.readUTF(); // Splat legge una stringa che gli arriva dal votante
-            // A cosa serve la variabile request?
-            // Quando qualcuno si collega ad Splat deve "dichiarare" per quale motivo lo sta facendo.
-            // Tale dichiarazione va proprio nella stringa request
-            if (null != request) {
-                // se request è diverso da null si procede con uno switch case.
-                // Ci sono tre casi gestiti con lo switch case seguente:
-                // (1) richiesta di registrazione di un votante,
-                // (2) richiesta di votazione di un votante,
-                // (3) richiesta di stop dal server Timer 
-                switch (request) {
-                    case "registration":
-                        System.out.println("I received a request for an ID");
-                        // Grazie a TLS, Splat ha ricevuto il certificato del votante che ha richiesto la registrazione
-                        // quindi può richiamare direttamente un metodo che si occupa di fare una verifica del certificato,
-                        // ovvero verifica che il codice fiscale si trovi in un certo database
-                        String CF = cdVerify(socket.getSession());
-                        if (CF == null) { // le credenziali non devono essere erogate
-                            System.out.println("CD check ERROR");
-                            out.writeBoolean(false); // Splat invia un "false" al votante per fargli capire che qualcosa non va e si chiude la connessione
-                            out.flush();
-                            out.close();
-                            in.close();
-                            socket.close();
-                        } else { // è tutto apposto e le credenziali possono essere erogate
+            SSLSocket conn;
+            try {
+                conn = platFromSomeone.acceptPending(); // accept direttamente (e non acceptAndCheckClient) perché potrebbe arrivare una richesta da uno qualsiasi dei votanti
+            } catch (SocketException e) {
+                if (stopping) {
+                    break; // server socket chiuso dallo stop
+                }
+                throw e;
+            }
+            if (!started()) { // lo stop è già arrivato: la connessione non viene servita
+                conn.close();
+                break;
+            }
+            try {
+                workers.execute(() -> {
+                    try {
+                        serve(conn, PK, platDB, platFromSomeone);
+                    } catch (Exception e) {
+                        System.out.println("Connection ERROR: " + e);
+                    } finally {
+                        try {
+                            conn.close();
+                        } catch (IOException e) {
+                            // connessione già chiusa
+                        }
+                        finished();
+                    }
+                });
+            } catch (RejectedExecutionException e) { // tutti i MAX_WORKERS thread sono occupati: la connessione non viene servita
+                System.out.println("Too many connections ERROR");
+                conn.close();
+                finished();
+            }
+        }
+        workers.shutdown();
+        workers.awaitTermination(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @brief Metodo che serve una connessione (una registrazione, un voto o lo
+     * stop). Viene eseguito in parallelo per connessioni diverse
+     * @param socket Socket della connessione
+     * @param PK PK di El Gamal per cifrare i voti
+     * @param platDB database di Splat
+     * @param platFromSomeone server socket di Splat, chiuso allo stop
+     * @throws java.lang.Exception
+     */
+    private static void serve(SSLSocket socket, ElGamalPK PK, VotesDB platDB, TLSServerBidi platFromSomeone) throws Exception {
+        socket.setSoTimeout(READ_TIMEOUT); // vale anche per l'handshake
+        socket.startHandshake(); // l'handshake viene fatto qui e non nel thread che accetta le connessioni
+        WireOutputStream out = new WireOutputStream(socket.getOutputStream());
+        WireInputStream in = new WireInputStream(socket.getInputStream());
+
+        String request = in.readUTF(); // Splat legge una stringa che gli arriva dal votante
+        // A cosa serve la variabile request?
+        // Quando qualcuno si collega ad Splat deve "dichiarare" per quale motivo lo sta facendo.
+        // Tale dichiarazione va proprio nella stringa request
+        if (null != request) {
+            // se request è diverso da null si procede con uno switch case.
+            // Ci sono tre casi gestiti con lo switch case seguente:
+            // (1) richiesta di registrazione di un votante,
+            // (2) richiesta di votazione di un votante,
+            // (3) richiesta di stop dal server Timer 
+            switch (request) {
+                case "registration":
+                    System.out.println("I received a request for an ID");
+                    // Grazie a TLS, Splat ha ricevuto il certificato del votante che ha richiesto la registrazione
+                    // quindi può richiamare direttamente un metodo che si occupa di fare una verifica del certificato,
+                    // ovvero verifica che il codice fiscale si trovi in un certo database
+                    String CF = cdVerify(socket.getSession());
+                    // il CF viene prenotato subito (check da 0 a 1), così due registrazioni concorrenti dello stesso
+                    // votante non possono ottenere entrambe le credenziali; se la registrazione fallisce la prenotazione viene annullata.
+                    // La prenotazione passa per il log del database di Splat, così sopravvive a un crash
+                    if (CF != null && !platDB.replaceCheck(CF, 0, 1)) {
+                        System.out.println("Credential already emitted ERROR");
+                        CF = null;
+                    }
+                    if (CF == null) { // le credenziali non devono essere erogate
+                        System.out.println("CD check ERROR");
+                        out.writeBoolean(false); // Splat invia un "false" al votante per fargli capire che qualcosa non va e si chiude la connessione
+                        out.flush();
+                        out.close();
+                        in.close();
+                        socket.close();
+                    } else { // è tutto apposto e le credenziali possono essere erogate
+                        boolean registered = false;
+                        try {
                             System.out.println("CD check SUCCESS");
                             out.writeBoolean(true);  // Splat invia un "true" al votante per fargli capire che è tutto okay
                             out.flush();
@@ -275,7 +564,7 @@ public class Splat {
                                 System.out.println("Sending ID SUCCESS");
 
                                 // Splat ora si mette in attesa di una password dal Voter, in particolare si aspetta di leggere un oggetto di tipo Credential
-                                Credential cred = (Credential) in.readObject(); // un oggetto di tipo Credential contiene ID e password
+                                Credential cred = in.readCredential(); // un oggetto di tipo Credential contiene ID e password
 
                                 // Splat riceve le credenziali impostate
                                 if (!ID.equals(cred.getID())) { // l'ID deve essere esattamente uguale a quello che Splat ha appena impostato per il votante
@@ -302,8 +591,8 @@ public class Splat {
                                         System.out.println("Adding credential SUCCESS"); // credenziali correttamente aggiunte al databse di Splat
                                         out.writeBoolean(true); //invio True al voter
                                         out.flush();
-                                        // viene impostato a 1 il campo check associato al codice fiscale del votante
-                                        databaseMI.put(CF, 1); //assumiamo funzioni sempre (non vengono fatti ulteriori controlli)
+                                        // il campo check associato al codice fiscale del votante resta a 1
+                                        registered = true;
                                     }
                                 }
                             } else { // il votante non ha ricevuto l'ID
@@ -312,90 +601,103 @@ public class Splat {
                                 in.close();
                                 socket.close(); // chiusura della connessione
                             }
+                        } finally {
+                            if (!registered) {
+                                platDB.replaceCheck(CF, 1, 0); // registrazione non completata: il votante potrà riprovare
+                            }
                         }
-                        break;
-                    case "voting":
-                        Credential cred = (Credential) in.readObject(); // Splat riceve le credenziali dal votante
-                        if (platDB.checkCredential(cred) == false) { // checkCredential() è un metodo che controlla ID e password inseriti dal votante
-                            System.out.println("Credential check ERROR"); // problemi con le credenziali
-                            out.writeBoolean(false); // Splat invia false al votante
-                            out.flush();
-                            out.close();
-                            in.close();
-                            socket.close(); // chiusura della connessione
-                        } else {
-                            System.out.println("Credential check SUCCESS"); // le credenziali sono okay
-                            out.writeBoolean(true); // Splat invia True al votante
-                            out.flush();
+                    }
+                    break;
+                case "voting":
+                    Credential cred = in.readCredential(); // Splat riceve le credenziali dal votante
+                    if (platDB.checkCredential(cred) == false) { // checkCredential() è un metodo che controlla ID e password inseriti dal votante
+                        System.out.println("Credential check ERROR"); // problemi con le credenziali
+                        out.writeBoolean(false); // Splat invia false al votante
+                        out.flush();
+                        out.close();
+                        in.close();
+                        socket.close(); // chiusura della connessione
+                    } else {
+                        System.out.println("Credential check SUCCESS"); // le credenziali sono okay
+                        out.writeBoolean(true); // Splat invia True al votante
+                        out.flush();
 
-                            out.writeObject(PK); // Splat invia la PK di El Gamal per cifrare il voto (si noti che questa PK è quella ottenuta dall'aggregazione dei pezzi di PK presenti nelle share) 
-                            out.flush();
-                            if (in.readInt() == 1) { // ricezione dell'ACK proveniente dal votante
-                                System.out.println("Sending PK SUCCESS");
-
-                                SignedVote sv = (SignedVote) in.readObject(); // Splat riceve il pacchetto del voto dal Voter (istanza di SignedVote)
-                                SignedVote oldSV = null; // SignedVote che serve per gestire il caso in cui il votante abbia già votato
-
-                                // se sia il ciphertext del voto sia la firma del ciphertext del voto sono diversi da null, 
-                                // allora significa che il votante ha effettivamente votato qualcosa
-                                if (sv.getVoteCT() != null && sv.getSign() != null) {
-                                    // si effettua la verify sulla firma del ciphertext
-                                    if (!Schnorr.verify(sv.getSign(), sv.getSignedPK(), Utils.toString(Utils.objToByteArray(sv.getVoteCT())))) {
-                                        System.out.println("Digital signature of vote check ERROR"); // problema sulla firma digitale
-                                        out.writeBoolean(false); // invio di False al Votante
-                                        out.flush();
-                                        out.close();
-                                        in.close();
-                                        socket.close(); // chiusura della connessione 
-                                    } else {
-                                        // se arriviamo qui il voto espresso è diverso da null ed è firmato correttamente
-                                        System.out.println("Digital signature of vote check SUCCESS"); // è tutto okay con la firma del ciphertext
-                                        
-                                        oldSV = platDB.getSignedVote(cred.getID(), sv.getSignedPK()); // Splat va a prendere l'eventuale vecchio voto del Votante presente nel database (in corrispondenza delle credenziali del votante)
-                                        
-                                        if (sendToBal(cred.getID(), oldSV, sv)) { // viene chiamato il metodo SendToBal
-                                            // Se il nuovo voto viene aggiunto nel database di Sbal, allora viene aggiunto anche nel database di Splat
-                                            // Questa cosa è importante perché i server effettivamente deputati al conteggio sono gli Sbal, non Splat
-                                            platDB.setSignedVote(cred.getID(), sv); 
-                                            System.out.println("Adding vote SUCCESS"); // voto correttamente aggiunto nel database di Splat
-                                            out.writeBoolean(true); // Splat invia True al voter
-                                            out.flush();
-                                        } else {
-                                            System.out.println("Adding vote ERROR"); // voto non aggiunto al database di Splat
-                                            out.writeBoolean(false); // Splat invia False al voter
-                                            out.flush();
-                                        }
-                                    }
+                        out.writeElGamalPK(PK); // Splat invia la PK di El Gamal per cifrare il voto (si noti che questa PK è quella ottenuta dall'aggregazione dei pezzi di PK presenti nelle share) 
+                        out.flush();
+                        if (in.readInt() == 1) { // ricezione dell'ACK proveniente dal votante
+                            System.out.println("Sending PK SUCCESS");
+
+                            SignedVote sv = in.readSignedVote(); // Splat riceve il pacchetto del voto dal Voter (istanza di SignedVote)
+
+                            // se sia il ciphertext del voto sia la firma del ciphertext del voto sono diversi da null, 
+                            // allora significa che il votante ha effettivamente votato qualcosa
+                            if (sv.getVoteCT() != null && sv.getSign() != null) {
+                                // C e C2 devono essere elementi del gruppo di PK (sulla curva, o nel sottogruppo di ordine q):
+                                // la firma copre solo la codifica canonica, e un ciphertext fuori dal gruppo nel conteggio
+                                // renderebbe impossibile decifrare il risultato. Solo dopo si effettua la verify sulla firma del ciphertext
+                                if (!sv.getVoteCT().isValid(PK)) {
+                                    System.out.println("Vote ciphertext check ERROR"); // ciphertext non valido
+                                    out.writeBoolean(false); // invio di False al Votante
+                                    out.flush();
+                                    out.close();
+                                    in.close();
+                                    socket.close(); // chiusura della connessione
+                                } else if (!Schnorr.verify(sv.getSign(), sv.getSignedPK(), sv.getVoteCT().encode(PK))) {
+                                    System.out.println("Digital signature of vote check ERROR"); // problema sulla firma digitale
+                                    out.writeBoolean(false); // invio di False al Votante
+                                    out.flush();
+                                    out.close();
+                                    in.close();
+                                    socket.close(); // chiusura della connessione 
                                 } else {
-                                    // il voto inviato è null, quindi non serve fare la verify
-                                    oldSV = platDB.getSignedVote(cred.getID(), sv.getSignedPK()); // Splat va a prendere l'eventuale vecchio voto del Votante presente nel database (in corrispondenza delle credenziali del votante)
-                                    if (sendToBal(cred.getID(), oldSV, sv)) { // inserimento del voto in Sbal
-                                        platDB.setSignedVote(cred.getID(), sv); // inserimento del voto anche in Splat
-                                        System.out.println("Adding vote SUCCESS");
-                                        out.writeBoolean(true); // Splat invia true al voter
+                                    // se arriviamo qui il voto espresso è diverso da null ed è firmato correttamente
+                                    System.out.println("Digital signature of vote check SUCCESS"); // è tutto okay con la firma del ciphertext
+                                    
+                                    if (replaceVote(platDB, cred.getID(), sv)) { // viene chiamato il metodo replaceVote, che chiama sendToBal
+                                        System.out.println("Adding vote SUCCESS"); // voto correttamente aggiunto nel database di Splat
+                                        out.writeBoolean(true); // Splat invia True al voter
                                         out.flush();
-                                    } else { // voto non aggiunto in Sbal
-                                        System.out.println("Adding vote ERROR");
-                                        out.writeBoolean(false); // Splat invia false al voter
+                                    } else {
+                                        System.out.println("Adding vote ERROR"); // voto non aggiunto al database di Splat
+                                        out.writeBoolean(false); // Splat invia False al voter
                                         out.flush();
                                     }
                                 }
-                            } else { // il votante non ha ricevuto la PK
-                                System.out.println("Sending PK ERROR");
+                            } else {
+                                // il voto inviato è null, quindi non serve fare la verify
+                                if (replaceVote(platDB, cred.getID(), sv)) { // inserimento del voto in Sbal e in Splat
+                                    System.out.println("Adding vote SUCCESS");
+                                    out.writeBoolean(true); // Splat invia true al voter
+                                    out.flush();
+                                } else { // voto non aggiunto in Sbal
+                                    System.out.println("Adding vote ERROR");
+                                    out.writeBoolean(false); // Splat invia false al voter
+                                    out.flush();
+                                }
                             }
+                        } else { // il votante non ha ricevuto la PK
+                            System.out.println("Sending PK ERROR");
                         }
-                        break;
-                    case "stop":
-                        out.writeInt(1); // richiesta di stop arrivata (inviata dal server Timer)
-                        out.flush();
-                        System.out.println("e-ballot ended");
-                        out.close();
-                        in.close();
-                        socket.close();
-                        break OUTER;    // non è necessario accettare più richieste, si può uscire dal while infinito e terminare il programma
-                    default:
-                        System.out.println("Request not accepted ERROR");
-                }
+                    }
+                    break;
+                case "stop":
+                    // non si accettano più connessioni e si aspetta che le richieste già in corso terminino
+                    drain(platFromSomeone);
+                    for (BallotBatcher b : batchers.values()) {
+                        b.close(); // invio degli ultimi gruppi di voti
+                    }
+                    balPool.close(); // chiusura delle sessioni con gli Sbal, che così possono ricevere lo stop dal Timer
+                    platDB.close(); // fsync e chiusura del log del database
+                    System.out.println(PasswordHasher.defaults()); // metriche dell'hashing delle password (coda, attese, rifiuti)
+                    out.writeInt(1); // richiesta di stop arrivata (inviata dal server Timer)
+                    out.flush();
+                    System.out.println("e-ballot ended");
+                    out.close();
+                    in.close();
+                    socket.close();
+                    break;
+                default:
+                    System.out.println("Request not accepted ERROR");
             }
         }
     }
@@ -1,13 +1,15 @@
 package servers;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import javax.net.ssl.SSLSocket;
 import utility.ElGamalCT;
 import utility.SchnorrSig;
+import utility.ShardRing;
+import utility.TLSContextRegistry;
 import utility.TLSServerBidi;
+import utility.WireInputStream;
+import utility.WireOutputStream;
 
 /**
  *
@@ -16,7 +18,7 @@ import utility.TLSServerBidi;
 public class Stab {
 
     // quelli sotto riportati sono i numeri di porta dei server Sbal
-    private static final int[] ports = {50000, 50001, 50002};
+    private static final int[] ports = ShardRing.defaults().getPorts(); // porte degli Sbal
 
     /**
      * @brief Stab si occupa di fare un merge tra tutti i database locali dei
@@ -28,10 +30,7 @@ public class Stab {
     public static void main(String[] args) throws IOException, ClassNotFoundException {
         
         // definizione di key store e trust store
-        System.setProperty("javax.net.ssl.keyStore", ".\\certificates\\keystoreTab.jks");
-        System.setProperty("javax.net.ssl.keyStorePassword", "sertab");
-        System.setProperty("javax.net.ssl.trustStore", ".\\certificates\\truststoreTab.jks");
-        System.setProperty("javax.net.ssl.trustStorePassword", "sertab");
+        TLSContextRegistry.setDefault(".\\certificates\\keystoreTab.jks", "sertab", ".\\certificates\\truststoreTab.jks", "sertab");
 
         // Creazione di una Hash Map destinata a contenere coppie "cifrature di voti -- firme", con cifrature come chiavi
         HashMap<ElGamalCT, SchnorrSig> listVotes = new HashMap<>(); 
@@ -42,11 +41,11 @@ public class Stab {
             // accettazione delle richieste di connessione provenienti dagli Sbal
             // check del fatto che la connessione provenga da un Sbal
             SSLSocket socket = tabFromBal.acceptAndCheckClient("CN=sbal,OU=CEN,L=Campania");
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            WireOutputStream out = new WireOutputStream(socket.getOutputStream());
+            WireInputStream in = new WireInputStream(socket.getInputStream());
 
             // tutte le coppie "cifrature di voti -- firme" che arrivano da un Sbal vengono direttamente messe nel database listVotes
-            listVotes.putAll((HashMap<ElGamalCT, SchnorrSig>) in.readObject());
+            listVotes.putAll(in.readBallots());
             out.writeInt(1); // invio di ack al Sbal
             out.flush();
         }
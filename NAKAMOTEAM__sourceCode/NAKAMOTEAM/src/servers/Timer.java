@@ -1,11 +1,15 @@
 package servers;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 import javax.net.ssl.SSLSocket;
+import utility.ShardRing;
 import utility.TLSClientBidi;
+import utility.TLSContextRegistry;
 import utility.TLSServerBidi;
+import utility.WireInputStream;
+import utility.WireOutputStream;
 
 /**
  *
@@ -14,7 +18,7 @@ import utility.TLSServerBidi;
 public class Timer {
 
      // quelli sotto riportati sono i numeri di porta rispettivamente di Sgen e degli Sbal
-    private static final int[] ports = {50010, 50000, 50001, 50002};
+    private static final int[] ports = IntStream.concat(IntStream.of(50010), Arrays.stream(ShardRing.defaults().getPorts())).toArray();
 
     /**
      * @brief Timer si occupa di scandire il tempo di durata della finestra
@@ -26,10 +30,7 @@ public class Timer {
     public static void main(String[] args) throws IOException, InterruptedException, Exception {
         
         // come per tutti gli altri server, è necessario impostare keystore e truststore
-        System.setProperty("javax.net.ssl.keyStore", ".\\certificates\\keystoreTim.jks");
-        System.setProperty("javax.net.ssl.keyStorePassword", "sertim");
-        System.setProperty("javax.net.ssl.trustStore", ".\\certificates\\truststoreTim.jks");
-        System.setProperty("javax.net.ssl.trustStorePassword", "sertim");
+        TLSContextRegistry.setDefault(".\\certificates\\keystoreTim.jks", "sertim", ".\\certificates\\truststoreTim.jks", "sertim");
 
         // Connessione con Sgen per avviare la finestra temporale [T1-T2] delle votazioni
         TLSServerBidi timFromGen = new TLSServerBidi(50021); // La porta su cui il server Timer attende la connessione è 50.021
@@ -54,8 +55,8 @@ public class Timer {
         // questo provi a contattare Sbal, questo è fuori uso --> viene lanciata un'eccezione
         for (int i = 0; i < ports.length; i++) {  
             TLSClientBidi timerToSomeone = new TLSClientBidi("localhost", ports[i], ".\\certificates\\keystoreTim.jks", "sertim");
-            ObjectOutputStream out = new ObjectOutputStream(timerToSomeone.getcSock().getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(timerToSomeone.getcSock().getInputStream());
+            WireOutputStream out = new WireOutputStream(timerToSomeone.getcSock().getOutputStream());
+            WireInputStream in = new WireInputStream(timerToSomeone.getcSock().getInputStream());
 
             out.writeUTF("stop"); // richiesta di stop
             out.flush();
@@ -1,19 +1,22 @@
 package servers;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.math.BigInteger;
+import java.util.HashMap;
 import javax.net.ssl.SSLSocket;
 import utility.Credential;
 import utility.ElGamalCT;
 import utility.ElGamalEnc;
 import utility.ElGamalPK;
+import utility.ElGamalRandomnessPool;
 import utility.Schnorr;
+import utility.SchnorrParameters;
 import utility.SchnorrSig;
 import utility.SignedVote;
 import utility.TLSClientBidi;
-import utility.Utils;
+import utility.TLSContextRegistry;
+import utility.WireInputStream;
+import utility.WireOutputStream;
 
 /**
  *
@@ -21,6 +24,25 @@ import utility.Utils;
  */
 public class Voter {
 
+    // per ogni PK di El Gamal ricevuta viene avviato un pool che precalcola in background le coppie (g^r, h^r):
+    // al momento del voto la cifratura costa una sola moltiplicazione modulare
+    private static final HashMap<ElGamalPK, ElGamalRandomnessPool> pools = new HashMap<>();
+
+    /**
+     * @brief Metodo che restituisce il pool di randomness associato alla PK,
+     * creandolo e avviandolo la prima volta che la PK viene vista
+     * @param PK PK di El Gamal usata per cifrare i voti
+     */
+    private static ElGamalRandomnessPool poolFor(ElGamalPK PK) {
+        ElGamalRandomnessPool pool = pools.get(PK);
+        if (pool == null) {
+            pool = new ElGamalRandomnessPool(PK, 4, 16, 1); // watermark bassa 4, alta 16, un thread in background
+            pool.start();
+            pools.put(PK, pool);
+        }
+        return pool;
+    }
+
     /**
      * @brief Metodo che permette di ottenere un ID personale dopo aver
      * verificato la correttezza del certificato digitale
@@ -30,7 +52,7 @@ public class Voter {
      * @throws java.io.IOException
      * @throws java.lang.ClassNotFoundException
      */
-    private static String sendCDForID(SSLSocket socket, ObjectOutputStream out, ObjectInputStream in) throws IOException, ClassNotFoundException, Exception {
+    private static String sendCDForID(SSLSocket socket, WireOutputStream out, WireInputStream in) throws IOException, ClassNotFoundException, Exception {
         System.out.println("I want an ID");
         out.writeUTF("registration"); // IL VOTER INVIA UNA RICHIESTA PER FARE LA REGISTRAZIONE
         out.flush();
@@ -58,7 +80,7 @@ public class Voter {
      * @param in Stream di input della connessione
      * @throws java.io.IOException
      */
-    private static Credential sendCredential(String ID, String pwd, SSLSocket socket, ObjectOutputStream out, ObjectInputStream in) throws IOException, Exception {
+    private static Credential sendCredential(String ID, String pwd, SSLSocket socket, WireOutputStream out, WireInputStream in) throws IOException, Exception {
        // questo metodo prende in input l'ID, la password, la socket e gli stream (l'occorrente per la connessione in atto)
         
         if ("".equals(pwd)) { // la password non deve essere vuota
@@ -67,7 +89,7 @@ public class Voter {
         }
 
         Credential cred = new Credential(ID, pwd); // creazione di un oggetto Credential, formato da ID e password
-        out.writeObject(cred); // invio dell'oggetto Credential verso Splat
+        out.writeCredential(cred); // invio dell'oggetto Credential verso Splat
         out.flush();
 
         if (in.readBoolean() == false) { // entriamo qui se l'ID che il votante ha inviato non è esattamente quello che ha appena ricevuto
@@ -106,14 +128,14 @@ public class Voter {
 
         // avvio della connessione tra Votante (che fa da client) ed Splat (che fa da server)
         TLSClientBidi votToPlat = new TLSClientBidi("localhost", 50010, ".\\certificates\\voter" + numVoter + ".jks", "voter" + numVoter); // concatenazione del numero del votante per inviare il certificato corretto
-        ObjectOutputStream out = new ObjectOutputStream(votToPlat.getcSock().getOutputStream());
-        ObjectInputStream in = new ObjectInputStream(votToPlat.getcSock().getInputStream());
+        WireOutputStream out = new WireOutputStream(votToPlat.getcSock().getOutputStream());
+        WireInputStream in = new WireInputStream(votToPlat.getcSock().getInputStream());
 
         System.out.println("I want to vote");
         out.writeUTF("voting"); // Il votante dice ad Splat che intende votare inviandogli la stringa "voting"
         out.flush();
 
-        out.writeObject(cred); // il votante invia le credenziali
+        out.writeCredential(cred); // il votante invia le credenziali
         out.flush();
 
         if (in.readBoolean() == false) { // io votante non ho inserito credenziali corrette
@@ -127,10 +149,13 @@ public class Voter {
         // il votante si pone in attesa della chiave pubblica PK di El Gamal per cifrare.
         // Si osservi che ogni volta che un votante deve votare, Splat gli invia la PK per cifrare il voto,
         // anche se il votante vota più volte (ogni volta Splat gli manda la PK)
-        ElGamalEnc PKEnc = new ElGamalEnc((ElGamalPK) in.readObject()); // il votante riceve la PK
+        ElGamalPK PK = in.readElGamalPK(); // il votante riceve la PK
+        ElGamalEnc PKEnc = new ElGamalEnc(PK, poolFor(PK)); // la cifratura usa le coppie (g^r, h^r) precalcolate
         out.writeInt(1); // il votante invia un ACK ad Splat per indicare di aver ricevuto correttamente la PK
         out.flush();
-        Schnorr signer = new Schnorr(512); // il votante crea un'istanza di Schnorr, che poi serve per firmare il ciphertext del voto
+        // il votante crea un'istanza di Schnorr, che poi serve per firmare il ciphertext del voto.
+        // il gruppo è quello predefinito e già validato: generare la chiave costa un solo esponente casuale
+        Schnorr signer = new Schnorr(SchnorrParameters.defaults());
 
         ElGamalCT voteCT = null; // oggetto destinato a contenere il ciphertext del voto
         SchnorrSig sign = null; // oggetto destinato a contenere la firma del ciphertext
@@ -140,11 +165,11 @@ public class Voter {
             // cifratura del voto
             voteCT = PKEnc.encryptInTheExponent(BigInteger.valueOf(Integer.parseInt(vote))); // si usa il metodo encryptInTheExponent() perché usiamo la variazione di El Gamal
             // firma con Schnorr del voto appena cifrato
-            sign = signer.sign(Utils.toString(Utils.objToByteArray(voteCT)));
+            sign = signer.sign(voteCT.encode(PK)); // si firma la codifica binaria canonica del ciphertext
         }
 
         // se il voto espresso è uguale a null, anche gli oggetti voteCT e sign vengono lasciati a null
-        out.writeObject(new SignedVote(voteCT, sign, signer.getPK())); // invio di voto cifrato, firma e PK del votante, sottoforma di oggetto SignedVote, ad Splat
+        out.writeSignedVote(new SignedVote(voteCT, sign, signer.getPK())); // invio di voto cifrato, firma e PK del votante, sottoforma di oggetto SignedVote, ad Splat
         out.flush();
 
         if (in.readBoolean() == false) { // arriva un False da Splat
@@ -180,8 +205,7 @@ public class Voter {
         // setting delle proprietà del Voter
         // Si osservi che un Voter contiene solo il trust store, non ha il key store.
         // Un voter ha comunque un certificato e lo utilizza per collegarsi direttamente tramite TLS
-        System.setProperty("javax.net.ssl.trustStore", ".\\certificates\\truststoreVoters.jks");
-        System.setProperty("javax.net.ssl.trustStorePassword", "voters");
+        TLSContextRegistry.setDefault(null, null, ".\\certificates\\truststoreVoters.jks", "voters");
         
         // ATTENZIONE: IL MAIN DELLA CLASSE Voter CONTIENE TANTE ISTANZE DI VOTANTI.
         // IN PRATICA, DIRETTAMENTE NEL MAIN CI SONO TUTTE LE ISTANZE DEI VOTANTI.
@@ -198,8 +222,8 @@ public class Voter {
         // Si osservi che quando un server fa una acceptAndCheck, è il server che va direttamente a verificare alcuni campi del certificato del client.
         // Nel caso di una accept, invece, è importante che il client si presenti con il proprio keystore e che questo si trovi nel trust store del server.7
         // Il certificato del votante dopo servirà anche per fare il check sul suo codice fiscale.
-        ObjectOutputStream out = new ObjectOutputStream(votToPlat.getcSock().getOutputStream());
-        ObjectInputStream in = new ObjectInputStream(votToPlat.getcSock().getInputStream());
+        WireOutputStream out = new WireOutputStream(votToPlat.getcSock().getOutputStream());
+        WireInputStream in = new WireInputStream(votToPlat.getcSock().getInputStream());
 
         // Viene richiamato il metodo sendCDForID: lo scopo è inviare il certificato digitale per ricevere un identificatore.
         // Si osservi che sendCDForID() prende in input la socket della connessione appena stabiliti e gli stream di input e di output
@@ -229,8 +253,8 @@ public class Voter {
         
         // Voter 2 usa ID di Voter 1 poi il suo e vota
         votToPlat = new TLSClientBidi("localhost", 50010, ".\\certificates\\voter2.jks", "voter2");
-        out = new ObjectOutputStream(votToPlat.getcSock().getOutputStream());
-        in = new ObjectInputStream(votToPlat.getcSock().getInputStream());
+        out = new WireOutputStream(votToPlat.getcSock().getOutputStream());
+        in = new WireInputStream(votToPlat.getcSock().getInputStream());
 
         String ID2 = sendCDForID(votToPlat.getcSock(), out, in);
         Credential cred2 = null;
@@ -243,8 +267,8 @@ public class Voter {
         votToPlat.getcSock().close();
 
         votToPlat = new TLSClientBidi("localhost", 50010, ".\\certificates\\voter2.jks", "voter2");
-        out = new ObjectOutputStream(votToPlat.getcSock().getOutputStream());
-        in = new ObjectInputStream(votToPlat.getcSock().getInputStream());
+        out = new WireOutputStream(votToPlat.getcSock().getOutputStream());
+        in = new WireInputStream(votToPlat.getcSock().getInputStream());
 
         ID2 = sendCDForID(votToPlat.getcSock(), out, in);
         cred2 = null;
@@ -268,8 +292,8 @@ public class Voter {
         
         // Voter 3 accede correttamente in piattaforma con il proprio ID, vota 0, annulla il voto, vota -1
         votToPlat = new TLSClientBidi("localhost", 50010, ".\\certificates\\voter3.jks", "voter3");
-        out = new ObjectOutputStream(votToPlat.getcSock().getOutputStream());
-        in = new ObjectInputStream(votToPlat.getcSock().getInputStream());
+        out = new WireOutputStream(votToPlat.getcSock().getOutputStream());
+        in = new WireInputStream(votToPlat.getcSock().getInputStream());
 
         String ID3 = sendCDForID(votToPlat.getcSock(), out, in);
         Credential cred3 = null;
@@ -297,8 +321,8 @@ public class Voter {
         
         // Voter 4 vota annulla senza aver mai votato, quindi va in contro ad un NO PREVIOUS VOTE ERROR
         votToPlat = new TLSClientBidi("localhost", 50010, ".\\certificates\\voter4.jks", "voter4");
-        out = new ObjectOutputStream(votToPlat.getcSock().getOutputStream());
-        in = new ObjectInputStream(votToPlat.getcSock().getInputStream());
+        out = new WireOutputStream(votToPlat.getcSock().getOutputStream());
+        in = new WireInputStream(votToPlat.getcSock().getInputStream());
 
         String ID4 = sendCDForID(votToPlat.getcSock(), out, in);
         Credential cred4 = null;
@@ -324,8 +348,8 @@ public class Voter {
         
         // Voter 5 tenta di accedere, ma non ha i requisiti richiesti
         votToPlat = new TLSClientBidi("localhost", 50010, ".\\certificates\\voter5.jks", "voter5");
-        out = new ObjectOutputStream(votToPlat.getcSock().getOutputStream());
-        in = new ObjectInputStream(votToPlat.getcSock().getInputStream());
+        out = new WireOutputStream(votToPlat.getcSock().getOutputStream());
+        in = new WireInputStream(votToPlat.getcSock().getInputStream());
 
         String ID5 = sendCDForID(votToPlat.getcSock(), out, in);
 
@@ -342,8 +366,8 @@ public class Voter {
 
         // Voter 1 tenta di ottenere nuove credenziali, ma ce le ha già quindi gli vengono negate
         votToPlat = new TLSClientBidi("localhost", 50010, ".\\certificates\\voter1.jks", "voter1");
-        out = new ObjectOutputStream(votToPlat.getcSock().getOutputStream());
-        in = new ObjectInputStream(votToPlat.getcSock().getInputStream());
+        out = new WireOutputStream(votToPlat.getcSock().getOutputStream());
+        in = new WireInputStream(votToPlat.getcSock().getInputStream());
 
         ID1 = sendCDForID(votToPlat.getcSock(), out, in);
 
@@ -0,0 +1,173 @@
+package utility;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class BallotBatcher {
+
+    // Groups the votes going to one Sbal: the callers of submit() wait while their votes are collected
+    // for at most maxDelay milliseconds or until maxBatch of them are ready, then the whole group is
+    // sent as a single "batch" request on a session of the pool and one BATCH_STATUS answer tells every
+    // caller whether its vote was registered. The next batch is collected while the previous ones are
+    // still on their way, so under load as many batches are in flight as the pool has sessions.
+    // If the answer does not arrive, the Sbal may or may not have registered the votes of the batch:
+    // submit then throws an IOException, never returns false, and the caller has to ask the Sbal
+    // for the current ballot of the voter (request "lookup") to know which one is the case.
+
+    private final TLSSessionPool pool;
+    private final int port;
+    private final int maxBatch;
+    private final long maxDelay;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition arrived = lock.newCondition();
+    private VoteBatch pending = new VoteBatch();
+    private ArrayList<CompletableFuture<Boolean>> waiting = new ArrayList<>();
+    private long firstArrival; // when the oldest pending vote arrived
+    private boolean closed;
+
+    private final Thread collector;
+    private final ExecutorService senders;
+
+    public BallotBatcher(TLSSessionPool pool, int port, int maxBatch, long maxDelay) {
+        this.pool = pool;
+        this.port = port;
+        this.maxBatch = maxBatch;
+        this.maxDelay = maxDelay;
+        this.senders = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "batch-sender-" + port);
+            t.setDaemon(true);
+            return t;
+        });
+        this.collector = new Thread(this::collect, "batch-collector-" + port);
+        collector.setDaemon(true);
+        collector.start();
+    }
+
+    /**
+     * Sends newSV of the voter pseudonym (replacing oldSV, or null) with the next batch and waits for
+     * the answer of the Sbal.
+     *
+     * @return true if the Sbal registered the vote, false if it refused it
+     * @throws IOException if the answer did not arrive: the vote may have been registered or not
+     */
+    public boolean submit(String pseudonym, SignedVote newSV, SignedVote oldSV) throws IOException {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("batcher closed");
+            }
+            if (pending.size() == 0) {
+                firstArrival = System.nanoTime();
+            }
+            pending.add(pseudonym, newSV, oldSV);
+            waiting.add(result);
+            if (pending.size() == 1 || pending.size() >= maxBatch) {
+                arrived.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the batch");
+        }
+    }
+
+    /**
+     * Sends what is pending and waits for the batches in flight; the following submits fail.
+     */
+    public void close() throws InterruptedException {
+        lock.lock();
+        try {
+            closed = true;
+            arrived.signal();
+        } finally {
+            lock.unlock();
+        }
+        collector.join();
+        senders.shutdown();
+        senders.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private void collect() {
+        lock.lock();
+        try {
+            while (true) {
+                while (!closed && pending.size() == 0) {
+                    arrived.awaitUninterruptibly();
+                }
+                if (pending.size() == 0) {
+                    return; // closed and nothing left
+                }
+                long left;
+                while (!closed && pending.size() < maxBatch
+                        && (left = TimeUnit.MILLISECONDS.toNanos(maxDelay) - (System.nanoTime() - firstArrival)) > 0) {
+                    try {
+                        arrived.awaitNanos(left);
+                    } catch (InterruptedException e) {
+                        break; // send what there is
+                    }
+                }
+                // at most maxBatch votes: the others, if more arrived meanwhile, go with the next batch right away
+                VoteBatch batch = new VoteBatch();
+                VoteBatch rest = new VoteBatch();
+                for (int i = 0; i < pending.size(); i++) {
+                    (i < maxBatch ? batch : rest).add(pending.getPseudonym(i), pending.getNewVote(i), pending.getOldVote(i));
+                }
+                int n = batch.size();
+                ArrayList<CompletableFuture<Boolean>> results = new ArrayList<>(waiting.subList(0, n));
+                waiting = new ArrayList<>(waiting.subList(n, waiting.size()));
+                pending = rest;
+                senders.execute(() -> send(batch, results));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void send(VoteBatch batch, ArrayList<CompletableFuture<Boolean>> results) {
+        boolean[] status;
+        try {
+            TLSSessionPool.Session s = pool.borrow(port);
+            try {
+                s.getOut().writeUTF("batch");
+                s.getOut().writeVoteBatch(batch);
+                s.getOut().flush();
+                status = s.getIn().readBatchStatus();
+                if (status == null || status.length != batch.size()) {
+                    throw new IOException("invalid answer to a batch of " + batch.size());
+                }
+            } catch (IOException e) {
+                pool.invalidate(s); // the session is in an unknown state
+                throw e;
+            }
+            pool.release(s);
+        } catch (Exception e) {
+            for (CompletableFuture<Boolean> r : results) {
+                r.completeExceptionally(e);
+            }
+            return;
+        }
+        for (int i = 0; i < status.length; i++) {
+            results.get(i).complete(status[i]);
+        }
+    }
+}
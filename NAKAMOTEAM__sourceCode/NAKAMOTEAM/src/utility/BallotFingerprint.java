@@ -0,0 +1,51 @@
+package utility;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public final class BallotFingerprint {
+
+    // The first 128 bits of SHA-256 over the canonical bytes of a ciphertext (see ElGamalCT.encode):
+    // two longs instead of the BigIntegers, cheap to hash and compare, and far from any collision
+    // even among billions of ballots.
+
+    final long hi, lo;
+
+    BallotFingerprint(long hi, long lo) {
+        this.hi = hi;
+        this.lo = lo;
+    }
+
+    static BallotFingerprint of(byte[] canonical) {
+        byte[] d = Utils.sha256().digest(canonical);
+        long hi = 0, lo = 0;
+        for (int i = 0; i < 8; i++) {
+            hi = (hi << 8) | (d[i] & 0xFF);
+            lo = (lo << 8) | (d[8 + i] & 0xFF);
+        }
+        return new BallotFingerprint(hi, lo);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof BallotFingerprint)) {
+            return false;
+        }
+        BallotFingerprint other = (BallotFingerprint) obj;
+        return hi == other.hi && lo == other.lo;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (lo ^ (lo >>> 32)); // already uniformly distributed
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", hi, lo);
+    }
+}
@@ -0,0 +1,68 @@
+package utility;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.function.BiConsumer;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public interface BallotStore {
+
+    // The pairs ciphertext-signature of a Sbal, indexed by the fingerprint of the ciphertext (so a
+    // ballot is found, and a duplicate refused, in constant time) and by the pseudonym of the voter
+    // who cast it (so a new vote replaces the previous one of the same voter in constant time).
+
+    /**
+     * Atomically replaces the ballot of pseudonym: if its current ballot is oldCT (null: none), it
+     * becomes newCT with newSign (newCT null: the ballot is just removed). A null pseudonym means
+     * unknown: then oldCT must be stored, and newCT takes its place and its voter.
+     *
+     * @return false, with nothing changed, if the current ballot is not oldCT, if newCT is already
+     * stored, or if both are null
+     */
+    boolean replace(String pseudonym, ElGamalCT oldCT, ElGamalCT newCT, SchnorrSig newSign);
+
+    boolean contains(ElGamalCT CT);
+
+    /**
+     * The current ballot of pseudonym with its signature (a SignedVote without key), or null if the
+     * voter has none. Splat asks for it when it does not know whether a replacement went through.
+     */
+    SignedVote ballotOf(String pseudonym);
+
+    int size();
+
+    /**
+     * Every stored pair, in no particular order; the store must not be modified meanwhile.
+     */
+    void forEach(BiConsumer<ElGamalCT, SchnorrSig> action);
+
+    /**
+     * Folds every stored ciphertext into acc (a tally of the ballots of this store).
+     */
+    default void tallyInto(ElGamalAccumulator acc) {
+        forEach((CT, sig) -> acc.multiply(CT));
+    }
+
+    /**
+     * Writes every stored pair in the encoding of the BALLOTS frame (see WireOutputStream); the
+     * store must not be modified meanwhile.
+     */
+    default void writePairs(DataOutput out) throws IOException {
+        IOException[] failure = new IOException[1];
+        forEach((CT, sig) -> {
+            try {
+                if (failure[0] == null) {
+                    WireOutputStream.putPair(out, CT, sig);
+                }
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package utility;
+
+import java.math.BigInteger;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class DiscreteLog {
+
+    // Baby-step giant-step solver for g^d = y with d in the signed range [-N, N].
+    // The baby steps g^j (0 <= j < m) are stored in an open-addressing table keyed by the
+    // low 64 bits of the encoding of g^j, so the table depends only on (group, N) and is
+    // shared by every election that uses the same group.
+
+    public static final int DEFAULT_BOUND = 1 << 20; // enough for an electorate of about one million voters
+
+    private static final ConcurrentHashMap<Key, DiscreteLog> tables = new ConcurrentHashMap<>();
+
+    private final Group group;
+    private final BigInteger g;
+    private final int bound; // N
+    private final int m; // number of baby steps, m*m >= 2N+1
+    private final BigInteger shift; // g^N, moves the range [-N, N] onto [0, 2N]
+    private final BigInteger giant; // g^{-m}
+    private final long[] keys;
+    private final int[] steps; // j+1 for the baby step g^j, 0 marks an empty slot
+    private final int mask;
+
+    private DiscreteLog(Group group, int bound) {
+        if (bound < 0 || BigInteger.valueOf(2L * bound + 1).compareTo(group.order()) >= 0) {
+            throw new IllegalArgumentException("bound out of range for the group order");
+        }
+        this.group = group;
+        this.g = group.generator();
+        this.bound = bound;
+        this.m = (int) Math.ceil(Math.sqrt(2.0 * bound + 1));
+
+        int capacity = Integer.highestOneBit(Math.max(2 * m, 2) - 1) << 1; // load factor <= 1/2
+        this.keys = new long[capacity];
+        this.steps = new int[capacity];
+        this.mask = capacity - 1;
+
+        BigInteger cur = group.identity();
+        for (int j = 0; j < m; j++) { // baby steps: g^0, g^1, ..., g^{m-1}
+            insert(cur.longValue(), j);
+            cur = group.mul(cur, g);
+        }
+        // here cur=g^m
+        this.giant = group.inverse(cur);
+        this.shift = group.exp(g, BigInteger.valueOf(bound));
+    }
+
+    /**
+     * Returns the (cached) solver for the group of PK over the range [-bound, bound].
+     */
+    public static DiscreteLog forKey(ElGamalPK PK, int bound) {
+        return tables.computeIfAbsent(new Key(PK.group, bound), k -> new DiscreteLog(PK.group, bound));
+    }
+
+    public int getBound() {
+        return bound;
+    }
+
+    /**
+     * Returns d in [-N, N] such that g^d = y, or null if no such d exists.
+     */
+    public BigInteger log(BigInteger y) {
+        BigInteger gamma = group.mul(y, shift); // gamma=g^{d+N} with d+N in [0, 2N]
+        // write d+N = i*m + j and look for g^j = gamma*g^{-im}
+        for (int i = 0; i < m; i++) {
+            int j = lookup(gamma);
+            if (j >= 0) {
+                long d = (long) i * m + j - bound;
+                return d <= bound ? BigInteger.valueOf(d) : null; // m*m may overshoot 2N+1
+            }
+            gamma = group.mul(gamma, giant);
+        }
+        return null;
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void insert(long key, int j) {
+        int i = slot(key, mask);
+        while (steps[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        steps[i] = j + 1;
+    }
+
+    private int lookup(BigInteger gamma) {
+        long key = gamma.longValue();
+        for (int i = slot(key, mask); steps[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int j = steps[i] - 1;
+                // only the low 64 bits are stored: confirm the match before accepting it
+                if (group.exp(g, BigInteger.valueOf(j)).equals(gamma)) {
+                    return j;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static final class Key {
+
+        private final Group group;
+        private final int bound;
+
+        Key(Group group, int bound) {
+            this.group = group;
+            this.bound = bound;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 59 * hash + Objects.hashCode(this.group);
+            hash = 59 * hash + this.bound;
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return this.bound == other.bound && Objects.equals(this.group, other.group);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package utility;
+
+import java.math.BigInteger;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class ElGamalAccumulator {
+
+    // Mutable product of ciphertexts: unlike ElGamalCT.Homomorphism it updates its own
+    // components instead of allocating a new ElGamalCT for every ballot.
+    // If the accumulated ciphertexts encrypt m1, m2, ... then the product encrypts m1+m2+...
+    // In a ModPGroup the components are long[] limbs in the Montgomery domain and every product
+    // is done in place, with no allocation per ciphertext. As for ModArith.modPowMulti the engine
+    // is used even with the Montgomery switch off: a chain of multiplications is exactly where it
+    // beats BigInteger. Points of P256Group are immutable, so there each product is a new point.
+
+    private final Group group;
+    private BigInteger C, C2;
+    private final MontgomeryEngine mont;
+    private final long[] mC, mC2, tmp; // Montgomery domain, used instead of C, C2 if mont != null
+    private long count; // number of ciphertexts folded in
+
+    public ElGamalAccumulator(ElGamalPK PK) {
+        this.group = PK.group;
+        this.mont = PK.p == null ? null : MontgomeryEngine.forModulus(PK.p);
+        this.count = 0;
+        if (mont == null) {
+            this.C = group.identity(); // (1,1) in Zp*, or the point at infinity twice, encrypts 0 with r=0
+            this.C2 = group.identity();
+            this.mC = this.mC2 = this.tmp = null;
+        } else {
+            this.mC = mont.newElement();
+            this.mC2 = mont.newElement();
+            this.tmp = mont.newElement();
+            mont.setOne(mC);
+            mont.setOne(mC2);
+        }
+    }
+
+    public ElGamalAccumulator(ElGamalPK PK, ElGamalCT CT) {
+        this(PK);
+        if (mont == null) {
+            this.C = CT.C;
+            this.C2 = CT.C2;
+            this.count = 1;
+        } else {
+            multiply(CT);
+        }
+    }
+
+    public void multiply(ElGamalCT CT) {
+        if (mont == null) {
+            C = group.mul(C, CT.C);
+            C2 = group.mul(C2, CT.C2);
+        } else {
+            mont.toMont(CT.C, tmp);
+            mont.mul(mC, tmp, mC);
+            mont.toMont(CT.C2, tmp);
+            mont.mul(mC2, tmp, mC2);
+        }
+        count++;
+    }
+
+    /**
+     * As multiply(CT), from the canonical encoding C||C2 of a ciphertext at in[off] (see
+     * ElGamalCT.encode), without building it: the Montgomery kernel reads the bytes directly.
+     */
+    public void multiply(byte[] in, int off) {
+        int len = group.elementLength();
+        if (mont == null) {
+            C = group.mul(C, group.decode(in, off));
+            C2 = group.mul(C2, group.decode(in, off + len));
+        } else {
+            mont.toMont(in, off, len, tmp);
+            mont.mul(mC, tmp, mC);
+            mont.toMont(in, off + len, len, tmp);
+            mont.mul(mC2, tmp, mC2);
+        }
+        count++;
+    }
+
+    public void multiply(ElGamalAccumulator other) {
+        if (mont == null) {
+            C = group.mul(C, other.C);
+            C2 = group.mul(C2, other.C2);
+        } else {
+            mont.mul(mC, other.mC, mC);
+            mont.mul(mC2, other.mC2, mC2);
+        }
+        count += other.count;
+    }
+
+    public void divide(ElGamalCT CT) {
+        // takes a ciphertext out of the product: multiply by the inverses of its components
+        if (mont == null) {
+            C = group.mul(C, group.inverse(CT.C));
+            C2 = group.mul(C2, group.inverse(CT.C2));
+        } else {
+            mont.toMont(group.inverse(CT.C), tmp);
+            mont.mul(mC, tmp, mC);
+            mont.toMont(group.inverse(CT.C2), tmp);
+            mont.mul(mC2, tmp, mC2);
+        }
+        count--;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Snapshot of the product: an encryption of the sum of the votes folded in so far.
+     */
+    public ElGamalCT toCT() {
+        if (mont != null) {
+            return new ElGamalCT(mont.fromMont(mC), mont.fromMont(mC2));
+        }
+        return new ElGamalCT(C, C2);
+    }
+}
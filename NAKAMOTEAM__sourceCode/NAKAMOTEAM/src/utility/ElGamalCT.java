@@ -45,10 +45,44 @@ public class ElGamalCT implements Serializable {
         return true;
     }
 
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hashCode(C) + Objects.hashCode(C2); // consistent with equals: equal copies land in the same bucket
+    }
+
+    /**
+     * True if C and C2 are both elements of the group of PK (points of the curve, or elements of the
+     * subgroup of order q of Zp*). encode and fingerprint identify only such a ciphertext: a ciphertext
+     * received from outside must pass this check before its signature is verified.
+     */
+    public boolean isValid(ElGamalPK PK) {
+        return C != null && C2 != null && PK.group.contains(C) && PK.group.contains(C2);
+    }
+
+    /**
+     * Content fingerprint: a digest of the canonical encoding under PK, the same for every copy of
+     * this ciphertext whatever way it arrived.
+     */
+    public BallotFingerprint fingerprint(ElGamalPK PK) {
+        return BallotFingerprint.of(encode(PK));
+    }
+
+    /**
+     * Canonical encoding C||C2, each component in the fixed width of an element of the group of PK.
+     * This is what the voter signs.
+     */
+    public byte[] encode(ElGamalPK PK) {
+        int len = PK.group.elementLength();
+        byte[] out = new byte[2 * len];
+        PK.group.encode(C, out, 0);
+        PK.group.encode(C2, out, len);
+        return out;
+    }
+
     public static ElGamalCT Homomorphism(ElGamalPK PK, ElGamalCT CT1, ElGamalCT CT2) {
         ElGamalCT CT = new ElGamalCT(CT1); // CT=CT1
-        CT.C = CT.C.multiply(CT2.C).mod(PK.p);  // CT.C=CT.C*CT2.C mod p
-        CT.C2 = CT.C2.multiply(CT2.C2).mod(PK.p); // CT.C2=CT.C2*CT2.C2 mod p
+        CT.C = PK.group.mul(CT.C, CT2.C);  // CT.C=CT.C*CT2.C
+        CT.C2 = PK.group.mul(CT.C2, CT2.C2); // CT.C2=CT.C2*CT2.C2
         return CT; // If CT1 encrypts m1 and CT2 encrypts m2 then CT encrypts m1+m2
 
     }
@@ -19,28 +19,27 @@ public class ElGamalDec {
     }
     
     public BigInteger decryptInTheExponent(ElGamalCT CT) {
-        BigInteger tmp = CT.C2.modPow(SK.s, SK.PK.p).modInverse(SK.PK.p);
-        BigInteger res = tmp.multiply(CT.C).mod(SK.PK.p);
-        // after this step res=g^d for some d in 1,...,q
+        return decryptInTheExponent(CT, DiscreteLog.DEFAULT_BOUND);
+    }
 
-        BigInteger M = new BigInteger("0");
-        while (true) {
-            if (SK.PK.g.modPow(M, SK.PK.p).compareTo(res) == 0) {
-                return M;
-            }
-        // if g^M=res stop and return M
-        // otherwise M++
-            M = M.add(BigInteger.ONE);
-        }
+    public BigInteger decryptInTheExponent(ElGamalCT CT, int bound) {
+        Group G = SK.PK.group;
+        BigInteger tmp = G.inverse(G.exp(CT.C2, SK.s));
+        BigInteger res = G.mul(tmp, CT.C);
+        // after this step res=g^d for some d in -bound,...,bound
 
+        // baby-step giant-step instead of trying M=0,1,2,... : the tally can be negative
+        // and the table of baby steps is shared by all the elections on the same group
+        return DiscreteLog.forKey(SK.PK, bound).log(res); // null if d is out of range
     }
     
     public ElGamalCT partialDecrypt(ElGamalCT CT) {  
         // CT is the ciphertext to decrypt or a ciphertext resulting from a partial decryption
         // Suppose SK is the key of the i-th authority. Then SK.s is s_i
-        BigInteger tmp = CT.C2.modPow(SK.s, SK.PK.p); // tmp=C2^s_i 
-        tmp = tmp.modInverse(SK.PK.p);   // tmp=C2^{-s_i}
-        BigInteger newC = tmp.multiply(CT.C).mod(SK.PK.p); // newC=C*tmp=(h^r*M)*C2^{-s_i}=h^r*M*g^{-rs_i}
+        Group G = SK.PK.group;
+        BigInteger tmp = G.exp(CT.C2, SK.s); // tmp=C2^s_i 
+        tmp = G.inverse(tmp);   // tmp=C2^{-s_i}
+        BigInteger newC = G.mul(tmp, CT.C); // newC=C*tmp=(h^r*M)*C2^{-s_i}=h^r*M*g^{-rs_i}
 
         return new ElGamalCT(newC, CT.C2);
     }
@@ -50,13 +49,14 @@ public class ElGamalDec {
     	// C=[C,C2]=[h^r*M mod p, g^r mod p].
     	// h=g^s mod p
     	
-        BigInteger tmp = CT.C2.modPow(SK.s, SK.PK.p);  // tmp=C2^s mod p
-        tmp=tmp.modInverse(SK.PK.p);  
+        Group G = SK.PK.group;
+        BigInteger tmp = G.exp(CT.C2, SK.s);  // tmp=C2^s mod p
+        tmp=G.inverse(tmp);  
         // if tmp and p are BigInteger tmp.modInverse(p) is the integer x s.t. 
         // tmp*x=1 mod p
         // thus tmp=C2^{-s}=g^{-rs} mod p =h^{-r}
         
-        BigInteger M = tmp.multiply(CT.C).mod(SK.PK.p); // M=tmp*C mod p
+        BigInteger M = G.mul(tmp, CT.C); // M=tmp*C mod p
     	return M; 
     	
     }
@@ -10,9 +10,20 @@ import java.security.SecureRandom;
 public class ElGamalEnc {
 
     private final ElGamalPK PK;
+    private final ElGamalPrecomp pre; // fixed-base tables for g and h, shared by all encryptors of PK
+    private final ElGamalRandomnessPool pool; // precomputed pairs (g^r, h^r), may be null
 
     public ElGamalEnc(ElGamalPK PK) {
+        this(PK, null);
+    }
+
+    public ElGamalEnc(ElGamalPK PK, ElGamalRandomnessPool pool) {
+        if (pool != null && !PK.equals(pool.getPK())) {
+            throw new IllegalArgumentException("the pool belongs to another public key");
+        }
         this.PK = PK;
+        this.pre = ElGamalPrecomp.forKey(PK);
+        this.pool = pool;
     }
 
     public ElGamalPK getPK() {
@@ -22,24 +33,24 @@ public class ElGamalEnc {
     public ElGamalCT encryptInTheExponent(BigInteger m) {
         // identical to Encrypt except that input is an exponent m and encrypts M=g^m mod p
 
-        SecureRandom sc = new SecureRandom();
-        BigInteger M = PK.g.modPow(m, PK.p); // M=g^m mod p
-        BigInteger r = new BigInteger(PK.securityparameter, sc);
-        BigInteger C = M.multiply(PK.h.modPow(r, PK.p)).mod(PK.p);
-        BigInteger C2 = PK.g.modPow(r, PK.p);
-        return new ElGamalCT(C, C2);
+        BigInteger M = pre.encode(m); // M=g^m mod p, cached for votes in {-1,0,1}
+        return encrypt(M);
 
     }
 
     public ElGamalCT encrypt(BigInteger M) {
+        if (pool != null) { // online phase: g^r and h^r were computed in advance
+            ElGamalRandomnessPool.Entry e = pool.take();
+            return new ElGamalCT(PK.group.mul(M, e.hr), e.gr);
+        }
+
         SecureRandom sc = new SecureRandom(); // create a secure random source
 
         BigInteger r = new BigInteger(PK.securityparameter, sc); // choose random r of lenght security parameter
         // C=[h^r*M mod p, g^r mod p].
 
-        BigInteger C = M.multiply(PK.h.modPow(r, PK.p)); // C=M*(h^r mod p)
-        C = C.mod(PK.p); // C=C mod p
-        BigInteger C2 = PK.g.modPow(r, PK.p);  // C2=g^r mod p
+        BigInteger C = PK.group.mul(M, pre.powH(r)); // C=M*(h^r mod p) mod p
+        BigInteger C2 = pre.powG(r);  // C2=g^r mod p
         return new ElGamalCT(C, C2);   // return CT=(C,C2)
 
     }
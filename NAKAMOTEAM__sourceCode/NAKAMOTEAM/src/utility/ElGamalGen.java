@@ -15,19 +15,12 @@ public class ElGamalGen {
 
         SecureRandom sc = new SecureRandom(); // create a secure random source
 
-        while (true) {
-            q = BigInteger.probablePrime(securityparameter, sc);
-            // method probablePrime returns a prime number of length securityparameter
-            // using sc as random source
+        q = SafePrimes.findQ(securityparameter);
+        // q is a prime number of length securityparameter such that 2q+1 is prime too
+        // (sieved parallel search, see SafePrimes)
 
-            p = q.multiply(BigInteger.valueOf(2));
-            p = p.add(BigInteger.ONE);  // p=2q+1
-
-            if (p.isProbablePrime(50) == true) {
-                break;		// returns an integer that is prime with prob.
-            }// 1-2^-50
-
-        }
+        p = q.multiply(BigInteger.valueOf(2));
+        p = p.add(BigInteger.ONE);  // p=2q+1
         // henceforth we have that p and q are both prime numbers and p=2q+1
         // Subgroups of Zp* have order 2,q,2q
 
@@ -43,6 +36,38 @@ public class ElGamalGen {
         SK = new ElGamalSK(s, PK);
     }
 
+    public ElGamalGen(int pBits, int qBits) {
+        // DSA-style group: p of pBits bits and a subgroup of prime order q of only qBits bits,
+        // so secrets and random exponents have qBits bits instead of being as long as p
+        SecureRandom sc = new SecureRandom();
+
+        BigInteger q = BigInteger.probablePrime(qBits, sc);
+        BigInteger p = SafePrimes.findP(q, pBits); // p=1 mod 2q
+        BigInteger cofactor = p.subtract(BigInteger.ONE).divide(q);
+
+        BigInteger g;
+        do { // g=x^{(p-1)/q} has order q unless it is 1
+            BigInteger x = new BigInteger(pBits - 1, sc).add(BigInteger.valueOf(2));
+            g = x.modPow(cofactor, p);
+        } while (g.equals(BigInteger.ONE));
+
+        BigInteger s = new BigInteger(qBits, sc).mod(q); // s is the secret-key
+        BigInteger h = ModArith.modPow(g, s, p); // h=g^s mod p
+
+        SK = new ElGamalSK(s, new ElGamalPK(p, q, g, h, qBits));
+    }
+
+    public ElGamalGen(Group group) {
+        // same scheme in an arbitrary prime-order group, e.g. P256Group.INSTANCE
+        SecureRandom sc = new SecureRandom();
+        int securityparameter = group.order().bitLength();
+
+        BigInteger s = new BigInteger(securityparameter, sc).mod(group.order()); // s is the secret-key
+        BigInteger h = group.exp(group.generator(), s); // h=g^s
+
+        SK = new ElGamalSK(s, new ElGamalPK(group, h, securityparameter));
+    }
+
     public ElGamalSK getSK() {
         return SK;
     }
@@ -54,9 +79,9 @@ public class ElGamalGen {
     public ElGamalSK getPartialSecret(){
         SecureRandom sc = new SecureRandom();
         BigInteger s = new BigInteger(SK.PK.securityparameter, sc); // i-th authority has s_i
-        BigInteger h = SK.PK.g.modPow(s, SK.PK.p); // and h_i=g^{s_i}
+        BigInteger h = SK.PK.group.exp(SK.PK.g, s); // and h_i=g^{s_i}
 
-        ElGamalPK PK = new ElGamalPK(SK.PK.p, SK.PK.q, SK.PK.g, h, SK.PK.securityparameter); //
+        ElGamalPK PK = new ElGamalPK(SK.PK.group, h, SK.PK.securityparameter); //
         
         // return the partial public key of i-th authority
         return new ElGamalSK(s, PK);
@@ -64,16 +89,16 @@ public class ElGamalGen {
     
     public ElGamalPK aggregatePartialPublicKeys(ElGamalPK PK[]) {
 
-        BigInteger tmp = BigInteger.ONE;
+        BigInteger tmp = PK[0].group.identity();
         // the array PK contains the partial public keys of the m-authorities
         // in particular PK[i].h=h_i=g^{s_i}
 
         for (int i = 0; i < PK.length; i++) {
-            tmp = tmp.multiply(PK[i].h).mod(PK[0].p);
+            tmp = PK[0].group.mul(tmp, PK[i].h);
         }
         // here tmp=\Prod_{i=1}^m h_i
         // therefore tmp is the General public key h
-        return new ElGamalPK(PK[0].p, PK[0].q, PK[0].g, tmp, PK[0].securityparameter);
+        return new ElGamalPK(PK[0].group, tmp, PK[0].securityparameter);
 
     }
     
@@ -12,6 +12,7 @@ public class ElGamalPK implements Serializable {
 
     BigInteger g, h, p, q; // description of the group and public-key h=g^s
     int securityparameter; // security parameter
+    final Group group; // the group in which g, h and the ciphertexts live; p is null if it is not a ModPGroup
 
     public ElGamalPK(BigInteger p, BigInteger q, BigInteger g, BigInteger h, int securityparameter) {
         this.p = p;
@@ -19,6 +20,54 @@ public class ElGamalPK implements Serializable {
         this.g = g;
         this.h = h;
         this.securityparameter = securityparameter;
+        this.group = new ModPGroup(p, q, g);
+    }
+
+    public ElGamalPK(Group group, BigInteger h, int securityparameter) {
+        this.p = group instanceof ModPGroup ? ((ModPGroup) group).getModulus() : null;
+        this.q = group.order();
+        this.g = group.generator();
+        this.h = h;
+        this.securityparameter = securityparameter;
+        this.group = group;
+    }
+
+    public Group getGroup() {
+        return group;
+    }
+
+    /**
+     * Canonical encoding: p||q||g||h in the width of p for a ModPGroup, q||g||h otherwise
+     * (q in its own width, g and h as group elements).
+     */
+    public byte[] encode() {
+        if (p != null) {
+            int len = Utils.byteLength(p);
+            byte[] out = new byte[4 * len];
+            Utils.writeFixed(p, out, 0, len);
+            Utils.writeFixed(q, out, len, len);
+            Utils.writeFixed(g, out, 2 * len, len);
+            Utils.writeFixed(h, out, 3 * len, len);
+            return out;
+        }
+        int qlen = Utils.byteLength(q), len = group.elementLength();
+        byte[] out = new byte[qlen + 2 * len];
+        Utils.writeFixed(q, out, 0, qlen);
+        group.encode(g, out, qlen);
+        group.encode(h, out, qlen + len);
+        return out;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 3;
+        hash = 41 * hash + Objects.hashCode(this.g);
+        hash = 41 * hash + Objects.hashCode(this.h);
+        hash = 41 * hash + Objects.hashCode(this.p);
+        hash = 41 * hash + Objects.hashCode(this.q);
+        hash = 41 * hash + this.securityparameter;
+        hash = 41 * hash + Objects.hashCode(this.group);
+        return hash;
     }
 
     @Override
@@ -48,6 +97,9 @@ public class ElGamalPK implements Serializable {
         if (!Objects.equals(this.q, other.q)) {
             return false;
         }
+        if (!Objects.equals(this.group, other.group)) {
+            return false;
+        }
         return true;
     }
 
@@ -0,0 +1,66 @@
+package utility;
+
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class ElGamalPrecomp {
+
+    // Precomputed data for one ElGamalPK: fixed-base tables for g and h and the
+    // encodings g^m of the vote alphabet {-1,0,1}.
+    // Built once per key and shared by every ElGamalEnc using that key.
+
+    private static final ConcurrentHashMap<ElGamalPK, ElGamalPrecomp> cache = new ConcurrentHashMap<>();
+
+    private static volatile long memoryBudget = 4L << 20; // bytes for the tables of one key (g and h together)
+
+    private final ElGamalPK PK;
+    private final FixedBaseExp gTable, hTable; // null if the budget does not allow a table
+    private final BigInteger[] votes; // votes[m+1]=g^m for m in {-1,0,1}
+
+    private ElGamalPrecomp(ElGamalPK PK, long budget) {
+        this.PK = PK;
+        int w = FixedBaseExp.windowFor(PK.group, budget / 2);
+        gTable = w == 0 ? null : new FixedBaseExp(PK.group, PK.g, w);
+        hTable = w == 0 ? null : new FixedBaseExp(PK.group, PK.h, w);
+
+        votes = new BigInteger[]{PK.group.inverse(PK.g), PK.group.identity(), PK.g};
+    }
+
+    public static ElGamalPrecomp forKey(ElGamalPK PK) {
+        return cache.computeIfAbsent(PK, k -> new ElGamalPrecomp(k, memoryBudget));
+    }
+
+    /**
+     * Sets the memory (in bytes) that the tables of a single key may use. Keys
+     * already in the cache keep their tables; 0 disables the tables.
+     */
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    public static long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public BigInteger powG(BigInteger e) {
+        return gTable != null ? gTable.pow(e) : PK.group.exp(PK.g, e);
+    }
+
+    public BigInteger powH(BigInteger e) {
+        return hTable != null ? hTable.pow(e) : PK.group.exp(PK.h, e);
+    }
+
+    /**
+     * Returns g^m, straight from the cache when m is a vote in {-1,0,1}.
+     */
+    public BigInteger encode(BigInteger m) {
+        if (m.bitLength() < 32 && Math.abs(m.intValue()) <= 1) { // m is -1, 0 or 1
+            return votes[m.intValue() + 1];
+        }
+        return powG(m);
+    }
+}
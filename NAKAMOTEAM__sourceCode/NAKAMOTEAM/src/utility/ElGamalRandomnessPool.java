@@ -0,0 +1,177 @@
+package utility;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class ElGamalRandomnessPool {
+
+    // Offline/online ElGamal: the expensive part of an encryption, the pair (g^r, h^r),
+    // does not depend on the message, so background threads compute it ahead of time.
+    // Online, encrypting M costs a single multiplication C=M*h^r mod p.
+    // Every pair is handed out exactly once: reusing r would leak M1/M2.
+
+    static final class Entry {
+
+        final BigInteger gr, hr; // g^r mod p, h^r mod p
+
+        Entry(BigInteger gr, BigInteger hr) {
+            this.gr = gr;
+            this.hr = hr;
+        }
+    }
+
+    private final ElGamalPK PK;
+    private final ElGamalPrecomp pre;
+    private final int lowWatermark; // a refill starts when the pool drops below this depth
+    private final int highWatermark; // a refill stops at this depth (the pool never holds more)
+    private final int threads;
+
+    private final ConcurrentLinkedQueue<Entry> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger reserved = new AtomicInteger(); // entries in the pool plus entries being computed
+    private final AtomicInteger depth = new AtomicInteger(); // entries ready in the pool
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final ExecutorService workers;
+    private final SecureRandom sc = new SecureRandom();
+    private volatile boolean closed = false;
+
+    // metrics
+    private final AtomicLong produced = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong(); // takes that found the pool empty
+    private final AtomicLong refills = new AtomicLong();
+
+    public ElGamalRandomnessPool(ElGamalPK PK, int lowWatermark, int highWatermark, int threads) {
+        if (lowWatermark < 0 || highWatermark <= lowWatermark || threads < 1) {
+            throw new IllegalArgumentException("invalid watermarks or thread count");
+        }
+        this.PK = PK;
+        this.pre = ElGamalPrecomp.forKey(PK);
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.threads = threads;
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "elgamal-pool");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public ElGamalPK getPK() {
+        return PK;
+    }
+
+    /**
+     * Starts filling the pool up to the high watermark.
+     */
+    public void start() {
+        refill();
+    }
+
+    public void shutdown() {
+        closed = true;
+        workers.shutdownNow();
+        pool.clear();
+    }
+
+    Entry take() {
+        Entry e = pool.poll();
+        if (e == null) { // spike faster than the workers: compute online
+            misses.incrementAndGet();
+            e = compute();
+        } else {
+            depth.decrementAndGet();
+            reserved.decrementAndGet();
+        }
+        consumed.incrementAndGet();
+        if (depth.get() < lowWatermark) {
+            refill();
+        }
+        return e;
+    }
+
+    private Entry compute() {
+        BigInteger r = new BigInteger(PK.securityparameter, sc);
+        return new Entry(pre.powG(r), pre.powH(r));
+    }
+
+    private void refill() {
+        if (closed || !refilling.compareAndSet(false, true)) {
+            return; // a refill is already running
+        }
+        refills.incrementAndGet();
+        activeWorkers.set(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(this::fill);
+        }
+    }
+
+    private void fill() {
+        try {
+            while (!closed) {
+                int n = reserved.get();
+                if (n >= highWatermark) {
+                    break;
+                }
+                if (!reserved.compareAndSet(n, n + 1)) {
+                    continue; // another worker took the slot
+                }
+                pool.offer(compute());
+                depth.incrementAndGet();
+                produced.incrementAndGet();
+            }
+        } finally {
+            if (activeWorkers.decrementAndGet() == 0) {
+                refilling.set(false);
+                if (!closed && depth.get() < lowWatermark) {
+                    refill(); // drained again while the last workers were finishing
+                }
+            }
+        }
+    }
+
+    public int getDepth() {
+        return depth.get();
+    }
+
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getProduced() {
+        return produced.get();
+    }
+
+    public long getConsumed() {
+        return consumed.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRefills() {
+        return refills.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ElGamalRandomnessPool{" + "depth=" + getDepth() + ", low=" + lowWatermark + ", high=" + highWatermark
+                + ", produced=" + getProduced() + ", consumed=" + getConsumed() + ", misses=" + getMisses()
+                + ", refills=" + getRefills() + '}';
+    }
+}
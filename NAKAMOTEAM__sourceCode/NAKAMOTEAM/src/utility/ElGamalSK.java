@@ -20,4 +20,16 @@ public class ElGamalSK implements Serializable { // Secret-key of El Gamal
     public ElGamalPK getPK() {
         return PK;
     }
+
+    /**
+     * Canonical encoding s||PK, s in the width of q: this is what Sgen signs for every share.
+     */
+    public byte[] encode() {
+        int len = Utils.byteLength(PK.q);
+        byte[] pk = PK.encode();
+        byte[] out = new byte[len + pk.length];
+        Utils.writeFixed(s.mod(PK.q), out, 0, len);
+        System.arraycopy(pk, 0, out, len, pk.length);
+        return out;
+    }
 }
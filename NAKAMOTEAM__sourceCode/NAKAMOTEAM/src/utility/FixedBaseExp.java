@@ -0,0 +1,134 @@
+package utility;
+
+import java.math.BigInteger;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class FixedBaseExp {
+
+    // Fixed-base exponentiation with a windowed table.
+    // The exponent is cut in digits of w bits: e = sum_i d_i*2^{wi}.
+    // The table holds base^{d*2^{wi}} for every window i and every digit d != 0,
+    // so base^e is just the product of one table entry per window: no squarings at all.
+    // Works in any Group; for a ModPGroup with the Montgomery kernel on (see ModArith)
+    // the table is kept in the Montgomery domain and the products are done in place.
+
+    private static final int ENTRY_OVERHEAD = 48; // rough size of a BigInteger object and its int[] header
+    private static final int ARRAY_OVERHEAD = 16; // header of a long[]
+
+    private final Group group;
+    private final BigInteger q;
+    private final int w; // window width in bits
+    private final int maxBits; // exponents up to this length are served by the table
+    private final BigInteger[][] table; // table[i][d-1]=base^{d*2^{wi}}
+    private final MontgomeryEngine mont; // non-null if the table is in the Montgomery domain
+    private final long[][][] montTable; // same as table, in the Montgomery domain
+
+    public FixedBaseExp(Group group, BigInteger base, int w) {
+        this.group = group;
+        this.q = group.order();
+        this.w = w;
+        this.maxBits = q.bitLength();
+        this.mont = montEngine(group);
+
+        int windows = (maxBits + w - 1) / w;
+        int digits = (1 << w) - 1;
+
+        if (mont == null) {
+            table = new BigInteger[windows][digits];
+            montTable = null;
+            BigInteger b = base; // b=base^{2^{wi}} at the beginning of window i
+            for (int i = 0; i < windows; i++) {
+                table[i][0] = b;
+                for (int d = 1; d < digits; d++) {
+                    table[i][d] = group.mul(table[i][d - 1], b); // base^{(d+1)*2^{wi}}
+                }
+                b = group.mul(table[i][digits - 1], b); // b^{2^w}
+            }
+        } else {
+            table = null;
+            montTable = new long[windows][digits][];
+            long[] b = mont.newElement();
+            mont.toMont(base, b);
+            for (int i = 0; i < windows; i++) {
+                montTable[i][0] = b;
+                for (int d = 1; d < digits; d++) {
+                    montTable[i][d] = mont.newElement();
+                    mont.mul(montTable[i][d - 1], b, montTable[i][d]);
+                }
+                long[] next = mont.newElement();
+                mont.mul(montTable[i][digits - 1], b, next);
+                b = next;
+            }
+        }
+    }
+
+    /**
+     * Returns the widest window whose table for a base of the given group fits in
+     * budget bytes, or 0 if not even a 1-bit table fits.
+     */
+    public static int windowFor(Group group, long budget) {
+        MontgomeryEngine engine = montEngine(group);
+        long entrySize = engine == null
+                ? group.elementLength() + ENTRY_OVERHEAD
+                : ((engine.getModulus().bitLength() + 31) / 32) * 8L + ARRAY_OVERHEAD;
+        int best = 0;
+        for (int w = 1; w <= 16; w++) {
+            long windows = (group.order().bitLength() + w - 1) / w;
+            if (windows * ((1L << w) - 1) * entrySize > budget) {
+                break;
+            }
+            best = w;
+        }
+        return best;
+    }
+
+    public BigInteger pow(BigInteger e) {
+        if (e.signum() < 0 || e.bitLength() > maxBits) {
+            e = e.mod(q); // the base lies in the subgroup of order q
+        }
+        byte[] mag = e.toByteArray(); // big-endian, e >= 0
+
+        if (mont != null) {
+            long[] acc = mont.newElement();
+            mont.setOne(acc);
+            for (int i = 0; i < montTable.length; i++) {
+                int d = digit(mag, i * w);
+                if (d != 0) {
+                    mont.mul(acc, montTable[i][d - 1], acc);
+                }
+            }
+            return mont.fromMont(acc);
+        }
+
+        BigInteger[] factors = new BigInteger[table.length];
+        int n = 0;
+        for (int i = 0; i < table.length; i++) {
+            int d = digit(mag, i * w);
+            if (d != 0) {
+                factors[n++] = table[i][d - 1];
+            }
+        }
+        return group.product(factors, n);
+    }
+
+    private static MontgomeryEngine montEngine(Group group) {
+        return group instanceof ModPGroup ? ModArith.engine(((ModPGroup) group).getModulus()) : null;
+    }
+
+    private int digit(byte[] mag, int from) {
+        // bits from, from+1, ..., from+w-1 of the big-endian magnitude
+        int d = 0;
+        for (int k = w - 1; k >= 0; k--) {
+            int bit = from + k;
+            int idx = mag.length - 1 - (bit >>> 3);
+            d <<= 1;
+            if (idx >= 0) {
+                d |= (mag[idx] >>> (bit & 7)) & 1;
+            }
+        }
+        return d;
+    }
+}
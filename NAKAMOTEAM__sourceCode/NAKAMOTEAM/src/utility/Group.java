@@ -0,0 +1,45 @@
+package utility;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public interface Group extends Serializable {
+
+    // Prime-order cyclic group in which ElGamal works.
+    // Elements are carried around as BigInteger encodings (a residue mod p for ModPGroup,
+    // the packed affine point for P256Group) so that ElGamalPK and ElGamalCT do not
+    // depend on the group in use. The group operation is written multiplicatively.
+
+    BigInteger order(); // q, prime
+
+    BigInteger generator(); // g, of order q
+
+    BigInteger identity();
+
+    BigInteger mul(BigInteger a, BigInteger b);
+
+    BigInteger inverse(BigInteger a);
+
+    BigInteger exp(BigInteger a, BigInteger e);
+
+    default BigInteger product(BigInteger[] factors, int n) {
+        // factors[0]*...*factors[n-1]; a group may override it to save the normalisations in between
+        BigInteger res = identity();
+        for (int i = 0; i < n; i++) {
+            res = mul(res, factors[i]);
+        }
+        return res;
+    }
+
+    boolean contains(BigInteger a); // true if a encodes an element of the subgroup of order q
+
+    int elementLength(); // bytes of the canonical fixed-width encoding of an element
+
+    void encode(BigInteger a, byte[] out, int off); // writes elementLength() bytes
+
+    BigInteger decode(byte[] in, int off); // reads elementLength() bytes
+}
@@ -0,0 +1,107 @@
+package utility;
+
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class HeapBallotStore implements BallotStore {
+
+    // BallotStore on two HashMaps: fingerprint -> ballot and pseudonym -> fingerprint of its ballot.
+    // Every operation is O(1) and replace is a compare-and-set under the lock of the store, so the
+    // event loops of a Sbal can call it concurrently.
+
+    private static final class Ballot {
+
+        final ElGamalCT CT;
+        final SchnorrSig sign;
+        final String pseudonym; // null if unknown
+
+        Ballot(ElGamalCT CT, SchnorrSig sign, String pseudonym) {
+            this.CT = CT;
+            this.sign = sign;
+            this.pseudonym = pseudonym;
+        }
+    }
+
+    private final ElGamalPK PK;
+    private final HashMap<BallotFingerprint, Ballot> byFingerprint = new HashMap<>();
+    private final HashMap<String, BallotFingerprint> byPseudonym = new HashMap<>();
+
+    public HeapBallotStore(ElGamalPK PK) {
+        this.PK = PK;
+    }
+
+    @Override
+    public boolean replace(String pseudonym, ElGamalCT oldCT, ElGamalCT newCT, SchnorrSig newSign) {
+        // the digests are computed before taking the lock
+        BallotFingerprint oldFp = oldCT == null ? null : oldCT.fingerprint(PK);
+        BallotFingerprint newFp = newCT == null ? null : newCT.fingerprint(PK);
+        if (oldFp == null && newFp == null) {
+            return false;
+        }
+        synchronized (this) {
+            Ballot old = oldFp == null ? null : byFingerprint.get(oldFp);
+            if (oldFp != null && old == null) {
+                return false; // the ballot to replace is not here
+            }
+            String owner = pseudonym;
+            if (owner != null) {
+                if (!Objects.equals(byPseudonym.get(owner), oldFp)) {
+                    return false; // the voter's current ballot is another one
+                }
+            } else if (old != null) {
+                owner = old.pseudonym;
+            }
+            if (newFp != null && byFingerprint.containsKey(newFp)) {
+                return false; // duplicate ciphertext
+            }
+            if (old != null) {
+                byFingerprint.remove(oldFp);
+                if (old.pseudonym != null) {
+                    byPseudonym.remove(old.pseudonym);
+                }
+            }
+            if (newFp != null) {
+                byFingerprint.put(newFp, new Ballot(newCT, newSign, owner));
+                if (owner != null) {
+                    byPseudonym.put(owner, newFp);
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public boolean contains(ElGamalCT CT) {
+        BallotFingerprint fp = CT.fingerprint(PK);
+        synchronized (this) {
+            return byFingerprint.containsKey(fp);
+        }
+    }
+
+    @Override
+    public synchronized SignedVote ballotOf(String pseudonym) {
+        BallotFingerprint fp = byPseudonym.get(pseudonym);
+        if (fp == null) {
+            return null;
+        }
+        Ballot b = byFingerprint.get(fp);
+        return new SignedVote(b.CT, b.sign, null);
+    }
+
+    @Override
+    public synchronized int size() {
+        return byFingerprint.size();
+    }
+
+    @Override
+    public synchronized void forEach(BiConsumer<ElGamalCT, SchnorrSig> action) {
+        for (Ballot b : byFingerprint.values()) {
+            action.accept(b.CT, b.sign);
+        }
+    }
+}
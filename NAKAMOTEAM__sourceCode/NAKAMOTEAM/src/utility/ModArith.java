@@ -0,0 +1,165 @@
+package utility;
+
+import java.math.BigInteger;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public final class ModArith {
+
+    // Modular arithmetic used by the ElGamal and Schnorr classes.
+    // By default it is plain BigInteger (whose modPow is backed by JIT intrinsics on most JVMs);
+    // useMontgomery(true), or -Dutility.montgomery=true, routes it to the MontgomeryEngine of the modulus.
+    // Fixed-base tables and accumulators built while the switch is on keep their values in the
+    // Montgomery domain, where a chain of products costs no allocation and no division.
+
+    private static volatile boolean montgomery = Boolean.getBoolean("utility.montgomery");
+
+    private ModArith() {
+    }
+
+    public static void useMontgomery(boolean on) {
+        montgomery = on;
+    }
+
+    public static boolean isMontgomery() {
+        return montgomery;
+    }
+
+    /**
+     * The engine for p if the Montgomery kernel is switched on, null otherwise.
+     */
+    public static MontgomeryEngine engine(BigInteger p) {
+        return montgomery && p.testBit(0) ? MontgomeryEngine.forModulus(p) : null;
+    }
+
+    public static BigInteger modPow(BigInteger b, BigInteger e, BigInteger p) {
+        MontgomeryEngine m = engine(p);
+        return m != null ? m.modPow(b, e) : b.modPow(e, p);
+    }
+
+    /**
+     * b1^e1*b2^e2 mod p. With the Montgomery kernel it is a single Straus/Shamir pass with
+     * shared squarings; otherwise two intrinsified modPow calls, which are faster than any
+     * interleaving written on top of BigInteger multiply/mod.
+     */
+    public static BigInteger modPow2(BigInteger b1, BigInteger e1, BigInteger b2, BigInteger e2, BigInteger p) {
+        MontgomeryEngine m = engine(p);
+        return m != null ? m.modPow2(b1, e1, b2, e2) : b1.modPow(e1, p).multiply(b2.modPow(e2, p)).mod(p);
+    }
+
+    /**
+     * b[0]^e[0]*...*b[terms-1]^e[terms-1] mod p. Many-term products always go through the
+     * Montgomery engine of p, even with the switch off: BigInteger has nothing like it, and
+     * sharing one chain of squarings among all the terms beats one intrinsified modPow per term.
+     */
+    public static BigInteger modPowMulti(BigInteger[] b, BigInteger[] e, int terms, BigInteger p) {
+        if (terms <= 2 && engine(p) == null) {
+            BigInteger r = BigInteger.ONE;
+            for (int i = 0; i < terms; i++) {
+                r = r.multiply(b[i].modPow(e[i], p)).mod(p);
+            }
+            return r;
+        }
+        return MontgomeryEngine.forModulus(p).modPowMulti(b, e, terms);
+    }
+
+    /**
+     * Jacobi symbol (a/n) for odd n > 0: with p=2q+1 prime, a in [1,p-1] lies in the subgroup
+     * of order q iff (a/p)=1, at the price of a binary gcd instead of an exponentiation.
+     */
+    public static int jacobi(BigInteger a, BigInteger n) {
+        int len = (n.bitLength() + 31) / 32;
+        int[] x = limbs(a.mod(n), len), y = limbs(n, len); // little-endian 32-bit limbs
+        int t = 1;
+        while (!isZero(x)) {
+            int z = lowestSetBit(x);
+            if (z > 0) {
+                shiftRight(x, z);
+                int r = y[0] & 7; // (2/n)=-1 iff n=3,5 mod 8
+                if ((z & 1) == 1 && (r == 3 || r == 5)) {
+                    t = -t;
+                }
+            }
+            if (compare(x, y) < 0) { // reciprocity: (x/y)=(y/x) unless x=y=3 mod 4
+                int[] tmp = x;
+                x = y;
+                y = tmp;
+                if ((x[0] & 3) == 3 && (y[0] & 3) == 3) {
+                    t = -t;
+                }
+            }
+            subtract(x, y); // x odd, y odd, x >= y: x-y is even
+        }
+        return y[0] == 1 && isOneAbove(y) ? t : 0;
+    }
+
+    private static int[] limbs(BigInteger v, int len) {
+        int[] r = new int[len];
+        for (int i = 0; i < len; i++) {
+            r[i] = v.shiftRight(32 * i).intValue();
+        }
+        return r;
+    }
+
+    private static boolean isZero(int[] x) {
+        for (int v : x) {
+            if (v != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isOneAbove(int[] x) {
+        // all limbs but the lowest are 0
+        for (int i = 1; i < x.length; i++) {
+            if (x[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int lowestSetBit(int[] x) {
+        for (int i = 0; i < x.length; i++) {
+            if (x[i] != 0) {
+                return 32 * i + Integer.numberOfTrailingZeros(x[i]);
+            }
+        }
+        return -1;
+    }
+
+    private static void shiftRight(int[] x, int z) {
+        int words = z >>> 5, bits = z & 31;
+        for (int i = 0; i < x.length; i++) {
+            long lo = i + words < x.length ? x[i + words] & 0xFFFFFFFFL : 0;
+            long hi = i + words + 1 < x.length ? x[i + words + 1] & 0xFFFFFFFFL : 0;
+            x[i] = (int) (((hi << 32) | lo) >>> bits);
+        }
+    }
+
+    private static int compare(int[] x, int[] y) {
+        for (int i = x.length - 1; i >= 0; i--) {
+            if (x[i] != y[i]) {
+                return Integer.compareUnsigned(x[i], y[i]);
+            }
+        }
+        return 0;
+    }
+
+    private static void subtract(int[] x, int[] y) {
+        long borrow = 0;
+        for (int i = 0; i < x.length; i++) {
+            long d = (x[i] & 0xFFFFFFFFL) - (y[i] & 0xFFFFFFFFL) - borrow;
+            x[i] = (int) d;
+            borrow = d < 0 ? 1 : 0;
+        }
+    }
+
+    public static BigInteger modMul(BigInteger a, BigInteger b, BigInteger p) {
+        MontgomeryEngine m = engine(p);
+        return m != null ? m.modMul(a, b) : a.multiply(b).mod(p);
+    }
+}
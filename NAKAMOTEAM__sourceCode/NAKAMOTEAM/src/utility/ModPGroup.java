@@ -0,0 +1,112 @@
+package utility;
+
+import java.math.BigInteger;
+import java.util.Objects;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class ModPGroup implements Group {
+
+    // Subgroup of order q of Zp*, generated by g (with p=2q+1 it is the group of the quadratic residues).
+    // contains is what keeps a received element out of the small subgroups of Zp*: with a DSA-style p
+    // (p-1 full of small factors) an element of small order raised to a secret leaks the secret
+    // modulo that order.
+
+    private static final long serialVersionUID = 1L;
+
+    private final BigInteger p, q, g;
+    private final boolean safePrime; // p=2q+1
+
+    public ModPGroup(BigInteger p, BigInteger q, BigInteger g) {
+        this.p = p;
+        this.q = q;
+        this.g = g;
+        this.safePrime = p.equals(q.shiftLeft(1).add(BigInteger.ONE));
+    }
+
+    public BigInteger getModulus() {
+        return p;
+    }
+
+    @Override
+    public BigInteger order() {
+        return q;
+    }
+
+    @Override
+    public BigInteger generator() {
+        return g;
+    }
+
+    @Override
+    public BigInteger identity() {
+        return BigInteger.ONE;
+    }
+
+    @Override
+    public BigInteger mul(BigInteger a, BigInteger b) {
+        return ModArith.modMul(a, b, p);
+    }
+
+    @Override
+    public BigInteger inverse(BigInteger a) {
+        return a.modInverse(p);
+    }
+
+    @Override
+    public BigInteger exp(BigInteger a, BigInteger e) {
+        return ModArith.modPow(a, e, p);
+    }
+
+    @Override
+    public boolean contains(BigInteger a) {
+        if (a.signum() <= 0 || a.compareTo(p) >= 0) {
+            return false;
+        }
+        if (safePrime) { // the subgroup is made of the QRs: a Jacobi symbol instead of an exponentiation
+            return ModArith.jacobi(a, p) == 1;
+        }
+        return ModArith.modPow(a, q, p).equals(BigInteger.ONE); // a^q=1
+
+    }
+
+    @Override
+    public int elementLength() {
+        return (p.bitLength() + 7) / 8;
+    }
+
+    @Override
+    public void encode(BigInteger a, byte[] out, int off) {
+        Utils.writeFixed(a, out, off, elementLength()); // big-endian, left-padded with zeros
+    }
+
+    @Override
+    public BigInteger decode(byte[] in, int off) {
+        byte[] be = new byte[elementLength()];
+        System.arraycopy(in, off, be, 0, be.length);
+        return new BigInteger(1, be);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 5;
+        hash = 67 * hash + Objects.hashCode(this.p);
+        hash = 67 * hash + Objects.hashCode(this.q);
+        hash = 67 * hash + Objects.hashCode(this.g);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final ModPGroup other = (ModPGroup) obj;
+        return Objects.equals(this.p, other.p) && Objects.equals(this.q, other.q) && Objects.equals(this.g, other.g);
+    }
+}
@@ -0,0 +1,375 @@
+package utility;
+
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public final class MontgomeryEngine {
+
+    // Modular arithmetic for a fixed odd modulus p in Montgomery form.
+    // A value x is kept as xR mod p with R=2^{32n}, as n little-endian 32-bit limbs stored in a long[]
+    // (a 32x32-bit product plus two carries always fits in 64 unsigned bits).
+    // The modulus setup is done once per p, and mul() writes into a caller-provided array,
+    // so a chain of operations does not allocate.
+
+    private static final long MASK = 0xFFFFFFFFL;
+
+    private static final ConcurrentHashMap<BigInteger, MontgomeryEngine> engines = new ConcurrentHashMap<>();
+
+    private final BigInteger p;
+    private final int n; // number of limbs
+    private final long[] mod; // limbs of p
+    private final long pInv; // -p^{-1} mod 2^32
+    private final long[] one; // R mod p, that is 1 in Montgomery form
+    private final long[] r2; // R^2 mod p, used to enter the Montgomery domain
+    private final ThreadLocal<long[]> scratch;
+
+    public MontgomeryEngine(BigInteger p) {
+        if (p.signum() <= 0 || !p.testBit(0)) {
+            throw new IllegalArgumentException("the modulus must be odd and positive");
+        }
+        this.p = p;
+        this.n = (p.bitLength() + 31) >>> 5;
+        this.mod = toLimbs(p, n);
+
+        long inv = mod[0]; // Newton iteration: inv=p^{-1} mod 2^32
+        for (int i = 0; i < 5; i++) {
+            inv = (inv * (2 - mod[0] * inv)) & MASK;
+        }
+        this.pInv = (-inv) & MASK;
+
+        this.one = toLimbs(BigInteger.ONE.shiftLeft(32 * n).mod(p), n);
+        this.r2 = toLimbs(BigInteger.ONE.shiftLeft(64 * n).mod(p), n);
+        this.scratch = ThreadLocal.withInitial(() -> new long[n + 2]);
+    }
+
+    public static MontgomeryEngine forModulus(BigInteger p) {
+        return engines.computeIfAbsent(p, MontgomeryEngine::new);
+    }
+
+    public BigInteger getModulus() {
+        return p;
+    }
+
+    public long[] newElement() {
+        return new long[n];
+    }
+
+    /**
+     * out=xR mod p, x in the Montgomery domain.
+     */
+    public void toMont(BigInteger x, long[] out) {
+        if (x.signum() < 0 || x.compareTo(p) >= 0) {
+            x = x.mod(p);
+        }
+        long[] t = toLimbs(x, n);
+        mul(t, r2, out); // xR^2/R=xR
+    }
+
+    /**
+     * Big-endian unsigned bytes (as written on the wire) straight into the Montgomery domain.
+     */
+    public void toMont(byte[] src, int off, int len, long[] out) {
+        for (int i = 0; i < n; i++) {
+            out[i] = 0;
+        }
+        for (int k = 0; k < len; k++) { // byte k from the end goes in limb k/4
+            int limb = k >>> 2;
+            if (limb < n) {
+                out[limb] |= (src[off + len - 1 - k] & 0xFFL) << ((k & 3) << 3);
+            }
+        }
+        if (compare(out, mod) >= 0) {
+            System.arraycopy(toLimbs(fromLimbs(out).mod(p), n), 0, out, 0, n);
+        }
+        mul(out, r2, out);
+    }
+
+    public BigInteger fromMont(long[] a) {
+        long[] t = new long[n];
+        long[] unit = new long[n];
+        unit[0] = 1;
+        mul(a, unit, t); // aR/R=a
+        return fromLimbs(t);
+    }
+
+    public void setOne(long[] out) {
+        System.arraycopy(one, 0, out, 0, n);
+    }
+
+    public void copy(long[] a, long[] out) {
+        System.arraycopy(a, 0, out, 0, n);
+    }
+
+    /**
+     * out=a*b/R mod p (CIOS). out may be the same array as a or b.
+     */
+    public void mul(long[] a, long[] b, long[] out) {
+        mul(a, b, out, scratch.get());
+    }
+
+    private void mul(long[] a, long[] b, long[] out, long[] t) {
+        for (int i = 0; i < n + 2; i++) {
+            t[i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            long bi = b[i];
+            long c = 0;
+            for (int j = 0; j < n; j++) { // t=t+a*b[i]
+                long s = t[j] + a[j] * bi + c;
+                t[j] = s & MASK;
+                c = s >>> 32;
+            }
+            long s = t[n] + c;
+            t[n] = s & MASK;
+            t[n + 1] = s >>> 32;
+
+            long m = (t[0] * pInv) & MASK; // t+m*p is divisible by 2^32
+            s = t[0] + m * mod[0];
+            c = s >>> 32;
+            for (int j = 1; j < n; j++) { // t=(t+m*p)/2^32
+                s = t[j] + m * mod[j] + c;
+                t[j - 1] = s & MASK;
+                c = s >>> 32;
+            }
+            s = t[n] + c;
+            t[n - 1] = s & MASK;
+            t[n] = t[n + 1] + (s >>> 32);
+        }
+        // here t < 2p
+        if (t[n] != 0 || compare(t, mod) >= 0) {
+            long borrow = 0;
+            for (int j = 0; j < n; j++) {
+                long s = t[j] - mod[j] - borrow;
+                t[j] = s & MASK;
+                borrow = (s >>> 63);
+            }
+        }
+        System.arraycopy(t, 0, out, 0, n);
+    }
+
+    /**
+     * out=base^e in the Montgomery domain, with a sliding window over the bits of e.
+     * e must be non-negative.
+     */
+    public void pow(long[] base, BigInteger e, long[] out) {
+        int bits = e.bitLength();
+        if (bits == 0) {
+            setOne(out);
+            return;
+        }
+        int w = bits > 1024 ? 6 : bits > 256 ? 5 : bits > 64 ? 4 : 2;
+
+        long[] t = scratch.get();
+
+        // odd powers base, base^3, ..., base^{2^w-1}
+        long[][] odd = new long[1 << (w - 1)][n];
+        long[] sq = new long[n];
+        copy(base, odd[0]);
+        mul(base, base, sq, t);
+        for (int i = 1; i < odd.length; i++) {
+            mul(odd[i - 1], sq, odd[i], t);
+        }
+
+        long[] acc = new long[n];
+        setOne(acc);
+        int i = bits - 1;
+        while (i >= 0) {
+            if (!e.testBit(i)) {
+                mul(acc, acc, acc, t);
+                i--;
+                continue;
+            }
+            // longest window e[i..j] with j > i-w that ends with a 1 bit
+            int j = Math.max(i - w + 1, 0);
+            while (!e.testBit(j)) {
+                j++;
+            }
+            int val = 0;
+            for (int k = i; k >= j; k--) {
+                mul(acc, acc, acc, t);
+                val = (val << 1) | (e.testBit(k) ? 1 : 0);
+            }
+            mul(acc, odd[val >>> 1], acc, t);
+            i = j - 1;
+        }
+        copy(acc, out);
+    }
+
+    /**
+     * out=b1^e1*b2^e2 in the Montgomery domain (Straus/Shamir trick): the sliding windows
+     * of the two exponents are interleaved so that the squarings are shared, and the
+     * product costs little more than a single exponentiation. e1 and e2 must be non-negative.
+     */
+    public void pow2(long[] b1, BigInteger e1, long[] b2, BigInteger e2, long[] out) {
+        powMulti(new long[][]{b1, b2}, new BigInteger[]{e1, e2}, 2, out);
+    }
+
+    /**
+     * out=b[0]^e[0]*...*b[n-1]^e[n-1] in the Montgomery domain, with the same interleaving
+     * as pow2: one chain of squarings for all the terms plus a few products per term.
+     * The exponents must be non-negative.
+     */
+    public void powMulti(long[][] b, BigInteger[] e, int terms, long[] out) {
+        int bits = 0;
+        for (int i = 0; i < terms; i++) {
+            bits = Math.max(bits, e[i].bitLength());
+        }
+        if (bits == 0) {
+            setOne(out);
+            return;
+        }
+
+        long[] t = scratch.get();
+        long[][][] odd = new long[terms][][];
+        int[][] at = new int[terms][]; // at[i][k]=v: multiply by b[i]^v after squaring for bit k
+        for (int i = 0; i < terms; i++) {
+            int eb = e[i].bitLength();
+            int w = eb > 256 ? 5 : eb > 64 ? 4 : eb > 16 ? 3 : 1;
+            odd[i] = oddPowers(b[i], w, t);
+            at[i] = windows(e[i], w, bits);
+        }
+
+        long[] acc = new long[n];
+        setOne(acc);
+        boolean one = true; // acc is still 1, squaring it is useless
+        for (int k = bits - 1; k >= 0; k--) {
+            if (!one) {
+                mul(acc, acc, acc, t);
+            }
+            for (int i = 0; i < terms; i++) {
+                if (at[i][k] != 0) {
+                    mul(acc, odd[i][at[i][k] >>> 1], acc, t);
+                    one = false;
+                }
+            }
+        }
+        copy(acc, out);
+    }
+
+    public BigInteger modPow2(BigInteger b1, BigInteger e1, BigInteger b2, BigInteger e2) {
+        if (e1.signum() < 0) {
+            b1 = b1.modInverse(p);
+            e1 = e1.negate();
+        }
+        if (e2.signum() < 0) {
+            b2 = b2.modInverse(p);
+            e2 = e2.negate();
+        }
+        long[] x = newElement();
+        long[] y = newElement();
+        toMont(b1, x);
+        toMont(b2, y);
+        pow2(x, e1, y, e2, x);
+        return fromMont(x);
+    }
+
+    public BigInteger modPowMulti(BigInteger[] b, BigInteger[] e, int terms) {
+        long[][] x = new long[terms][];
+        BigInteger[] f = new BigInteger[terms];
+        for (int i = 0; i < terms; i++) {
+            x[i] = newElement();
+            f[i] = e[i];
+            if (f[i].signum() < 0) {
+                toMont(b[i].modInverse(p), x[i]);
+                f[i] = f[i].negate();
+            } else {
+                toMont(b[i], x[i]);
+            }
+        }
+        long[] r = newElement();
+        powMulti(x, f, terms, r);
+        return fromMont(r);
+    }
+
+    private long[][] oddPowers(long[] base, int w, long[] t) {
+        // base, base^3, ..., base^{2^w-1}
+        long[][] odd = new long[1 << (w - 1)][n];
+        long[] sq = new long[n];
+        copy(base, odd[0]);
+        mul(base, base, sq, t);
+        for (int i = 1; i < odd.length; i++) {
+            mul(odd[i - 1], sq, odd[i], t);
+        }
+        return odd;
+    }
+
+    private static int[] windows(BigInteger e, int w, int bits) {
+        // sliding windows of e: each window e[i..j] (odd value) is recorded at its lowest bit j
+        int[] at = new int[bits];
+        int i = e.bitLength() - 1;
+        while (i >= 0) {
+            if (!e.testBit(i)) {
+                i--;
+                continue;
+            }
+            int j = Math.max(i - w + 1, 0);
+            while (!e.testBit(j)) {
+                j++;
+            }
+            int val = 0;
+            for (int k = i; k >= j; k--) {
+                val = (val << 1) | (e.testBit(k) ? 1 : 0);
+            }
+            at[j] = val;
+            i = j - 1;
+        }
+        return at;
+    }
+
+    public BigInteger modPow(BigInteger b, BigInteger e) {
+        if (e.signum() < 0) {
+            b = b.modInverse(p);
+            e = e.negate();
+        }
+        long[] x = newElement();
+        toMont(b, x);
+        pow(x, e, x);
+        return fromMont(x);
+    }
+
+    public BigInteger modMul(BigInteger a, BigInteger b) {
+        long[] x = newElement();
+        long[] y = toLimbs(b.signum() < 0 || b.compareTo(p) >= 0 ? b.mod(p) : b, n);
+        toMont(a, x);
+        mul(x, y, x); // aR*b/R=ab, already out of the Montgomery domain
+        return fromLimbs(x);
+    }
+
+    private int compare(long[] a, long[] b) {
+        for (int i = n - 1; i >= 0; i--) {
+            if (a[i] != b[i]) {
+                return a[i] < b[i] ? -1 : 1; // limbs are in [0, 2^32)
+            }
+        }
+        return 0;
+    }
+
+    private static long[] toLimbs(BigInteger x, int n) {
+        byte[] be = x.toByteArray();
+        long[] r = new long[n];
+        for (int k = 0; k < be.length; k++) {
+            int limb = k >>> 2;
+            if (limb < n) {
+                r[limb] |= (be[be.length - 1 - k] & 0xFFL) << ((k & 3) << 3);
+            }
+        }
+        return r;
+    }
+
+    private BigInteger fromLimbs(long[] a) {
+        byte[] be = new byte[4 * n];
+        for (int i = 0; i < n; i++) {
+            long v = a[i];
+            int pos = be.length - 4 * i;
+            be[pos - 1] = (byte) v;
+            be[pos - 2] = (byte) (v >>> 8);
+            be[pos - 3] = (byte) (v >>> 16);
+            be[pos - 4] = (byte) (v >>> 24);
+        }
+        return new BigInteger(1, be);
+    }
+}
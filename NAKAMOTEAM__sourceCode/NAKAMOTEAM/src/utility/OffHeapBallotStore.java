@@ -0,0 +1,311 @@
+package utility;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class OffHeapBallotStore implements BallotStore {
+
+    // BallotStore for large electorates: every ballot is a fixed-width record in direct ByteBuffers
+    // outside the Java heap, so the GC sees a few segments instead of an ElGamalCT, a SchnorrSig and
+    // five BigIntegers per ballot. A record is
+    //   fingerprint (2 longs) || pseudonym key (2 longs) || flags (int) || C || C2 || a || e || z
+    // with C and C2 in the canonical encoding of the group of PK (see ElGamalCT.encode) and a, e, z
+    // big-endian in sigLength bytes each. The pseudonym key is the first 128 bits of SHA-256 of the
+    // pseudonym, as a fingerprint is for a ciphertext.
+    // Records are kept dense (a removed record is replaced by the last one) and two open-addressing
+    // tables of record numbers (int[], linear probing, deletion by backward shift) find them by
+    // fingerprint and by pseudonym key. Tallying and export to Stab read the records in place.
+    // A signature with a component wider than sigLength is refused, as a duplicate would be.
+
+    private static final int SEGMENT_BYTES = 1 << 20;
+    private static final int FP = 0, PSEUDONYM = 16, FLAGS = 32, CT = 36; // offsets in a record
+    private static final int HAS_PSEUDONYM = 1;
+
+    private final ElGamalPK PK;
+    private final int elementLength, sigLength, recordLength, perSegment;
+    private final ArrayList<ByteBuffer> segments = new ArrayList<>();
+    private int count;
+    private int[] byFingerprint = new int[16]; // record number + 1, 0 if the slot is free
+    private int[] byPseudonym = new int[16];
+    private final byte[] scratch; // one record, used under the lock
+    private final ByteBuffer scratchView;
+
+    /**
+     * A store for signatures in the built-in Schnorr group (see SchnorrParameters.defaults).
+     */
+    public OffHeapBallotStore(ElGamalPK PK) {
+        this(PK, Utils.byteLength(SchnorrParameters.defaults().p));
+    }
+
+    public OffHeapBallotStore(ElGamalPK PK, int sigLength) {
+        this.PK = PK;
+        this.elementLength = PK.group.elementLength();
+        this.sigLength = sigLength;
+        this.recordLength = CT + 2 * elementLength + 3 * sigLength;
+        this.perSegment = Math.max(1, SEGMENT_BYTES / recordLength);
+        this.scratch = new byte[recordLength];
+        this.scratchView = ByteBuffer.wrap(scratch);
+    }
+
+    @Override
+    public boolean replace(String pseudonym, ElGamalCT oldCT, ElGamalCT newCT, SchnorrSig newSign) {
+        // encodings and digests are computed before taking the lock
+        byte[] oldEnc = oldCT == null ? null : oldCT.encode(PK);
+        byte[] newEnc = newCT == null ? null : newCT.encode(PK);
+        if (oldEnc == null && newEnc == null) {
+            return false;
+        }
+        BallotFingerprint oldFp = oldEnc == null ? null : BallotFingerprint.of(oldEnc);
+        BallotFingerprint newFp = newEnc == null ? null : BallotFingerprint.of(newEnc);
+        BallotFingerprint key = pseudonym == null ? null : BallotFingerprint.of(pseudonym.getBytes(StandardCharsets.UTF_8));
+        if (newEnc != null && !fits(newSign)) {
+            return false;
+        }
+        synchronized (this) {
+            int old = -1;
+            if (oldFp != null) {
+                int s = slotOf(byFingerprint, FP, oldFp.hi, oldFp.lo);
+                if (s < 0) {
+                    return false; // the ballot to replace is not here
+                }
+                old = byFingerprint[s] - 1;
+            }
+            boolean owned;
+            long keyHi, keyLo;
+            if (key != null) {
+                int s = slotOf(byPseudonym, PSEUDONYM, key.hi, key.lo);
+                if ((s < 0 ? -1 : byPseudonym[s] - 1) != old) {
+                    return false; // the voter's current ballot is another one
+                }
+                owned = true;
+                keyHi = key.hi;
+                keyLo = key.lo;
+            } else if (old >= 0) {
+                ByteBuffer b = segment(old);
+                int off = offset(old);
+                owned = (b.getInt(off + FLAGS) & HAS_PSEUDONYM) != 0;
+                keyHi = b.getLong(off + PSEUDONYM);
+                keyLo = b.getLong(off + PSEUDONYM + 8);
+            } else {
+                owned = false;
+                keyHi = keyLo = 0;
+            }
+            if (newFp != null && slotOf(byFingerprint, FP, newFp.hi, newFp.lo) >= 0) {
+                return false; // duplicate ciphertext
+            }
+            if (old >= 0) {
+                remove(old);
+            }
+            if (newFp != null) {
+                append(newFp, owned, keyHi, keyLo, newEnc, newSign);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public boolean contains(ElGamalCT CT) {
+        BallotFingerprint fp = CT.fingerprint(PK);
+        synchronized (this) {
+            return slotOf(byFingerprint, FP, fp.hi, fp.lo) >= 0;
+        }
+    }
+
+    @Override
+    public SignedVote ballotOf(String pseudonym) {
+        BallotFingerprint key = BallotFingerprint.of(pseudonym.getBytes(StandardCharsets.UTF_8));
+        byte[] record = new byte[recordLength];
+        synchronized (this) {
+            int s = slotOf(byPseudonym, PSEUDONYM, key.hi, key.lo);
+            if (s < 0) {
+                return null;
+            }
+            read(byPseudonym[s] - 1, record);
+        }
+        int sig = CT + 2 * elementLength;
+        ElGamalCT ct = new ElGamalCT(PK.group.decode(record, CT), PK.group.decode(record, CT + elementLength));
+        return new SignedVote(ct, new SchnorrSig(unsigned(record, sig), unsigned(record, sig + sigLength), unsigned(record, sig + 2 * sigLength)), null);
+    }
+
+    @Override
+    public synchronized int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized void forEach(BiConsumer<ElGamalCT, SchnorrSig> action) {
+        byte[] record = new byte[recordLength]; // not scratch: action may look into the store
+        int sig = CT + 2 * elementLength;
+        for (int r = 0; r < count; r++) {
+            read(r, record);
+            ElGamalCT ct = new ElGamalCT(PK.group.decode(record, CT), PK.group.decode(record, CT + elementLength));
+            action.accept(ct, new SchnorrSig(unsigned(record, sig), unsigned(record, sig + sigLength), unsigned(record, sig + 2 * sigLength)));
+        }
+    }
+
+    @Override
+    public synchronized void tallyInto(ElGamalAccumulator acc) {
+        for (int r = 0; r < count; r++) {
+            read(r, scratch);
+            acc.multiply(scratch, CT);
+        }
+    }
+
+    @Override
+    public synchronized void writePairs(DataOutput out) throws IOException {
+        int sig = CT + 2 * elementLength;
+        for (int r = 0; r < count; r++) {
+            read(r, scratch);
+            if (PK.p != null) { // in Zp* the canonical encoding is already the integer, padded
+                WireOutputStream.putUnsigned(out, scratch, CT, elementLength);
+                WireOutputStream.putUnsigned(out, scratch, CT + elementLength, elementLength);
+            } else {
+                WireOutputStream.putInteger(out, PK.group.decode(scratch, CT));
+                WireOutputStream.putInteger(out, PK.group.decode(scratch, CT + elementLength));
+            }
+            for (int i = 0; i < 3; i++) {
+                WireOutputStream.putUnsigned(out, scratch, sig + i * sigLength, sigLength);
+            }
+        }
+    }
+
+    private boolean fits(SchnorrSig sig) {
+        return sig != null && fits(sig.a) && fits(sig.e) && fits(sig.z);
+    }
+
+    private boolean fits(BigInteger x) {
+        return x != null && x.signum() >= 0 && x.bitLength() <= 8 * sigLength;
+    }
+
+    private BigInteger unsigned(byte[] record, int off) {
+        return new BigInteger(1, Arrays.copyOfRange(record, off, off + sigLength));
+    }
+
+    private ByteBuffer segment(int r) {
+        return segments.get(r / perSegment);
+    }
+
+    private int offset(int r) {
+        return (r % perSegment) * recordLength;
+    }
+
+    private void read(int r, byte[] dst) {
+        ByteBuffer b = segment(r);
+        b.position(offset(r));
+        b.get(dst, 0, recordLength);
+    }
+
+    private void write(int r, byte[] src) {
+        ByteBuffer b = segment(r);
+        b.position(offset(r));
+        b.put(src, 0, recordLength);
+    }
+
+    private void append(BallotFingerprint fp, boolean owned, long keyHi, long keyLo, byte[] enc, SchnorrSig sign) {
+        if (count == segments.size() * perSegment) {
+            segments.add(ByteBuffer.allocateDirect(perSegment * recordLength));
+        }
+        if (2 * (count + 1) > byFingerprint.length) { // load factor at most 1/2
+            rehash(2 * byFingerprint.length);
+        }
+        scratchView.putLong(FP, fp.hi);
+        scratchView.putLong(FP + 8, fp.lo);
+        scratchView.putLong(PSEUDONYM, keyHi);
+        scratchView.putLong(PSEUDONYM + 8, keyLo);
+        scratchView.putInt(FLAGS, owned ? HAS_PSEUDONYM : 0);
+        System.arraycopy(enc, 0, scratch, CT, 2 * elementLength);
+        int sig = CT + 2 * elementLength;
+        Utils.writeFixed(sign.a, scratch, sig, sigLength);
+        Utils.writeFixed(sign.e, scratch, sig + sigLength, sigLength);
+        Utils.writeFixed(sign.z, scratch, sig + 2 * sigLength, sigLength);
+        int r = count++;
+        write(r, scratch);
+        byFingerprint[-slotOf(byFingerprint, FP, fp.hi, fp.lo) - 1] = r + 1;
+        if (owned) {
+            byPseudonym[-slotOf(byPseudonym, PSEUDONYM, keyHi, keyLo) - 1] = r + 1;
+        }
+    }
+
+    private void remove(int r) {
+        unlink(byFingerprint, FP, r);
+        if (owned(r)) {
+            unlink(byPseudonym, PSEUDONYM, r);
+        }
+        int last = --count;
+        if (r != last) { // the last record fills the hole
+            read(last, scratch);
+            write(r, scratch);
+            byFingerprint[slotOf(byFingerprint, FP, scratchView.getLong(FP), scratchView.getLong(FP + 8))] = r + 1;
+            if ((scratchView.getInt(FLAGS) & HAS_PSEUDONYM) != 0) {
+                byPseudonym[slotOf(byPseudonym, PSEUDONYM, scratchView.getLong(PSEUDONYM), scratchView.getLong(PSEUDONYM + 8))] = r + 1;
+            }
+        }
+    }
+
+    private boolean owned(int r) {
+        return (segment(r).getInt(offset(r) + FLAGS) & HAS_PSEUDONYM) != 0;
+    }
+
+    private static int home(long lo, int mask) {
+        return (int) (lo ^ (lo >>> 32)) & mask; // the key is already uniformly distributed
+    }
+
+    /**
+     * The slot of the record with key (hi,lo) at keyOff, or -(free slot where it would go)-1.
+     */
+    private int slotOf(int[] table, int keyOff, long hi, long lo) {
+        int mask = table.length - 1;
+        for (int s = home(lo, mask);; s = (s + 1) & mask) {
+            if (table[s] == 0) {
+                return -s - 1;
+            }
+            int r = table[s] - 1;
+            ByteBuffer b = segment(r);
+            int off = offset(r) + keyOff;
+            if (b.getLong(off + 8) == lo && b.getLong(off) == hi) {
+                return s;
+            }
+        }
+    }
+
+    private void unlink(int[] table, int keyOff, int r) {
+        ByteBuffer b = segment(r);
+        int off = offset(r) + keyOff;
+        int hole = slotOf(table, keyOff, b.getLong(off), b.getLong(off + 8));
+        int mask = table.length - 1;
+        table[hole] = 0;
+        // backward shift: an entry after the hole moves into it if the hole is between its home and itself
+        for (int s = (hole + 1) & mask; table[s] != 0; s = (s + 1) & mask) {
+            int q = table[s] - 1;
+            int home = home(segment(q).getLong(offset(q) + keyOff + 8), mask);
+            if (((s - home) & mask) >= ((s - hole) & mask)) {
+                table[hole] = table[s];
+                table[s] = 0;
+                hole = s;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        byFingerprint = new int[capacity];
+        byPseudonym = new int[capacity];
+        for (int r = 0; r < count; r++) {
+            ByteBuffer b = segment(r);
+            int off = offset(r);
+            byFingerprint[-slotOf(byFingerprint, FP, b.getLong(off + FP), b.getLong(off + FP + 8)) - 1] = r + 1;
+            if (owned(r)) {
+                byPseudonym[-slotOf(byPseudonym, PSEUDONYM, b.getLong(off + PSEUDONYM), b.getLong(off + PSEUDONYM + 8)) - 1] = r + 1;
+            }
+        }
+    }
+}
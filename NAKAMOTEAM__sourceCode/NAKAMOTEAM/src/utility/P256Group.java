@@ -0,0 +1,245 @@
+package utility;
+
+import java.math.BigInteger;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public final class P256Group implements Group {
+
+    // NIST P-256 (secp256r1): y^2 = x^3 - 3x + b over Fp, prime order n, cofactor 1.
+    // An affine point (x,y) is encoded as the BigInteger x*2^256 + y and the point at infinity as 0;
+    // internally the arithmetic is done in Jacobian coordinates (X,Y,Z) ~ (X/Z^2, Y/Z^3)
+    // so that a scalar multiplication needs a single field inversion.
+    // The canonical encoding is the 33-byte SEC1 compressed point (all zeros for the identity),
+    // so an ElGamal ciphertext takes 66 bytes instead of twice the size of p.
+
+    private static final long serialVersionUID = 1L;
+
+    public static final P256Group INSTANCE = new P256Group();
+
+    private static final BigInteger P = new BigInteger("ffffffff00000001000000000000000000000000ffffffffffffffffffffffff", 16);
+    private static final BigInteger B = new BigInteger("5ac635d8aa3a93e7b3ebbd55769886bc651d06b0cc53b0f63bce3c3e27d2604b", 16);
+    private static final BigInteger N = new BigInteger("ffffffff00000000ffffffffffffffffbce6faada7179e84f3b9cac2fc632551", 16);
+    private static final BigInteger GX = new BigInteger("6b17d1f2e12c4247f8bce6e563a440f277037d812deb33a0f4a13945d898c296", 16);
+    private static final BigInteger GY = new BigInteger("4fe342e2fe1a7f9b8ee7eb4a7c0f9e162bce33576b315ececbb6406837bf51f5", 16);
+
+    private static final BigInteger MASK = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+    private static final BigInteger THREE = BigInteger.valueOf(3);
+    private static final BigInteger SQRT_EXP = P.add(BigInteger.ONE).shiftRight(2); // p=3 mod 4: sqrt(a)=a^{(p+1)/4}
+    private static final BigInteger G = GX.shiftLeft(256).or(GY);
+
+    private P256Group() {
+    }
+
+    private Object readResolve() {
+        return INSTANCE; // keep a single instance after deserialization
+    }
+
+    @Override
+    public BigInteger order() {
+        return N;
+    }
+
+    @Override
+    public BigInteger generator() {
+        return G;
+    }
+
+    @Override
+    public BigInteger identity() {
+        return BigInteger.ZERO;
+    }
+
+    @Override
+    public BigInteger mul(BigInteger a, BigInteger b) {
+        return toAffine(add(toJacobian(a), toJacobian(b)));
+    }
+
+    @Override
+    public BigInteger product(BigInteger[] factors, int n) {
+        BigInteger[] acc = infinity();
+        for (int i = 0; i < n; i++) {
+            acc = add(acc, toJacobian(factors[i]));
+        }
+        return toAffine(acc); // a single inversion for the whole product
+    }
+
+    @Override
+    public BigInteger inverse(BigInteger a) {
+        if (a.signum() == 0) {
+            return a;
+        }
+        BigInteger y = a.and(MASK);
+        return a.shiftRight(256).shiftLeft(256).or(P.subtract(y).mod(P)); // -(x,y)=(x,-y)
+    }
+
+    @Override
+    public BigInteger exp(BigInteger a, BigInteger e) {
+        e = e.mod(N);
+        if (a.signum() == 0 || e.signum() == 0) {
+            return BigInteger.ZERO;
+        }
+        // left-to-right, fixed 4-bit window
+        BigInteger[][] table = new BigInteger[16][];
+        table[1] = toJacobian(a);
+        table[2] = twice(table[1]);
+        for (int i = 3; i < 16; i++) {
+            table[i] = add(table[i - 1], table[1]);
+        }
+        BigInteger[] acc = infinity();
+        for (int i = ((e.bitLength() + 3) / 4) - 1; i >= 0; i--) {
+            for (int k = 0; k < 4; k++) {
+                acc = twice(acc);
+            }
+            int d = 0;
+            for (int k = 3; k >= 0; k--) {
+                d = (d << 1) | (e.testBit(4 * i + k) ? 1 : 0);
+            }
+            if (d != 0) {
+                acc = add(acc, table[d]);
+            }
+        }
+        return toAffine(acc);
+    }
+
+    @Override
+    public boolean contains(BigInteger a) {
+        if (a.signum() == 0) {
+            return true;
+        }
+        if (a.signum() < 0 || a.bitLength() > 512) {
+            return false;
+        }
+        BigInteger x = a.shiftRight(256), y = a.and(MASK);
+        if (x.compareTo(P) >= 0 || y.compareTo(P) >= 0) {
+            return false;
+        }
+        return y.multiply(y).mod(P).equals(rhs(x)); // cofactor 1: every point of the curve is in the group
+    }
+
+    @Override
+    public int elementLength() {
+        return 33;
+    }
+
+    @Override
+    public void encode(BigInteger a, byte[] out, int off) {
+        for (int i = 0; i < 33; i++) {
+            out[off + i] = 0;
+        }
+        if (a.signum() == 0) {
+            return;
+        }
+        out[off] = (byte) (a.testBit(0) ? 0x03 : 0x02); // parity of y
+        Utils.writeFixed(a.shiftRight(256), out, off + 1, 32);
+    }
+
+    @Override
+    public BigInteger decode(byte[] in, int off) {
+        int prefix = in[off];
+        byte[] xb = new byte[32];
+        System.arraycopy(in, off + 1, xb, 0, 32);
+        BigInteger x = new BigInteger(1, xb);
+        if (prefix == 0) {
+            if (x.signum() != 0) {
+                throw new IllegalArgumentException("invalid encoding of the identity");
+            }
+            return BigInteger.ZERO;
+        }
+        if ((prefix != 0x02 && prefix != 0x03) || x.compareTo(P) >= 0) {
+            throw new IllegalArgumentException("invalid point encoding");
+        }
+        BigInteger r = rhs(x);
+        BigInteger y = r.modPow(SQRT_EXP, P);
+        if (!y.multiply(y).mod(P).equals(r)) {
+            throw new IllegalArgumentException("point not on the curve");
+        }
+        if (y.testBit(0) != (prefix == 0x03)) {
+            y = P.subtract(y);
+        }
+        return x.shiftLeft(256).or(y);
+    }
+
+    private static BigInteger rhs(BigInteger x) {
+        // x^3 - 3x + b mod p
+        return x.multiply(x).subtract(THREE).multiply(x).add(B).mod(P);
+    }
+
+    private static BigInteger[] infinity() {
+        return new BigInteger[]{BigInteger.ONE, BigInteger.ONE, BigInteger.ZERO};
+    }
+
+    private static BigInteger[] toJacobian(BigInteger a) {
+        if (a.signum() == 0) {
+            return infinity();
+        }
+        return new BigInteger[]{a.shiftRight(256), a.and(MASK), BigInteger.ONE};
+    }
+
+    private static BigInteger toAffine(BigInteger[] J) {
+        if (J[2].signum() == 0) {
+            return BigInteger.ZERO;
+        }
+        BigInteger zi = J[2].modInverse(P);
+        BigInteger zi2 = zi.multiply(zi).mod(P);
+        BigInteger x = J[0].multiply(zi2).mod(P);
+        BigInteger y = J[1].multiply(zi2).mod(P).multiply(zi).mod(P);
+        return x.shiftLeft(256).or(y);
+    }
+
+    private static BigInteger[] twice(BigInteger[] J) {
+        // dbl-2001-b, valid because a=-3
+        if (J[2].signum() == 0 || J[1].signum() == 0) {
+            return infinity();
+        }
+        BigInteger X = J[0], Y = J[1], Z = J[2];
+        BigInteger delta = Z.multiply(Z).mod(P);
+        BigInteger gamma = Y.multiply(Y).mod(P);
+        BigInteger beta = X.multiply(gamma).mod(P);
+        BigInteger alpha = X.subtract(delta).multiply(X.add(delta)).multiply(THREE).mod(P);
+        BigInteger X3 = alpha.multiply(alpha).subtract(beta.shiftLeft(3)).mod(P);
+        BigInteger Z3 = Y.add(Z).pow(2).subtract(gamma).subtract(delta).mod(P);
+        BigInteger Y3 = alpha.multiply(beta.shiftLeft(2).subtract(X3)).subtract(gamma.multiply(gamma).shiftLeft(3)).mod(P);
+        return new BigInteger[]{X3, Y3, Z3};
+    }
+
+    private static BigInteger[] add(BigInteger[] J1, BigInteger[] J2) {
+        if (J1[2].signum() == 0) {
+            return J2;
+        }
+        if (J2[2].signum() == 0) {
+            return J1;
+        }
+        boolean mixed = J2[2].equals(BigInteger.ONE); // J2 affine: U1=X1, S1=Y1 and Z3=Z1*H
+        BigInteger Z1Z1 = J1[2].multiply(J1[2]).mod(P);
+        BigInteger Z2Z2 = mixed ? BigInteger.ONE : J2[2].multiply(J2[2]).mod(P);
+        BigInteger U1 = mixed ? J1[0] : J1[0].multiply(Z2Z2).mod(P);
+        BigInteger U2 = J2[0].multiply(Z1Z1).mod(P);
+        BigInteger S1 = mixed ? J1[1] : J1[1].multiply(J2[2]).mod(P).multiply(Z2Z2).mod(P);
+        BigInteger S2 = J2[1].multiply(J1[2]).mod(P).multiply(Z1Z1).mod(P);
+        BigInteger H = U2.subtract(U1).mod(P);
+        BigInteger r = S2.subtract(S1).mod(P);
+        if (H.signum() == 0) {
+            return r.signum() == 0 ? twice(J1) : infinity(); // same point or opposite points
+        }
+        BigInteger H2 = H.multiply(H).mod(P);
+        BigInteger H3 = H.multiply(H2).mod(P);
+        BigInteger U1H2 = U1.multiply(H2).mod(P);
+        BigInteger X3 = r.multiply(r).subtract(H3).subtract(U1H2.shiftLeft(1)).mod(P);
+        BigInteger Y3 = r.multiply(U1H2.subtract(X3)).subtract(S1.multiply(H3)).mod(P);
+        BigInteger Z3 = (mixed ? J1[2] : J1[2].multiply(J2[2]).mod(P)).multiply(H).mod(P);
+        return new BigInteger[]{X3, Y3, Z3};
+    }
+
+    @Override
+    public int hashCode() {
+        return P256Group.class.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof P256Group;
+    }
+}
@@ -0,0 +1,181 @@
+package utility;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class PasswordHasher {
+
+    // Password hashing of Splat: PBKDF2WithHmacSHA256 with a configurable number of iterations,
+    // slow on purpose, so it runs on its own bounded executor instead of the threads that serve the
+    // voters: at most `threads` hashes at a time (the cores it may take from ballot forwarding) and
+    // at most `queue` waiting. Beyond that a request is refused with RejectedExecutionException
+    // instead of piling up, and the refusals are counted with the other metrics (see toString).
+    // A stored hash is "pbkdf2-sha256$iterations$hex": the iterations travel with it, so raising them
+    // does not invalidate the credentials already registered (e.g. replayed from the log). A hash
+    // without the prefix is the old SHA-256(salt||pwd), still verified.
+    // The executor of the election is configured by the system properties splat.kdf.iterations,
+    // splat.kdf.threads and splat.kdf.queue (see defaults).
+
+    public static final String ITERATIONS_PROPERTY = "splat.kdf.iterations";
+    public static final String THREADS_PROPERTY = "splat.kdf.threads";
+    public static final String QUEUE_PROPERTY = "splat.kdf.queue";
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final int KEY_BITS = 256;
+
+    private static volatile PasswordHasher defaults;
+
+    private final int iterations;
+    private final ThreadPoolExecutor executor;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder(); // time spent in the queue
+    private final LongAdder hashNanos = new LongAdder();
+    private final AtomicInteger maxQueued = new AtomicInteger();
+
+    public PasswordHasher(int iterations, int threads, int queue) {
+        if (iterations < 1 || threads < 1 || queue < 1) {
+            throw new IllegalArgumentException("iterations, threads and queue must be positive");
+        }
+        this.iterations = iterations;
+        AtomicInteger n = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue), r -> {
+            Thread t = new Thread(r, "kdf-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * The hasher of this election: 210000 iterations, half of the cores (at least one) and a queue of
+     * 64, unless the properties say otherwise.
+     */
+    public static PasswordHasher defaults() {
+        PasswordHasher d = defaults;
+        if (d == null) {
+            synchronized (PasswordHasher.class) {
+                d = defaults;
+                if (d == null) {
+                    d = defaults = new PasswordHasher(Integer.getInteger(ITERATIONS_PROPERTY, 210000),
+                            Integer.getInteger(THREADS_PROPERTY, Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                            Integer.getInteger(QUEUE_PROPERTY, 64));
+                }
+            }
+        }
+        return d;
+    }
+
+    /**
+     * The string to store for pwd with salt.
+     */
+    public String hash(String pwd, byte[] salt) throws InterruptedException {
+        return PREFIX + iterations + "$" + Utils.toHex(run(pwd, salt, iterations));
+    }
+
+    /**
+     * True if pwd with salt gives the stored hash; the comparison takes the same time wherever the
+     * first difference is.
+     */
+    public boolean verify(String pwd, byte[] salt, String stored) throws InterruptedException, NoSuchAlgorithmException {
+        if (!stored.startsWith(PREFIX)) { // credential registered before PBKDF2
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(salt);
+            return MessageDigest.isEqual(md.digest(Utils.toByteArray(pwd)), Utils.toByteArray(stored));
+        }
+        int sep = stored.indexOf('$', PREFIX.length());
+        int rounds;
+        try {
+            rounds = Integer.parseInt(stored.substring(PREFIX.length(), sep));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return false;
+        }
+        if (rounds < 1) {
+            return false;
+        }
+        return MessageDigest.isEqual(Utils.toByteArray(Utils.toHex(run(pwd, salt, rounds))),
+                Utils.toByteArray(stored.substring(sep + 1)));
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueued.get();
+    }
+
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        long done = completed.sum();
+        return "PasswordHasher{iterations=" + iterations + ", threads=" + executor.getMaximumPoolSize()
+                + ", active=" + getActive() + ", queued=" + getQueueDepth() + ", maxQueued=" + getMaxQueueDepth()
+                + ", completed=" + done + ", rejected=" + getRejected()
+                + ", avgWaitMs=" + (done == 0 ? 0 : waitNanos.sum() / done / 1000000)
+                + ", avgHashMs=" + (done == 0 ? 0 : hashNanos.sum() / done / 1000000) + '}';
+    }
+
+    private byte[] run(String pwd, byte[] salt, int rounds) throws InterruptedException {
+        long submitted = System.nanoTime();
+        Future<byte[]> f;
+        try {
+            f = executor.submit(() -> {
+                long start = System.nanoTime();
+                waitNanos.add(start - submitted);
+                try {
+                    return pbkdf2(pwd, salt, rounds);
+                } finally {
+                    hashNanos.add(System.nanoTime() - start);
+                    completed.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        int queued = executor.getQueue().size();
+        maxQueued.accumulateAndGet(queued, Math::max);
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            f.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause()); // every JVM has PBKDF2WithHmacSHA256
+        }
+    }
+
+    private static byte[] pbkdf2(String pwd, byte[] salt, int rounds) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        PBEKeySpec spec = new PBEKeySpec(pwd.toCharArray(), salt, rounds, KEY_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
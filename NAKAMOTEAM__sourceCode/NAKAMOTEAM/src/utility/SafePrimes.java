@@ -0,0 +1,224 @@
+package utility;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public final class SafePrimes {
+
+    // Search of safe primes p=2q+1 with q prime, used by ElGamalGen and SchnorrParameters.
+    // Every worker starts from a random odd q0 and sieves the window q0, q0+2, q0+4, ... with the
+    // odd primes below SIEVE_LIMIT: q is dropped if q=0 mod r (r divides q) or q=(r-1)/2 mod r
+    // (r divides 2q+1). Only the survivors pay for a Fermat test on q and on p and, at last,
+    // for the full probabilistic tests. The workers race each other: the first safe prime
+    // found cancels all the others.
+    // findP does the same for DSA-style groups: a large p=1 mod 2q for a given short prime q,
+    // sieving the progression p0, p0+2q, p0+4q, ...
+
+    private static final int SIEVE_LIMIT = 1 << 16;
+    private static final int[] SMALL_PRIMES = oddPrimesBelow(SIEVE_LIMIT); // shared by all the workers
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+
+    private SafePrimes() {
+    }
+
+    /**
+     * Returns a prime q of exactly bits bits such that 2q+1 is prime, using all the processors.
+     */
+    public static BigInteger findQ(int bits) {
+        return findQ(bits, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static BigInteger findQ(int bits, int threads) {
+        if (bits < 3) {
+            throw new IllegalArgumentException("bits must be at least 3");
+        }
+        return race(threads, () -> search(bits, new SecureRandom()));
+    }
+
+    /**
+     * Returns a prime p of exactly pBits bits with p=1 mod 2q, so that Zp* has a subgroup of
+     * order q, using all the processors.
+     */
+    public static BigInteger findP(BigInteger q, int pBits) {
+        return findP(q, pBits, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static BigInteger findP(BigInteger q, int pBits, int threads) {
+        if (q.bitLength() + 2 > pBits || q.compareTo(BigInteger.valueOf(SIEVE_LIMIT)) < 0) {
+            throw new IllegalArgumentException("q must be larger than the sieve and shorter than p");
+        }
+        return race(threads, () -> searchP(q, pBits, new SecureRandom()));
+    }
+
+    private static BigInteger race(int threads, Callable<BigInteger> task) {
+        if (threads <= 1) {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw new IllegalStateException("prime search failed", e);
+            }
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "safe-prime");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Callable<BigInteger>> tasks = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                tasks.add(task);
+            }
+            return workers.invokeAny(tasks); // returns the first prime found and cancels the other workers
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("prime search interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("prime search failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static BigInteger search(int bits, SecureRandom sc) {
+        if (bits < 32) { // too small for the sieve: it would reject the small primes themselves
+            while (true) {
+                BigInteger q = BigInteger.probablePrime(bits, sc);
+                if (q.shiftLeft(1).add(BigInteger.ONE).isProbablePrime(50)) {
+                    return q;
+                }
+            }
+        }
+
+        int window = Math.max(1024, 16 * bits);
+        boolean[] rejected = new boolean[window]; // rejected[k] refers to q0+2k
+        while (true) {
+            BigInteger q0 = new BigInteger(bits, sc).setBit(bits - 1).setBit(0);
+            Arrays.fill(rejected, false);
+            for (int r : SMALL_PRIMES) {
+                int m = q0.mod(BigInteger.valueOf(r)).intValue();
+                int inv2 = (r + 1) / 2; // 2^{-1} mod r
+                // q0+2k=0 mod r iff k=-m/2, q0+2k=(r-1)/2 mod r iff k=((r-1)/2-m)/2
+                int k0 = (int) ((long) (r - m) % r * inv2 % r);
+                int k1 = (int) ((long) (((r - 1) / 2 - m) % r + r) % r * inv2 % r);
+                for (int k = k0; k < window; k += r) {
+                    rejected[k] = true;
+                }
+                for (int k = k1; k < window; k += r) {
+                    rejected[k] = true;
+                }
+            }
+
+            for (int k = 0; k < window; k++) {
+                if (rejected[k]) {
+                    continue;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException(); // another worker has won
+                }
+                BigInteger q = q0.add(BigInteger.valueOf(2L * k));
+                if (q.bitLength() != bits) {
+                    break; // ran past 2^bits: draw a new window
+                }
+                BigInteger p = q.shiftLeft(1).add(BigInteger.ONE);
+                if (!TWO.modPow(q.subtract(BigInteger.ONE), q).equals(BigInteger.ONE)) {
+                    continue; // q fails Fermat base 2
+                }
+                if (!TWO.modPow(q.shiftLeft(1), p).equals(BigInteger.ONE)) {
+                    continue; // p fails Fermat base 2
+                }
+                if (q.isProbablePrime(50) && p.isProbablePrime(50)) {
+                    return q;
+                }
+            }
+        }
+    }
+
+    private static BigInteger searchP(BigInteger q, int pBits, SecureRandom sc) {
+        BigInteger step = q.shiftLeft(1); // p0+k*2q stays =1 mod 2q
+        int window = Math.max(1024, 4 * pBits);
+        boolean[] rejected = new boolean[window]; // rejected[k] refers to p0+2kq
+        while (true) {
+            BigInteger x = new BigInteger(pBits, sc).setBit(pBits - 1);
+            BigInteger p0 = x.subtract(x.mod(step)).add(BigInteger.ONE);
+            if (p0.bitLength() != pBits) {
+                continue;
+            }
+            Arrays.fill(rejected, false);
+            for (int r : SMALL_PRIMES) {
+                int m = p0.mod(BigInteger.valueOf(r)).intValue();
+                int st = step.mod(BigInteger.valueOf(r)).intValue(); // not 0: q > r
+                // p0+k*step=0 mod r iff k=-m/step mod r
+                int k0 = (int) ((long) (r - m) % r * inverse(st, r) % r);
+                for (int k = k0; k < window; k += r) {
+                    rejected[k] = true;
+                }
+            }
+
+            for (int k = 0; k < window; k++) {
+                if (rejected[k]) {
+                    continue;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException(); // another worker has won
+                }
+                BigInteger p = p0.add(step.multiply(BigInteger.valueOf(k)));
+                if (p.bitLength() != pBits) {
+                    break; // ran past 2^pBits: draw a new window
+                }
+                if (!TWO.modPow(p.subtract(BigInteger.ONE), p).equals(BigInteger.ONE)) {
+                    continue; // p fails Fermat base 2
+                }
+                if (p.isProbablePrime(50)) {
+                    return p;
+                }
+            }
+        }
+    }
+
+    private static long inverse(int a, int r) {
+        // a^{-1} mod r with the extended Euclidean algorithm, r prime and a != 0 mod r
+        long t = 0, newT = 1, x = r, newX = a;
+        while (newX != 0) {
+            long quot = x / newX, tmp;
+            tmp = t - quot * newT;
+            t = newT;
+            newT = tmp;
+            tmp = x - quot * newX;
+            x = newX;
+            newX = tmp;
+        }
+        return t < 0 ? t + r : t;
+    }
+
+    private static int[] oddPrimesBelow(int n) {
+        boolean[] composite = new boolean[n];
+        int count = 0;
+        for (int i = 3; i < n; i += 2) {
+            if (!composite[i]) {
+                count++;
+                for (long j = (long) i * i; j < n; j += 2L * i) {
+                    composite[(int) j] = true;
+                }
+            }
+        }
+        int[] primes = new int[count];
+        for (int i = 3, c = 0; i < n; i += 2) {
+            if (!composite[i]) {
+                primes[c++] = i;
+            }
+        }
+        return primes;
+    }
+}
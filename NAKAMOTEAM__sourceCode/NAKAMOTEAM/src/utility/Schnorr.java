@@ -3,6 +3,10 @@ package utility;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -11,32 +15,19 @@ import java.security.SecureRandom;
 public class Schnorr {
 
     private SchnorrSK SK;
+    private final SchnorrParameters params;
 
     public Schnorr(int securityparameter) {
-        BigInteger p, q, g, h;
-
-        SecureRandom sc = new SecureRandom();
-        while (true) {
-            q = BigInteger.probablePrime(securityparameter, sc);
-            p = q.multiply(BigInteger.valueOf(2)).add(BigInteger.ONE);
-            if (p.isProbablePrime(50) == true) {
-                break;
-            }
-        }
-
-        g = new BigInteger("2");
-
-        while (true) {
+        this(SchnorrParameters.generate(securityparameter)); // fresh group: slow, see SchnorrParameters.defaults()
+    }
 
-            if (isqr(g, p) == 1) {
-                break;
-            }
-            g = g.add(BigInteger.ONE);
-        }
+    public Schnorr(SchnorrParameters params) {
+        this.params = params;
 
-        BigInteger s = new BigInteger(securityparameter, sc);
-        h = g.modPow(s, p);
-        SchnorrPK PK = new SchnorrPK(p, q, g, h, securityparameter);
+        SecureRandom sc = new SecureRandom();
+        BigInteger s = new BigInteger(params.securityparameter, sc);
+        BigInteger h = params.powG(s); // h=g^s mod p
+        SchnorrPK PK = new SchnorrPK(params.p, params.q, params.g, h, params.securityparameter);
 
         SK = new SchnorrSK(s, PK);
     }
@@ -49,69 +40,207 @@ public class Schnorr {
         return SK.PK;
     }
 
-    private int isqr(BigInteger x, BigInteger p) {
-
-        if (x.modPow(p.subtract(BigInteger.ONE).divide(BigInteger.valueOf(2)), p).compareTo(BigInteger.ONE) == 0) {
-            return 1;
-        }
-        return 0;
+    private static BigInteger hashToBigInteger(SchnorrPK PK, BigInteger a, byte[] M) {
+        // Hash g||h||a||M to a BigInteger, g, h and a in the fixed width of p
+        int len = Utils.byteLength(PK.p);
+        byte[] buf = new byte[3 * len];
+        Utils.writeFixed(PK.g, buf, 0, len);
+        Utils.writeFixed(PK.h, buf, len, len);
+        Utils.writeFixed(a, buf, 2 * len, len);
+        MessageDigest h = Utils.sha256(); // one digest per thread, reset by digest()
+        h.update(buf);
+        h.update(M);
+        return new BigInteger(1, h.digest()).mod(PK.q);
     }
 
-    private BigInteger hashToBigInteger(BigInteger a, String M) {
-        // Hash PK+a+M to a BigInteger
-        String msg = SK.PK.g.toString() + SK.PK.h.toString() + a.toString() + M;
-        try { // hash a String using MessageDigest class
-            MessageDigest h = MessageDigest.getInstance("SHA256");
-            h.update(Utils.toByteArray(msg));
-            BigInteger e = new BigInteger(h.digest());
-
-            return e.mod(SK.PK.q);
-        } catch (Exception E) {
-            E.printStackTrace();
-        }
-
-        BigInteger e = new BigInteger("0");
-        return e;
-    }
-
-    private static BigInteger hashToBigInteger(SchnorrPK PK, BigInteger a, String M) {
-        // Hash PK+a+M to a BigInteger
-        String msg = PK.g.toString() + PK.h.toString() + a.toString() + M;
-        try { // hash a String using MessageDigest class
-            MessageDigest h = MessageDigest.getInstance("SHA256");
-            h.update(Utils.toByteArray(msg));
-            BigInteger e = new BigInteger(h.digest());
-
-            return e.mod(PK.q);
-        } catch (Exception E) {
-            E.printStackTrace();
-        }
-
-        BigInteger e = new BigInteger("0");
-        return e;
-    }
-
-    public SchnorrSig sign(String M) {
+    public SchnorrSig sign(byte[] M) {
         SecureRandom sc = new SecureRandom(); // generate secure random source
         BigInteger r = new BigInteger(SK.PK.securityparameter, sc); // choose random r
-        BigInteger a = SK.PK.g.modPow(r, SK.PK.p); // a=g^r mod p
-        BigInteger e = hashToBigInteger(a, M); // e=H(PK,a,M)
+        BigInteger a = params.powG(r); // a=g^r mod p
+        BigInteger e = hashToBigInteger(SK.PK, a, M); // e=H(PK,a,M)
         BigInteger z = r.add(e.multiply(SK.s).mod(SK.PK.q)).mod(SK.PK.q); // z=r+es mod q
         return new SchnorrSig(a, e, z); // (a,e,z) is the signature of M
 
     }
 
-    public static boolean verify(SchnorrSig sigma, SchnorrPK PK, String M) {
+    public SchnorrSig sign(String M) {
+        return sign(Utils.toByteArray(M));
+    }
+
+    public static boolean verify(SchnorrSig sigma, SchnorrPK PK, byte[] M) {
         // sigma is the triple (a,e,z), PK is the pair (g,h)
+        if (!wellFormed(sigma, PK)) {
+            return false; // received from outside: hashing or exponentiating it would throw
+        }
         BigInteger e2 = hashToBigInteger(PK, sigma.a, M); // e2=H(PK,a,M)
         // crucial that we use the hash computed by ourself and not the challenge e in the signature
         // actually the value e in the signature is NOT needed
-        BigInteger tmp = sigma.a.multiply(PK.h.modPow(e2, PK.p)).mod(PK.p); // tmp=ah^e2
-        if (tmp.compareTo(PK.g.modPow(sigma.z, PK.p)) == 0) // compare tmp with g^z mod p
+        // g^z=ah^e2 iff a=g^z*h^{-e2}=g^z*h^{q-e2}, h having order q
+        BigInteger tmp;
+        SchnorrParameters sp = SchnorrParameters.cached(PK);
+        if (sp != null) { // known group: g^z from the shared table
+            tmp = ModArith.modMul(sp.powG(sigma.z), ModArith.modPow(PK.h, PK.q.subtract(e2), PK.p), PK.p);
+        } else { // one multi-exponentiation
+            tmp = ModArith.modPow2(PK.g, sigma.z, PK.h, PK.q.subtract(e2), PK.p); // tmp=g^z*h^{q-e2} mod p
+        }
+        if (tmp.compareTo(sigma.a) == 0) // compare tmp with a
         {
             return true;
         }
         return false;
     }
 
+    private static boolean wellFormed(SchnorrSig sigma, SchnorrPK PK) {
+        // what hashToBigInteger and the exponentiations need: q > 0, g, h and a in [1,p-1], z in [0,q-1].
+        // Anything else is not a valid signature, and verify says so instead of throwing
+        if (sigma == null || PK == null || PK.p == null || PK.q == null || PK.g == null || PK.h == null
+                || sigma.a == null || sigma.z == null || PK.q.signum() <= 0 || PK.p.compareTo(BigInteger.ONE) <= 0) {
+            return false;
+        }
+        return inZpStar(PK.g, PK.p) && inZpStar(PK.h, PK.p) && inZpStar(sigma.a, PK.p)
+                && sigma.z.signum() >= 0 && sigma.z.compareTo(PK.q) < 0;
+    }
+
+    private static boolean inZpStar(BigInteger x, BigInteger p) {
+        return x.signum() > 0 && x.compareTo(p) < 0;
+    }
+
+    public static boolean verify(SchnorrSig sigma, SchnorrPK PK, String M) {
+        return verify(sigma, PK, Utils.toByteArray(M));
+    }
+
+    /**
+     * Verifies many signed votes at once. Returns ok[i]=true iff the signature of
+     * votes.get(i) on its ciphertext (encoded under the election key PK) is valid, exactly
+     * as verify would say; an entry with a missing ciphertext, signature or key, or with a ciphertext
+     * that is not made of elements of the group of PK (see ElGamalCT.isValid), is reported invalid.
+     */
+    public static boolean[] verifyBatch(ElGamalPK PK, List<SignedVote> votes) {
+        boolean[] ok = new boolean[votes.size()];
+        Map<List<BigInteger>, List<Item>> groups = new HashMap<>(); // signatures grouped by (p,q,g)
+        for (int i = 0; i < votes.size(); i++) {
+            SignedVote sv = votes.get(i);
+            if (sv == null || sv.getVoteCT() == null || sv.getSign() == null || sv.getSignedPK() == null || !sv.getVoteCT().isValid(PK)) {
+                continue;
+            }
+            SchnorrPK signer = sv.getSignedPK();
+            SchnorrSig sigma = sv.getSign();
+            if (!wellFormed(sigma, signer)) {
+                continue;
+            }
+            BigInteger e = hashToBigInteger(signer, sigma.a, sv.getVoteCT().encode(PK));
+            List<BigInteger> key = new ArrayList<>(3);
+            key.add(signer.p);
+            key.add(signer.q);
+            key.add(signer.g);
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(new Item(i, signer, sigma, e));
+        }
+
+        SecureRandom sc = new SecureRandom();
+        for (List<Item> items : groups.values()) {
+            List<Item> candidates = new ArrayList<>(items.size());
+            Map<BigInteger, Boolean> members = new HashMap<>(); // g and the keys h are checked once per group
+            for (Item it : items) {
+                if (items.size() == 1 || inSubgroup(it, members)) { // the batch test is sound only inside the subgroup of order q
+                    candidates.add(it);
+                } else {
+                    check(it, ok); // on its own, exactly as verify
+                }
+            }
+            bisect(candidates, 0, candidates.size(), ok, sc);
+        }
+        return ok;
+    }
+
+    private static void bisect(List<Item> items, int from, int to, boolean[] ok, SecureRandom sc) {
+        if (to - from <= 0) {
+            return;
+        }
+        if (to - from == 1) {
+            check(items.get(from), ok);
+            return;
+        }
+        if (batch(items, from, to, sc)) {
+            for (int i = from; i < to; i++) {
+                ok[items.get(i).index] = true;
+            }
+            return;
+        }
+        // at least one bad signature: look for it in both halves
+        int mid = (from + to) >>> 1;
+        bisect(items, from, mid, ok, sc);
+        bisect(items, mid, to, ok, sc);
+    }
+
+    private static void check(Item it, boolean[] ok) {
+        SchnorrPK PK = it.PK;
+        ok[it.index] = ModArith.modPow2(PK.g, it.sigma.z, PK.h, PK.q.subtract(it.e), PK.p).equals(it.sigma.a);
+    }
+
+    private static boolean batch(List<Item> items, int from, int to, SecureRandom sc) {
+        // with random 64-bit d_i: g^z_i=a_i*h_i^e_i for all i (up to probability 2^-64) iff
+        // g^{sum d_i*z_i} * prod h_i^{d_i*(q-e_i)} = prod a_i^{d_i}
+        SchnorrPK PK = items.get(from).PK;
+        BigInteger p = PK.p, q = PK.q;
+        int n = to - from;
+
+        BigInteger zSum = BigInteger.ZERO;
+        Map<BigInteger, BigInteger> hExp = new HashMap<>(); // signatures of the same signer share one term
+        BigInteger[] aBase = new BigInteger[n];
+        BigInteger[] aExp = new BigInteger[n];
+        for (int i = 0; i < n; i++) {
+            Item it = items.get(from + i);
+            BigInteger d = new BigInteger(64, sc).add(BigInteger.ONE);
+            zSum = zSum.add(d.multiply(it.sigma.z));
+            hExp.merge(it.PK.h, d.multiply(q.subtract(it.e)), BigInteger::add);
+            aBase[i] = it.sigma.a;
+            aExp[i] = d;
+        }
+
+        BigInteger[] base = new BigInteger[hExp.size() + 1];
+        BigInteger[] exp = new BigInteger[hExp.size() + 1];
+        base[0] = PK.g;
+        exp[0] = zSum.mod(q);
+        int k = 1;
+        for (Map.Entry<BigInteger, BigInteger> t : hExp.entrySet()) {
+            base[k] = t.getKey();
+            exp[k++] = t.getValue().mod(q);
+        }
+
+        BigInteger left = ModArith.modPowMulti(base, exp, k, p);
+        BigInteger right = ModArith.modPowMulti(aBase, aExp, n, p);
+        return left.equals(right);
+    }
+
+    private static boolean inSubgroup(Item it, Map<BigInteger, Boolean> members) {
+        return inSubgroup(it.sigma.a, it.PK)
+                && members.computeIfAbsent(it.PK.h, x -> inSubgroup(x, it.PK))
+                && members.computeIfAbsent(it.PK.g, x -> inSubgroup(x, it.PK));
+    }
+
+    private static boolean inSubgroup(BigInteger x, SchnorrPK PK) {
+        BigInteger p = PK.p, q = PK.q;
+        if (x.signum() <= 0 || x.compareTo(p) >= 0) {
+            return false;
+        }
+        if (p.equals(q.shiftLeft(1).add(BigInteger.ONE))) { // p=2q+1: the subgroup is made of the QRs
+            return ModArith.jacobi(x, p) == 1;
+        }
+        return ModArith.modPow(x, q, p).equals(BigInteger.ONE);
+    }
+
+    private static final class Item {
+
+        final int index; // position in the list given to verifyBatch
+        final SchnorrPK PK;
+        final SchnorrSig sigma;
+        final BigInteger e; // H(PK,a,M)
+
+        Item(int index, SchnorrPK PK, SchnorrSig sigma, BigInteger e) {
+            this.index = index;
+            this.PK = PK;
+            this.sigma = sigma;
+            this.e = e;
+        }
+    }
 }
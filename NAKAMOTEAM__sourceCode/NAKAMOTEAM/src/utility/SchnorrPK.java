@@ -20,4 +20,17 @@ public class SchnorrPK implements Serializable{
         this.securityparameter = securityparameter;
 
     }
+
+    /**
+     * Canonical encoding p||q||g||h, every value in the width of p.
+     */
+    public byte[] encode() {
+        int len = Utils.byteLength(p);
+        byte[] out = new byte[4 * len];
+        Utils.writeFixed(p, out, 0, len);
+        Utils.writeFixed(q, out, len, len);
+        Utils.writeFixed(g, out, 2 * len, len);
+        Utils.writeFixed(h, out, 3 * len, len);
+        return out;
+    }
 }
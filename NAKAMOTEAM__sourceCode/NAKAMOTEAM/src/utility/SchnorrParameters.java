@@ -0,0 +1,174 @@
+package utility;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class SchnorrParameters implements Serializable {
+
+    // Domain parameters (p,q,g) of Schnorr: g generates a subgroup of prime order q of Zp*, either with
+    // p=2q+1 safe prime (g a quadratic residue) or with a short q dividing p-1 (DSA-style), where
+    // every exponent is only as long as q.
+    // Searching a safe prime takes seconds, so voters share the built-in group instead of
+    // generating their own; keygen is then one random scalar and one fixed-base exponentiation.
+    // Parameters are interned by (p,q,g) and carry the fixed-base table for g, so that every
+    // SchnorrPK of the same group shares it.
+
+    // 512-bit q, p=2q+1, generator 2 (the smallest quadratic residue modulo p)
+    private static final BigInteger P512 = new BigInteger(
+            "15ad633bd4d3c24ab3e096b4480339a9d6237572d577fb44244c38a817b5498c6fa51868afd79d8a7153282fe8fafddb230d7cbc863ec84ed1f15d4e3c7cf91f7", 16);
+    private static final BigInteger Q512 = new BigInteger(
+            "ad6b19dea69e12559f04b5a24019cd4eb11bab96abbfda212261c540bdaa4c637d28c3457ebcec538a99417f47d7eed9186be5e431f642768f8aea71e3e7c8fb", 16);
+    private static final BigInteger G512 = BigInteger.valueOf(2);
+
+    private static final long TABLE_BUDGET = 2L << 20; // bytes for the table of g
+
+    private static final ConcurrentHashMap<List<BigInteger>, SchnorrParameters> cache = new ConcurrentHashMap<>();
+
+    private static volatile SchnorrParameters defaults;
+
+    final BigInteger p, q, g;
+    final int securityparameter;
+    private transient volatile FixedBaseExp gTable; // built on first use
+
+    private SchnorrParameters(BigInteger p, BigInteger q, BigInteger g) {
+        this.p = p;
+        this.q = q;
+        this.g = g;
+        this.securityparameter = q.bitLength();
+    }
+
+    /**
+     * The built-in 512-bit group, validated on first use.
+     */
+    public static SchnorrParameters defaults() {
+        SchnorrParameters d = defaults;
+        if (d == null) {
+            d = defaults = of(P512, Q512, G512);
+        }
+        return d;
+    }
+
+    /**
+     * Returns the (interned) parameters (p,q,g) after checking that p and q are prime, that q
+     * divides p-1 and that g generates the subgroup of order q.
+     */
+    public static SchnorrParameters of(BigInteger p, BigInteger q, BigInteger g) {
+        SchnorrParameters sp = cached(p, q, g);
+        if (sp != null) {
+            return sp;
+        }
+        if (p.subtract(BigInteger.ONE).mod(q).signum() != 0 || !q.isProbablePrime(50) || !p.isProbablePrime(50)) {
+            throw new IllegalArgumentException("p is not a prime with a subgroup of prime order q");
+        }
+        if (g.compareTo(BigInteger.ONE) <= 0 || g.compareTo(p) >= 0 || !g.modPow(q, p).equals(BigInteger.ONE)) {
+            throw new IllegalArgumentException("g does not generate the subgroup of order q");
+        }
+        return cache.computeIfAbsent(Arrays.asList(p, q, g), k -> new SchnorrParameters(p, q, g));
+    }
+
+    /**
+     * The parameters of an already validated group, or null.
+     */
+    public static SchnorrParameters cached(BigInteger p, BigInteger q, BigInteger g) {
+        return cache.get(Arrays.asList(p, q, g));
+    }
+
+    static SchnorrParameters cached(SchnorrPK PK) {
+        return PK.p == null || PK.q == null || PK.g == null ? null : cached(PK.p, PK.q, PK.g);
+    }
+
+    /**
+     * Fresh parameters with a q of securityparameter bits. Slow: it looks for a safe prime.
+     */
+    public static SchnorrParameters generate(int securityparameter) {
+        BigInteger p, q, g;
+
+        q = SafePrimes.findQ(securityparameter);
+        p = q.multiply(BigInteger.valueOf(2)).add(BigInteger.ONE);
+
+        g = new BigInteger("2");
+
+        while (true) {
+
+            if (isqr(g, p) == 1) {
+                break;
+            }
+            g = g.add(BigInteger.ONE);
+        }
+
+        SchnorrParameters sp = new SchnorrParameters(p, q, g);
+        SchnorrParameters prev = cache.putIfAbsent(Arrays.asList(p, q, g), sp);
+        return prev != null ? prev : sp;
+    }
+
+    /**
+     * Fresh DSA-style parameters: p of pBits bits and q of qBits bits dividing p-1.
+     */
+    public static SchnorrParameters generate(int pBits, int qBits) {
+        SecureRandom sc = new SecureRandom();
+        BigInteger q = BigInteger.probablePrime(qBits, sc);
+        BigInteger p = SafePrimes.findP(q, pBits);
+        BigInteger cofactor = p.subtract(BigInteger.ONE).divide(q);
+
+        BigInteger g, x = BigInteger.valueOf(2);
+        while ((g = x.modPow(cofactor, p)).equals(BigInteger.ONE)) { // g=x^{(p-1)/q} has order q unless it is 1
+            x = x.add(BigInteger.ONE);
+        }
+
+        SchnorrParameters sp = new SchnorrParameters(p, q, g);
+        SchnorrParameters prev = cache.putIfAbsent(Arrays.asList(p, q, g), sp);
+        return prev != null ? prev : sp;
+    }
+
+    private static int isqr(BigInteger x, BigInteger p) {
+
+        if (x.modPow(p.subtract(BigInteger.ONE).divide(BigInteger.valueOf(2)), p).compareTo(BigInteger.ONE) == 0) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private static final long serialVersionUID = 1L; // the serialized form is just (p,q,g,securityparameter)
+
+    private Object readResolve() {
+        return of(p, q, g); // validate what we read and share the cached instance
+    }
+
+    public BigInteger getP() {
+        return p;
+    }
+
+    public BigInteger getQ() {
+        return q;
+    }
+
+    public BigInteger getG() {
+        return g;
+    }
+
+    /**
+     * g^e mod p with the fixed-base table of g.
+     */
+    public BigInteger powG(BigInteger e) {
+        FixedBaseExp t = gTable;
+        if (t == null) {
+            synchronized (this) {
+                t = gTable;
+                if (t == null) {
+                    ModPGroup G = new ModPGroup(p, q, g);
+                    int w = FixedBaseExp.windowFor(G, TABLE_BUDGET);
+                    t = gTable = new FixedBaseExp(G, g, Math.max(w, 1));
+                }
+            }
+        }
+        return t.pow(e);
+    }
+}
@@ -0,0 +1,111 @@
+package utility;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public final class ShardRing {
+
+    // Consistent hashing of the voters' IDs on the Sbal nodes. Every node is placed on a ring of 2^64
+    // points at VNODES pseudo-random positions (its virtual nodes) and an ID goes to the node of the
+    // first position after its own hash. Adding a node moves to it only the IDs that fall just before
+    // its positions, about 1/(n+1) of them, and the spread between nodes stays within a few percent.
+    // A ring is immutable: withNode returns a new ring, and an ID moved from a to b is exactly one for
+    // which the old ring says a and the new one says b.
+    // The Sbal nodes of the election are read once from the system property sbal.ports (a comma
+    // separated list of ports, by default 50000,50001,50002), so that every server sees the same ring.
+    // That list is the whole election: Sgen gives a share of the key to each of these nodes and the
+    // tally goes through all of them, so nodes cannot be added (resharding) once it has started.
+
+    public static final String PORTS_PROPERTY = "sbal.ports";
+    private static final String DEFAULT_PORTS = "50000,50001,50002";
+    private static final int VNODES = 160;
+
+    private static volatile ShardRing defaults;
+
+    private final int[] ports; // ascending
+    private final TreeMap<Long, Integer> ring;
+
+    private ShardRing(int[] ports, TreeMap<Long, Integer> ring) {
+        this.ports = ports;
+        this.ring = ring;
+    }
+
+    /**
+     * The ring of the Sbal nodes of this election (see PORTS_PROPERTY).
+     */
+    public static ShardRing defaults() {
+        ShardRing d = defaults;
+        if (d == null) {
+            String[] list = System.getProperty(PORTS_PROPERTY, DEFAULT_PORTS).split(",");
+            int[] ports = new int[list.length];
+            for (int i = 0; i < list.length; i++) {
+                ports[i] = Integer.parseInt(list[i].trim());
+            }
+            d = defaults = of(ports);
+        }
+        return d;
+    }
+
+    public static ShardRing of(int... ports) {
+        ShardRing r = new ShardRing(new int[0], new TreeMap<>());
+        for (int port : ports) {
+            r = r.withNode(port);
+        }
+        return r;
+    }
+
+    /**
+     * This ring with one more node; the same ring if port is already in.
+     */
+    public ShardRing withNode(int port) {
+        if (Arrays.binarySearch(ports, port) >= 0) {
+            return this;
+        }
+        int[] p = Arrays.copyOf(ports, ports.length + 1);
+        p[ports.length] = port;
+        Arrays.sort(p);
+        TreeMap<Long, Integer> r = new TreeMap<>(ring);
+        for (int i = 0; i < VNODES; i++) {
+            // a collision (never seen in practice) is won by the lower port, whatever the order of the additions
+            r.merge(hash(port + "#" + i), port, Math::min);
+        }
+        return new ShardRing(p, r);
+    }
+
+    /**
+     * The port of the Sbal node that keeps the ballots of ID.
+     */
+    public int nodeFor(String ID) {
+        if (ring.isEmpty()) {
+            throw new IllegalStateException("no Sbal node");
+        }
+        Map.Entry<Long, Integer> e = ring.ceilingEntry(hash(ID));
+        return e != null ? e.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * The ports of the nodes, in ascending order.
+     */
+    public int[] getPorts() {
+        return ports.clone();
+    }
+
+    public int size() {
+        return ports.length;
+    }
+
+    private static long hash(String s) {
+        byte[] d = Utils.sha256().digest(s.getBytes(StandardCharsets.UTF_8));
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (d[i] & 0xFF);
+        }
+        return h ^ Long.MIN_VALUE; // unsigned order on a signed TreeMap
+    }
+}
@@ -0,0 +1,194 @@
+package utility;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public final class TLSContextRegistry {
+
+    // SSLContexts shared by all the connections of the process, in place of the javax.net.ssl.*
+    // system properties and of a new context (and a new read of the keystore) per connection.
+    // Every keystore and truststore is read from disk once. Since a context keeps its session cache,
+    // a client reconnecting to the same server resumes the session (TLS 1.3 PSK or a 1.2 session id)
+    // instead of doing a full handshake; the server side hands out stateless session tickets.
+    // Only TLS 1.3 and 1.2 are enabled, with AEAD suites and ephemeral ECDHE key exchange first.
+
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    private static final String[] SUITES = {
+        "TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384", "TLS_CHACHA20_POLY1305_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384"};
+
+    private static final int SESSION_CACHE_SIZE = 4096;
+    private static final int SESSION_TIMEOUT = 24 * 3600; // seconds: an e-ballot fits in a day
+
+    private static final ConcurrentHashMap<List<String>, KeyStore> stores = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<List<String>, SSLContext> contexts = new ConcurrentHashMap<>();
+
+    private static volatile String[] defaults; // keystore, password, truststore, password
+
+    static {
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true"); // stateless resumption on the server
+        }
+    }
+
+    private TLSContextRegistry() {
+    }
+
+    /**
+     * Sets the identity and the trusted certificates of this process; a null keystore means that
+     * the process authenticates itself only through the contexts it asks for explicitly.
+     */
+    public static void setDefault(String keystoreFile, String keystorePass, String truststoreFile, String truststorePass) {
+        defaults = new String[]{keystoreFile, keystorePass, truststoreFile, truststorePass};
+    }
+
+    /**
+     * The context of setDefault, or the one of the JVM if setDefault has not been called.
+     */
+    public static SSLContext getDefault() throws IOException {
+        String[] d = defaults;
+        if (d == null) {
+            try {
+                return SSLContext.getDefault();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("cannot set up TLS", e);
+            }
+        }
+        return get(d[0], d[1], d[2], d[3]);
+    }
+
+    /**
+     * A context with the given keystore and the default truststore.
+     */
+    public static SSLContext get(String keystoreFile, String keystorePass) throws IOException {
+        String[] d = defaults;
+        return d == null ? get(keystoreFile, keystorePass, null, null) : get(keystoreFile, keystorePass, d[2], d[3]);
+    }
+
+    public static SSLContext get(String keystoreFile, String keystorePass, String truststoreFile, String truststorePass) throws IOException {
+        List<String> key = Arrays.asList(keystoreFile, keystorePass, truststoreFile, truststorePass);
+        SSLContext ctx = contexts.get(key);
+        if (ctx == null) {
+            ctx = create(keystoreFile, keystorePass, truststoreFile, truststorePass);
+            SSLContext prev = contexts.putIfAbsent(key, ctx);
+            if (prev != null) {
+                ctx = prev;
+            }
+        }
+        return ctx;
+    }
+
+    /**
+     * Restricts a socket to the protocols and suites above; a server-side socket (one layered on an
+     * accepted connection) chooses them in the server's order.
+     */
+    public static SSLSocket configure(SSLSocket sock) {
+        SSLParameters params = parameters(sock.getSSLParameters(), sock.getSupportedProtocols(), sock.getSupportedCipherSuites());
+        params.setUseCipherSuitesOrder(!sock.getUseClientMode());
+        sock.setSSLParameters(params);
+        return sock;
+    }
+
+    /**
+     * As configure(SSLSocket), for an engine whose mode has already been set.
+     */
+    public static SSLEngine configure(SSLEngine engine) {
+        SSLParameters params = parameters(engine.getSSLParameters(), engine.getSupportedProtocols(), engine.getSupportedCipherSuites());
+        params.setUseCipherSuitesOrder(!engine.getUseClientMode());
+        engine.setSSLParameters(params);
+        return engine;
+    }
+
+    /**
+     * Restricts a server socket to the protocols and suites above, chosen in the server's order.
+     */
+    public static SSLServerSocket configure(SSLServerSocket sock) {
+        SSLParameters params = parameters(sock.getSSLParameters(), sock.getSupportedProtocols(), sock.getSupportedCipherSuites());
+        params.setUseCipherSuitesOrder(true);
+        sock.setSSLParameters(params);
+        return sock;
+    }
+
+    private static SSLParameters parameters(SSLParameters params, String[] protocols, String[] suites) {
+        String[] p = intersect(PROTOCOLS, protocols);
+        String[] s = intersect(SUITES, suites);
+        if (p.length > 0) {
+            params.setProtocols(p);
+        }
+        if (s.length > 0) { // an old JVM without any of them keeps its own defaults
+            params.setCipherSuites(s);
+        }
+        return params;
+    }
+
+    private static String[] intersect(String[] preferred, String[] supported) {
+        List<String> sup = Arrays.asList(supported);
+        List<String> res = new ArrayList<>();
+        for (String x : preferred) {
+            if (sup.contains(x)) {
+                res.add(x);
+            }
+        }
+        return res.toArray(new String[0]);
+    }
+
+    private static SSLContext create(String keystoreFile, String keystorePass, String truststoreFile, String truststorePass) throws IOException {
+        try {
+            KeyManagerFactory keyFact = null;
+            if (keystoreFile != null) {
+                keyFact = KeyManagerFactory.getInstance("SunX509");
+                keyFact.init(load(keystoreFile, keystorePass), keystorePass.toCharArray());
+            }
+            TrustManagerFactory trustFact = null;
+            if (truststoreFile != null) {
+                trustFact = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trustFact.init(load(truststoreFile, truststorePass));
+            }
+
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(keyFact == null ? null : keyFact.getKeyManagers(), trustFact == null ? null : trustFact.getTrustManagers(), null);
+            ctx.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            ctx.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+            ctx.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            ctx.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+            return ctx;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("cannot set up TLS with " + keystoreFile + " and " + truststoreFile, e);
+        }
+    }
+
+    private static KeyStore load(String file, String pass) throws IOException, GeneralSecurityException {
+        List<String> key = Arrays.asList(file, pass);
+        KeyStore ks = stores.get(key);
+        if (ks == null) {
+            ks = KeyStore.getInstance("JKS");
+            try (InputStream in = new FileInputStream(file)) {
+                ks.load(in, pass.toCharArray());
+            }
+            KeyStore prev = stores.putIfAbsent(key, ks);
+            if (prev != null) {
+                ks = prev;
+            }
+        }
+        return ks;
+    }
+}
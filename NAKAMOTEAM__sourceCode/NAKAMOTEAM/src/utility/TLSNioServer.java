@@ -0,0 +1,534 @@
+package utility;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class TLSNioServer {
+
+    // Mutual-TLS server on a ServerSocketChannel, usable in two ways on the same port:
+    // - blocking, with accept() and acceptAndCheckClient() as in TLSServerBidi (the SSLSocket is layered
+    //   on the accepted channel);
+    // - non-blocking, with serve(): a few event loops, each with its own Selector, run TLS through an
+    //   SSLEngine per connection and hand the decrypted bytes to a Handler, until stop() is called.
+    // A connection holds network and application buffers only while it has bytes in transit; the
+    // buffers are direct, of the sizes asked by SSLEngine, and come from a pool shared by the loops,
+    // so thousands of idle connections cost little more than their sockets.
+    // The listening channel stays open from one way to the other: a client connecting in between waits
+    // in the backlog instead of being refused.
+
+    public interface Handler {
+
+        /**
+         * The handshake is over: the connection can send.
+         */
+        void opened(Connection c) throws IOException;
+
+        /**
+         * New plaintext is in in (ready to be read): consume the complete messages and leave the rest,
+         * which is given back with the next bytes.
+         */
+        void received(Connection c, ByteBuffer in) throws IOException;
+
+        default void closed(Connection c) {
+        }
+    }
+
+    /**
+     * A connection served by an event loop. Its methods are called only by the Handler, on the thread
+     * of the loop.
+     */
+    public static final class Connection {
+
+        private final SocketChannel ch;
+        private final SSLEngine engine;
+        private final Handler handler;
+        private SelectionKey key;
+        private ByteBuffer netIn, appIn, netOut; // null when empty, i.e. back in the pool
+        private final ArrayDeque<ByteBuffer> appOut = new ArrayDeque<>();
+        private boolean opened, fresh, closing, closed;
+
+        private Connection(SocketChannel ch, SSLEngine engine, Handler handler) {
+            this.ch = ch;
+            this.engine = engine;
+            this.handler = handler;
+        }
+
+        /**
+         * Queues b, which is encrypted and sent when the Handler returns.
+         */
+        public void send(byte[] b) {
+            if (!closing) {
+                appOut.add(ByteBuffer.wrap(b));
+            }
+        }
+
+        /**
+         * Closes the connection once what has been sent so far is out.
+         */
+        public void close() {
+            closing = true;
+        }
+
+        public boolean isClosing() {
+            return closing;
+        }
+
+        public SSLSession getSession() {
+            return engine.getSession();
+        }
+    }
+
+    private static final ByteBuffer[] NOTHING = {};
+
+    private final int port;
+    private final SSLContext ctx;
+    private final ServerSocketChannel server;
+    private final int maxMessage;
+    private final BufferPool netPool, appPool;
+
+    private final Object acceptLock = new Object();
+    private volatile boolean stopped;
+    private volatile Loop[] loops;
+
+    /**
+     * @param maxMessage the longest message a Handler may leave unconsumed; a client sending more
+     * is disconnected
+     */
+    public TLSNioServer(int port, int maxMessage) throws IOException {
+        this.port = port;
+        this.ctx = TLSContextRegistry.getDefault();
+        this.maxMessage = maxMessage;
+        SSLSession proto = ctx.createSSLEngine().getSession();
+        this.netPool = new BufferPool(proto.getPacketBufferSize());
+        this.appPool = new BufferPool(proto.getApplicationBufferSize());
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+    }
+
+    public boolean verifyIdentity(SSLSession session, String certInfo) throws SSLPeerUnverifiedException {
+        X500Principal id = (X500Principal) session.getPeerPrincipal();
+        System.out.println("principal: " + id.getName());
+        return id.getName().equals(certInfo);
+    }
+
+    public SSLSocket acceptAndCheckClient(String certInfo) throws IOException {
+        SSLSocket sslSock = accept();
+        if (verifyIdentity(sslSock.getSession(), certInfo)) {
+            return sslSock;
+        }
+        return null;
+    }
+
+    /**
+     * Blocking accept, with the handshake done, as TLSServerBidi.accept(). Not to be called while serve() runs.
+     */
+    public SSLSocket accept() throws IOException {
+        SocketChannel ch = server.accept();
+        SSLSocket sslSock = (SSLSocket) ctx.getSocketFactory().createSocket(ch.socket(),
+                ch.socket().getInetAddress().getHostAddress(), ch.socket().getPort(), true);
+        sslSock.setUseClientMode(false);
+        TLSContextRegistry.configure(sslSock);
+        sslSock.setNeedClientAuth(true);
+        sslSock.startHandshake();
+        return sslSock;
+    }
+
+    /**
+     * Serves the connections with nLoops event loops (one of them on the calling thread) and a new
+     * Handler from handlers for each of them. Returns after stop(), with the server back in blocking mode.
+     */
+    public void serve(Supplier<Handler> handlers, int nLoops) throws IOException, InterruptedException {
+        stopped = false;
+        loops = new Loop[Math.max(1, nLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(handlers);
+        }
+        server.configureBlocking(false);
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 1; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "tls-nio-" + port + "-" + i);
+            t.start();
+            threads.add(t);
+        }
+        loops[0].run();
+        for (Thread t : threads) {
+            t.join();
+        }
+        server.configureBlocking(true); // the selector of loop 0 is closed: the channel is free again
+
+        for (Loop l : loops) {
+            if (l.failure != null) {
+                throw l.failure;
+            }
+        }
+    }
+
+    /**
+     * Makes serve() return: no connection is accepted from now on, those open are closed.
+     * Can be called by a Handler.
+     */
+    public void stop() {
+        synchronized (acceptLock) { // an accept already started ends before serve() can return
+            stopped = true;
+        }
+        Loop[] ls = loops;
+        if (ls != null) {
+            for (Loop l : ls) {
+                l.selector.wakeup();
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        stop();
+        server.close();
+    }
+
+    private final class Loop implements Runnable {
+
+        private final Selector selector;
+        private final Supplier<Handler> handlers;
+        private final ConcurrentLinkedQueue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+        private int next; // round robin of the accepted connections (loop 0 only)
+        private IOException failure;
+
+        private Loop(Supplier<Handler> handlers) throws IOException {
+            this.selector = Selector.open();
+            this.handlers = handlers;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    selector.select();
+                    SocketChannel ch;
+                    while ((ch = incoming.poll()) != null) {
+                        open(ch);
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            acceptReady();
+                        } else {
+                            ready((Connection) key.attachment(), key);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+                stop();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        shut((Connection) key.attachment());
+                    }
+                }
+                SocketChannel ch;
+                while ((ch = incoming.poll()) != null) {
+                    closeQuietly(ch);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // nothing left to release
+                }
+            }
+        }
+
+        private void acceptReady() throws IOException {
+            SocketChannel ch;
+            synchronized (acceptLock) {
+                if (stopped) {
+                    return;
+                }
+                ch = server.accept();
+            }
+            if (ch == null) {
+                return;
+            }
+            Loop target = loops[next++ % loops.length];
+            target.incoming.add(ch);
+            if (target != this) {
+                target.selector.wakeup();
+            } else {
+                open(target.incoming.poll());
+            }
+        }
+
+        private void open(SocketChannel ch) {
+            Connection c = null;
+            try {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true); // small requests and answers: do not wait for Nagle
+                SSLEngine engine = ctx.createSSLEngine();
+                engine.setUseClientMode(false);
+                TLSContextRegistry.configure(engine);
+                engine.setNeedClientAuth(true);
+                engine.beginHandshake();
+                c = new Connection(ch, engine, handlers.get());
+                c.key = ch.register(selector, SelectionKey.OP_READ, c);
+            } catch (IOException e) {
+                if (c != null) {
+                    shut(c);
+                } else {
+                    closeQuietly(ch);
+                }
+            }
+        }
+
+        private void ready(Connection c, SelectionKey key) {
+            try {
+                if (key.isReadable()) {
+                    if (c.netIn == null) {
+                        c.netIn = netPool.acquire();
+                    }
+                    if (c.ch.read(c.netIn) < 0) { // the client is gone
+                        try {
+                            c.engine.closeInbound();
+                        } catch (SSLException e) {
+                            // no close_notify: nothing to answer anyway
+                        }
+                        shut(c);
+                        return;
+                    }
+                }
+                pump(c);
+            } catch (Exception e) {
+                System.out.println("Connection ERROR: " + e);
+                shut(c);
+            }
+        }
+    }
+
+    // Moves the connection forward as far as it can without blocking: handshake, decryption of what
+    // has arrived, Handler, encryption and writing of what the Handler has sent.
+    private void pump(Connection c) throws IOException {
+        flush(c); // first what was left waiting for OP_WRITE
+        boolean progress = true;
+        while (progress && !c.closed) {
+            HandshakeStatus hs = c.engine.getHandshakeStatus();
+            if (hs == HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = c.engine.getDelegatedTask()) != null) {
+                    task.run(); // on the loop: the expensive part of a handshake is short
+                }
+                continue;
+            }
+            progress = hs == HandshakeStatus.NEED_WRAP ? wrap(c) : unwrap(c);
+
+            if (!c.opened && c.engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING && !c.closing) {
+                c.opened = true;
+                c.handler.opened(c);
+                progress = true;
+            }
+            if (c.opened && c.fresh) {
+                c.fresh = false;
+                c.appIn.flip();
+                c.handler.received(c, c.appIn);
+                c.appIn.compact();
+                if (c.appIn.position() > maxMessage) {
+                    throw new IOException("message too large");
+                }
+            }
+            if (c.opened && !c.appOut.isEmpty() && c.engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING) {
+                progress |= wrap(c);
+            }
+        }
+        if (c.closed) {
+            return;
+        }
+        if (c.closing && c.appOut.isEmpty() && flush(c)) {
+            shut(c);
+            return;
+        }
+        // the empty buffers go back to the pool: an idle connection holds none
+        if (c.netIn != null && c.netIn.position() == 0) {
+            netPool.release(c.netIn);
+            c.netIn = null;
+        }
+        if (c.appIn != null && c.appIn.position() == 0) {
+            appPool.release(c.appIn);
+            c.appIn = null;
+        }
+        c.key.interestOps(c.netOut == null ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private boolean unwrap(Connection c) throws IOException {
+        if (c.netIn == null || c.netIn.position() == 0) {
+            return false;
+        }
+        if (c.appIn == null) {
+            c.appIn = appPool.acquire();
+        }
+        c.netIn.flip();
+        SSLEngineResult r;
+        try {
+            r = c.engine.unwrap(c.netIn, c.appIn);
+        } finally {
+            c.netIn.compact();
+        }
+        if (r.bytesProduced() > 0) {
+            c.fresh = true;
+        }
+        switch (r.getStatus()) {
+            case BUFFER_UNDERFLOW: // an incomplete record: wait for the rest
+                return false;
+            case BUFFER_OVERFLOW: // the Handler left a partial message: make room for a whole record
+                ByteBuffer bigger = ByteBuffer.allocate(c.appIn.position() + appPool.size);
+                c.appIn.flip();
+                bigger.put(c.appIn);
+                appPool.release(c.appIn);
+                c.appIn = bigger;
+                return true;
+            case CLOSED: // close_notify from the client
+                c.closing = true;
+                return c.engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+            default:
+                return r.bytesConsumed() > 0 || r.bytesProduced() > 0;
+        }
+    }
+
+    private boolean wrap(Connection c) throws IOException {
+        if (!flush(c)) {
+            return false; // the previous records are still waiting for the socket
+        }
+        c.netOut = netPool.acquire();
+        ByteBuffer[] src = c.engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING
+                ? c.appOut.toArray(NOTHING) : NOTHING;
+        SSLEngineResult r = c.engine.wrap(src, c.netOut);
+        while (!c.appOut.isEmpty() && !c.appOut.peek().hasRemaining()) {
+            c.appOut.poll();
+        }
+        flush(c);
+        return r.getStatus() == SSLEngineResult.Status.OK && (r.bytesConsumed() > 0 || r.bytesProduced() > 0);
+    }
+
+    /**
+     * Writes what is left in netOut; true when all of it is out.
+     */
+    private boolean flush(Connection c) throws IOException {
+        if (c.netOut == null) {
+            return true;
+        }
+        c.netOut.flip();
+        c.ch.write(c.netOut);
+        boolean done = !c.netOut.hasRemaining();
+        c.netOut.compact();
+        if (done) {
+            netPool.release(c.netOut);
+            c.netOut = null;
+        }
+        return done;
+    }
+
+    private void shut(Connection c) {
+        if (c.closed) {
+            return;
+        }
+        c.closed = true;
+        c.closing = true;
+        try {
+            c.engine.closeOutbound();
+            if (c.netOut == null) {
+                c.netOut = netPool.acquire();
+            }
+            c.engine.wrap(NOTHING, c.netOut); // close_notify, best effort
+            c.netOut.flip();
+            c.ch.write(c.netOut);
+        } catch (IOException e) {
+            // the client is gone already
+        }
+        if (c.key != null) {
+            c.key.cancel();
+        }
+        closeQuietly(c.ch);
+        if (c.netIn != null) {
+            netPool.release(c.netIn);
+        }
+        if (c.appIn != null) {
+            appPool.release(c.appIn);
+        }
+        if (c.netOut != null) {
+            netPool.release(c.netOut);
+        }
+        c.netIn = c.appIn = c.netOut = null;
+        c.appOut.clear();
+        c.handler.closed(c);
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+
+    private static final class BufferPool {
+
+        // direct buffers of one size, kept for reuse up to MAX_IDLE of them
+
+        private static final int MAX_IDLE = 1024;
+
+        private final int size;
+        private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        private BufferPool(int size) {
+            this.size = size;
+        }
+
+        private ByteBuffer acquire() {
+            ByteBuffer b = idle.poll();
+            if (b == null) {
+                return ByteBuffer.allocateDirect(size);
+            }
+            count.decrementAndGet();
+            return b;
+        }
+
+        private void release(ByteBuffer b) {
+            if (!b.isDirect() || b.capacity() != size) {
+                return; // a buffer grown for a long message is left to the GC
+            }
+            b.clear();
+            if (count.incrementAndGet() <= MAX_IDLE) {
+                idle.offer(b);
+            } else {
+                count.decrementAndGet();
+            }
+        }
+    }
+}
@@ -17,8 +17,8 @@ public class TLSServerBidi {
     private SSLServerSocket sSock;
 
     public TLSServerBidi(int port) throws IOException {
-        SSLServerSocketFactory fact = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
-        sSock = (SSLServerSocket) fact.createServerSocket(port);
+        SSLServerSocketFactory fact = TLSContextRegistry.getDefault().getServerSocketFactory();
+        sSock = TLSContextRegistry.configure((SSLServerSocket) fact.createServerSocket(port));
         sSock.setNeedClientAuth(true);
     }
     
@@ -42,6 +42,15 @@ public class TLSServerBidi {
         return null;
     }
     
+    public SSLSocket acceptPending() throws IOException{
+        // the handshake is left to the thread that serves the connection, so a slow client does not hold up the next accept
+        return (SSLSocket) sSock.accept();
+    }
+    
+    public void close() throws IOException{
+        sSock.close(); // a thread blocked in accept gets a SocketException
+    }
+    
     public SSLSocket accept() throws IOException{
         SSLSocket sslSock = (SSLSocket) sSock.accept();
         sslSock.startHandshake(); // after handshake this server wants to obtain info about the connected client and 1) will print this info and 2) will execute the protocol
@@ -0,0 +1,219 @@
+package utility;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class TLSSessionPool {
+
+    // Persistent mutual-TLS connections from a client to the servers that speak the session protocol:
+    // the client opens a session with the request "session" (ack 1), then sends any number of requests
+    // on the same connection, "ping" (ack 1) to check that it is still alive and "close" to end it.
+    // A session is lent to one caller at a time; at most maxPerPort sessions are open towards the same
+    // port (the callers beyond that wait) and the idle ones are checked with a ping before being lent
+    // again if they have not been used for keepAlive milliseconds.
+    // The waits use a ReentrantLock rather than a monitor, so that a virtual thread waiting for a
+    // session does not pin its carrier thread.
+
+    public static class Session {
+
+        private final int port;
+        private final TLSClientBidi conn;
+        private final WireOutputStream out;
+        private final WireInputStream in;
+        private long lastUsed;
+
+        private Session(int port, TLSClientBidi conn) throws IOException {
+            this.port = port;
+            this.conn = conn;
+            this.out = new WireOutputStream(conn.getcSock().getOutputStream());
+            this.in = new WireInputStream(conn.getcSock().getInputStream());
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public WireOutputStream getOut() {
+            return out;
+        }
+
+        public WireInputStream getIn() {
+            return in;
+        }
+
+        private boolean ping() {
+            try {
+                out.writeUTF("ping");
+                out.flush();
+                return in.readInt() == 1;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void close(boolean polite) {
+            try {
+                if (polite) {
+                    out.writeUTF("close");
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // the server is gone already
+            }
+            try {
+                conn.getcSock().close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+
+    private final String host, keystoreFile, keystorePass;
+    private final int maxPerPort;
+    private final long keepAlive;
+
+    private final HashMap<Integer, ArrayDeque<Session>> idle = new HashMap<>();
+    private final HashMap<Integer, Integer> open = new HashMap<>();
+    private boolean closed;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition returned = lock.newCondition(); // a session came back or a slot was freed
+
+    public TLSSessionPool(String host, String keystoreFile, String keystorePass, int maxPerPort, long keepAlive) {
+        this.host = host;
+        this.keystoreFile = keystoreFile;
+        this.keystorePass = keystorePass;
+        this.maxPerPort = maxPerPort;
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * A live session towards port: an idle one if any, otherwise a new one (handshake included).
+     */
+    public Session borrow(int port) throws Exception {
+        while (true) {
+            Session s;
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new IOException("pool closed");
+                    }
+                    ArrayDeque<Session> q = idle.get(port);
+                    s = q == null ? null : q.pollFirst();
+                    if (s != null || open.getOrDefault(port, 0) < maxPerPort) {
+                        break;
+                    }
+                    returned.await(); // every session towards port is lent: wait for one to come back
+                }
+                if (s == null) {
+                    open.merge(port, 1, Integer::sum); // reserve the slot before connecting
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (s == null) {
+                try {
+                    return connect(port);
+                } catch (Exception e) {
+                    discarded(port);
+                    throw e;
+                }
+            }
+            if (System.currentTimeMillis() - s.lastUsed < keepAlive || s.ping()) {
+                return s;
+            }
+            s.close(false); // dropped by the server or by the network: try the next one
+            discarded(port);
+        }
+    }
+
+    /**
+     * Gives back a session whose last request has been answered in full.
+     */
+    public void release(Session s) {
+        lock.lock();
+        try {
+            if (!closed) {
+                s.lastUsed = System.currentTimeMillis();
+                idle.computeIfAbsent(s.port, k -> new ArrayDeque<>()).addFirst(s); // the most recent first: the others can expire
+                returned.signalAll();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        s.close(true);
+        discarded(s.port);
+    }
+
+    /**
+     * Drops a session left in an unknown state, e.g. after an IOException in the middle of a request.
+     */
+    public void invalidate(Session s) {
+        s.close(false);
+        discarded(s.port);
+    }
+
+    /**
+     * Ends all the idle sessions; those still lent are ended when they are given back.
+     */
+    public void close() {
+        ArrayDeque<Session> all = new ArrayDeque<>();
+        lock.lock();
+        try {
+            closed = true;
+            for (ArrayDeque<Session> q : idle.values()) {
+                all.addAll(q);
+            }
+            idle.clear();
+            returned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Session s : all) {
+            s.close(true);
+            discarded(s.port);
+        }
+    }
+
+    private Session connect(int port) throws Exception {
+        TLSClientBidi conn = new TLSClientBidi(host, port, keystoreFile, keystorePass);
+        try {
+            conn.getcSock().setTcpNoDelay(true); // small requests and answers: do not wait for Nagle
+            conn.getcSock().setKeepAlive(true);
+            Session s = new Session(port, conn); // the wire streams already exchange their header here
+            s.out.writeUTF("session");
+            s.out.flush();
+            if (s.in.readInt() != 1) {
+                throw new IOException("session refused by port " + port);
+            }
+            return s;
+        } catch (Exception e) {
+            try {
+                conn.getcSock().close();
+            } catch (IOException ce) {
+                e.addSuppressed(ce);
+            }
+            throw e;
+        }
+    }
+
+    private void discarded(int port) {
+        lock.lock();
+        try {
+            open.merge(port, -1, Integer::sum);
+            returned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
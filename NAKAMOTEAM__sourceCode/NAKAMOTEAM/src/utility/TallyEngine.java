@@ -0,0 +1,73 @@
+package utility;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class TallyEngine {
+
+    // Homomorphic tally as a balanced product tree on the fork-join pool.
+    // Multiplication mod p is associative and commutative, so the result is exactly
+    // the one of the sequential fold with ElGamalCT.Homomorphism, but the leaves run on all cores.
+
+    private static final int LEAF = 256; // ciphertexts folded sequentially by a single task
+
+    private TallyEngine() {
+    }
+
+    /**
+     * Returns the product of all the ciphertexts (that is the encryption of the sum
+     * of the votes) or null if there are none.
+     */
+    public static ElGamalCT tally(ElGamalPK PK, Collection<ElGamalCT> CTs) {
+        return tally(PK, CTs, ForkJoinPool.commonPool());
+    }
+
+    public static ElGamalCT tally(ElGamalPK PK, Collection<ElGamalCT> CTs, ForkJoinPool fjp) {
+        ElGamalCT[] arr = CTs.toArray(new ElGamalCT[0]);
+        if (arr.length == 0) {
+            return null;
+        }
+        if (arr.length == 1) {
+            return arr[0]; // same as the sequential fold, which returns the only ballot unchanged
+        }
+        return fjp.invoke(new Product(PK, arr, 0, arr.length)).toCT();
+    }
+
+    private static final class Product extends RecursiveTask<ElGamalAccumulator> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ElGamalPK PK;
+        private final ElGamalCT[] arr;
+        private final int from, to; // the task multiplies arr[from..to-1], to-from >= 1
+
+        Product(ElGamalPK PK, ElGamalCT[] arr, int from, int to) {
+            this.PK = PK;
+            this.arr = arr;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected ElGamalAccumulator compute() {
+            if (to - from <= LEAF) {
+                ElGamalAccumulator acc = new ElGamalAccumulator(PK, arr[from]);
+                for (int i = from + 1; i < to; i++) {
+                    acc.multiply(arr[i]);
+                }
+                return acc;
+            }
+            int mid = (from + to) >>> 1;
+            Product left = new Product(PK, arr, from, mid);
+            left.fork();
+            ElGamalAccumulator acc = new Product(PK, arr, mid, to).compute();
+            acc.multiply(left.join());
+            return acc;
+        }
+    }
+}
@@ -6,6 +6,9 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import static org.passay.AllowedCharacterRule.ERROR_CODE;
 import org.passay.CharacterData;
@@ -21,6 +24,22 @@ public class Utils {
 
     private static final String digits = "0123456789abcdef";
 
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    });
+
+    /**
+     * The SHA-256 digest of the calling thread, reused instead of a MessageDigest.getInstance
+     * (a provider lookup) per hash. It must be left reset, i.e. every update ends with digest().
+     */
+    public static MessageDigest sha256() {
+        return sha256.get();
+    }
+
     public static String toHex(byte[] data, int length) {
         StringBuffer buf = new StringBuffer();
         for (int i = 0; i != length; i++) {
@@ -70,6 +89,27 @@ public class Utils {
         return bytes;
     }
 
+    /**
+     * Writes x (non-negative) big-endian in exactly len bytes at out[off], left-padded with
+     * zeros: the canonical fixed-width encoding used for hashing and signing.
+     */
+    public static void writeFixed(BigInteger x, byte[] out, int off, int len) {
+        if (x.signum() < 0 || x.bitLength() > 8 * len) {
+            throw new IllegalArgumentException("value does not fit in " + len + " bytes");
+        }
+        byte[] be = x.toByteArray(); // may carry a leading sign byte
+        int skip = be.length > len ? be.length - len : 0;
+        int pad = len - (be.length - skip);
+        for (int i = 0; i < pad; i++) {
+            out[off + i] = 0;
+        }
+        System.arraycopy(be, skip, out, off + pad, be.length - skip);
+    }
+
+    public static int byteLength(BigInteger x) {
+        return (x.bitLength() + 7) / 8;
+    }
+
     public static byte[] objToByteArray(Object obj) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ObjectOutputStream out = null;
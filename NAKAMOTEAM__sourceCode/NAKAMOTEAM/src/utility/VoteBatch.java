@@ -0,0 +1,39 @@
+package utility;
+
+import java.util.ArrayList;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class VoteBatch {
+
+    // gruppo di voti inviati insieme da Splat ad uno Sbal: ogni nuovo voto è accompagnato
+    // dallo pseudonimo del votante e dal vecchio voto che sostituisce (null se non ce n'è uno)
+
+    private final ArrayList<String> pseudonyms = new ArrayList<>();
+    private final ArrayList<SignedVote> newVotes = new ArrayList<>();
+    private final ArrayList<SignedVote> oldVotes = new ArrayList<>();
+
+    public void add(String pseudonym, SignedVote newSV, SignedVote oldSV) {
+        pseudonyms.add(pseudonym);
+        newVotes.add(newSV);
+        oldVotes.add(oldSV);
+    }
+
+    public int size() {
+        return newVotes.size();
+    }
+
+    public String getPseudonym(int i) {
+        return pseudonyms.get(i);
+    }
+
+    public SignedVote getNewVote(int i) {
+        return newVotes.get(i);
+    }
+
+    public SignedVote getOldVote(int i) {
+        return oldVotes.get(i);
+    }
+}
@@ -1,9 +1,15 @@
 package utility;
 
-import java.security.MessageDigest;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  *
@@ -15,6 +21,19 @@ public class VotesDB {
     // Abbiamo usato l'id come chiave; tutto il resto (hashedPwd, salt, voteCT, sign) costituisce il valore.
     // La classe è VotesDB; ValueDB è una classe innestata.
     // In pratica la classe VotesDB rappresenta una hashmap che ha come chiave gli id e come valore i valueDB
+    // Splat serve più votanti in parallelo: la mappa è concorrente e il voto di ogni ID è protetto da uno dei
+    // STRIPES lock (lock striping: un ID va sempre sullo stesso lock, e nessun lock è condiviso da tutti gli ID).
+    // Un lock viene tenuto solo per leggere o scrivere ciphertext e firma insieme, mai durante la rete:
+    // un nuovo voto si registra con compareAndSetSignedVote, che lo salva solo se il voto corrente è ancora quello letto
+    // Se il database è aperto su una cartella (open) ogni registrazione e ogni voto vengono anche scritti nel
+    // write-ahead log (VotesLog) prima di essere confermati, così dopo un crash Splat riparte dallo stato salvato.
+    // La modifica viene applicata in memoria e poi scritta nel log, sotto il lock dell'ID: è quello che serve a VotesLog
+    // per fare gli snapshot mentre il database cambia. L'attesa dell'fsync avviene invece fuori dal lock
+    // Nel log finisce anche il campo check del database del Ministero (databaseMI di Splat, CF -> 0/1): se dopo un crash
+    // ripartisse da 0, chi ha già ricevuto le credenziali potrebbe registrarsi di nuovo e votare due volte.
+    // Per questo il check si cambia solo con replaceCheck, che lo scrive nel log sotto il lock del CF
+
+    private static final int STRIPES = 256; // potenza di 2
 
     private class ValueDB {
 
@@ -32,15 +51,87 @@ public class VotesDB {
     }
 
 
-    private HashMap<String, ValueDB> votesDB;
+    private final ConcurrentHashMap<String, ValueDB> votesDB;
+    private final ConcurrentHashMap<String, Integer> databaseMI; // CF -> check
+    private final VotesLog log; // null se il database è solo in memoria
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final PasswordHasher hasher = PasswordHasher.defaults();
+    private final SecureRandom random = new SecureRandom();
+
+
+    public VotesDB(ConcurrentHashMap<String, Integer> databaseMI) {
+        this(databaseMI, null);
+    }
+
+
+    private VotesDB(ConcurrentHashMap<String, Integer> databaseMI, VotesLog log) {
+        votesDB = new ConcurrentHashMap<>();
+        this.databaseMI = databaseMI;
+        this.log = log;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+
+    private ReentrantLock stripe(String ID) {
+        int h = ID.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+
+    public static VotesDB open(ConcurrentHashMap<String, Integer> databaseMI, Path dir, long syncInterval, long snapshotBytes) throws IOException {
+        // database persistente nella cartella dir: viene ricostruito dall'ultimo snapshot e dal log successivo
+        // (si veda VotesLog per syncInterval e snapshotBytes), insieme ai campi check di databaseMI
+        VotesDB db = new VotesDB(databaseMI, new VotesLog(dir, syncInterval, snapshotBytes));
+        db.log.recover(new VotesLog.Replay() {
+            @Override
+            public void credential(String ID, String hashedPwd, String salt) {
+                db.votesDB.putIfAbsent(ID, db.new ValueDB(hashedPwd, salt));
+            }
+
+            @Override
+            public void vote(String ID, SignedVote sv) {
+                ValueDB value = db.votesDB.get(ID);
+                value.voteCT = sv.getVoteCT();
+                value.sign = sv.getSign();
+            }
+
+            @Override
+            public void check(String CF, int check) {
+                db.databaseMI.computeIfPresent(CF, (k, v) -> check);
+            }
+        }, db::dump);
+        return db;
+    }
 
 
-    public VotesDB() {
-        votesDB = new HashMap<>();
+    private void dump(VotesLog.Replay out) {
+        // contenuto di uno snapshot: i check diversi da 0, le credenziali di ogni ID e il suo ultimo voto, se ne ha uno
+        for (Map.Entry<String, Integer> e : databaseMI.entrySet()) {
+            if (e.getValue() != 0) {
+                out.check(e.getKey(), e.getValue());
+            }
+        }
+        for (Map.Entry<String, ValueDB> e : votesDB.entrySet()) {
+            ValueDB value = e.getValue();
+            out.credential(e.getKey(), value.hashedPwd, value.salt);
+            SignedVote sv = getSignedVote(e.getKey(), null);
+            if (sv.getVoteCT() != null || sv.getSign() != null) {
+                out.vote(e.getKey(), sv);
+            }
+        }
+    }
+
+
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
     }
 
 
-    public HashMap<String, ValueDB> getVotesDB() {
+    public ConcurrentHashMap<String, ValueDB> getVotesDB() {
         return votesDB;
     }
 
@@ -50,7 +141,7 @@ public class VotesDB {
     }
 
 
-    public boolean addCredential(Credential cred) throws NoSuchAlgorithmException {
+    public boolean addCredential(Credential cred) throws NoSuchAlgorithmException, IOException, InterruptedException {
         // Questo metodo prova ad inserire delle credenziali all'interno del database
         
         if (votesDB.containsKey(cred.getID())) { // se nel db c'è già lo stesso ID, allora non va bene e si ritorna false
@@ -58,22 +149,57 @@ public class VotesDB {
         }
 
         // PASSWORD HASHING
-        SecureRandom sc = new SecureRandom(); 
         byte[] salt = new byte[16]; // costruzione di un salt da 16 byte
-        sc.nextBytes(salt);
+        random.nextBytes(salt);
 
-        MessageDigest md = MessageDigest.getInstance("SHA-256"); // viene istanziato SHA256
-        md.update(salt); // aggiunta del salt
-        byte[] hashedPwd = md.digest(Utils.toByteArray(cred.getPwd())); // costruzione della password hashata SHA256(salt || pwd)
+        // PBKDF2(salt, pwd) sui thread dedicati di PasswordHasher: se sono tutti occupati e la coda è piena la registrazione
+        // viene rifiutata, invece di rallentare gli altri votanti
+        String hashedPwd;
+        try {
+            hashedPwd = hasher.hash(cred.getPwd(), salt);
+        } catch (RejectedExecutionException e) {
+            System.out.println("Password hashing busy ERROR");
+            return false;
+        }
 
-        // inserimento di ID, pwd hashata e salt all'interno del DB in corrispondenza dell'ID corretto
-        votesDB.put(cred.getID(), new ValueDB(Utils.toString(hashedPwd), Utils.toString(salt)));
+        // inserimento di ID, pwd hashata e salt all'interno del DB in corrispondenza dell'ID corretto.
+        // putIfAbsent: se nel frattempo un'altra registrazione ha inserito lo stesso ID, vince la prima
+        ValueDB value = new ValueDB(hashedPwd, Utils.toString(salt));
+        if (votesDB.putIfAbsent(cred.getID(), value) != null) {
+            return false;
+        }
+        if (log != null) {
+            log.commit(log.logCredential(cred.getID(), value.hashedPwd, value.salt)); // la registrazione è confermata solo quando è nel log
+        }
+        return true;
+    }
+
+
+    public boolean replaceCheck(String CF, int expected, int check) throws IOException {
+        // come databaseMI.replace(CF, expected, check), ma il nuovo check è confermato solo quando è nel log.
+        // Sotto il lock del CF: i cambi dello stesso CF finiscono nel log nell'ordine in cui sono stati applicati
+        long lsn = -1;
 
+        Lock lock = stripe(CF);
+        lock.lock();
+        try {
+            if (!databaseMI.replace(CF, expected, check)) {
+                return false;
+            }
+            if (log != null) {
+                lsn = log.logCheck(CF, check);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (log != null) {
+            log.commit(lsn);
+        }
         return true;
     }
 
 
-    public boolean checkCredential(Credential cred) throws NoSuchAlgorithmException {
+    public boolean checkCredential(Credential cred) throws NoSuchAlgorithmException, InterruptedException {
         // metodo usato per fare un check da parte di Splat sulle credenziali inviate dal votante
         
         ValueDB value = votesDB.get(cred.getID()); // si va a prendere il valore (pwd hashata, salt, ecc.) associato all'id
@@ -83,31 +209,63 @@ public class VotesDB {
         }
 
         // CHECK DELLA PASSWORD INVIATA DALL'UTENTE
-        MessageDigest md = MessageDigest.getInstance("SHA-256"); // si prende un'istanza di sha256
-        md.update(Utils.toByteArray(value.salt)); // viene preso il salt
-        byte[] hashedPwd = md.digest(Utils.toByteArray(cred.getPwd())); 
-        
-        // si calcola la password hashata e la si confronta con quella immessa dal votante
+        // si ricalcola la password hashata con il salt dell'ID e la si confronta (in tempo costante) con quella salvata:
         // se la password si trova, allora viene ritornato True, altrimenti viene ritornato False
-        return value.hashedPwd.equals(Utils.toString(hashedPwd));
+        try {
+            return hasher.verify(cred.getPwd(), Utils.toByteArray(value.salt), value.hashedPwd);
+        } catch (RejectedExecutionException e) {
+            System.out.println("Password hashing busy ERROR");
+            return false;
+        }
     }
 
 
     public SignedVote getSignedVote(String ID, SchnorrPK signedPK) {
         ValueDB value = votesDB.get(ID);
 
-        ElGamalCT voteCT = value.voteCT;
-        SchnorrSig sign = value.sign;
+        Lock lock = stripe(ID);
+        lock.lock(); // ciphertext e firma vanno letti insieme
+        try {
+            ElGamalCT voteCT = value.voteCT;
+            SchnorrSig sign = value.sign;
+
+            return new SignedVote(voteCT, sign, signedPK);
+        } finally {
+            lock.unlock();
+        }
+    }
+
 
-        return new SignedVote(voteCT, sign, signedPK);
+    public void setSignedVote(String ID, SignedVote sv) throws IOException {
+        compareAndSetSignedVote(ID, null, sv);
     }
 
 
-    public void setSignedVote(String ID, SignedVote sv) {
+    public boolean compareAndSetSignedVote(String ID, SignedVote expected, SignedVote sv) throws IOException {
+        // il voto di ID diventa sv solo se ciphertext e firma correnti sono quelli di expected (expected null: qualsiasi voto).
+        // Splat legge il vecchio voto, lo sostituisce in Sbal e poi salva il nuovo con questo metodo senza tenere lock sulla rete:
+        // se nel frattempo un altro voto dello stesso ID è stato registrato, il confronto fallisce e il voto più lento non lo sovrascrive
         ValueDB value = votesDB.get(ID);
+        long lsn = -1;
 
-        value.voteCT = sv.getVoteCT();
-        value.sign = sv.getSign();
+        Lock lock = stripe(ID);
+        lock.lock();
+        try {
+            if (expected != null && !(Objects.equals(value.voteCT, expected.getVoteCT()) && Objects.equals(value.sign, expected.getSign()))) {
+                return false;
+            }
+            value.voteCT = sv.getVoteCT();
+            value.sign = sv.getSign();
+            if (log != null) {
+                lsn = log.logVote(ID, sv); // sotto il lock: i voti dello stesso ID finiscono nel log nell'ordine in cui sono stati applicati
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (log != null) {
+            log.commit(lsn); // il voto è confermato solo quando è nel log
+        }
+        return true;
     }
 
 }
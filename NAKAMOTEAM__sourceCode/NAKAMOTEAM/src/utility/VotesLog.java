@@ -0,0 +1,538 @@
+package utility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class VotesLog {
+
+    // Write-ahead log of a VotesDB: every registration, every vote and every change of the check field
+    // of a CF (the credentials of that citizen have been issued, see VotesDB.replaceCheck) is appended
+    // as a record
+    //   length of the body (4 bytes) || CRC32 of the body (4 bytes) || type (1 byte) || payload
+    // to the current segment wal-N.log, and committed (see commit) before it is acknowledged. When
+    // the segments written since the last snapshot exceed snapshotBytes, a background thread switches
+    // to segment N+1 and writes the whole state of the database to snapshot-N.db (the same records,
+    // closed by an END record): then segments up to N are deleted. Recovery loads the newest snapshot
+    // and replays only the segments after it, so it takes time in the size of the delta, not in the
+    // length of the election.
+    // Replaying a record twice is harmless (a registration is put if absent, a vote or a check overwrites), which
+    // is what lets a snapshot be taken while the database keeps changing: the database applies a
+    // change before logging it, so a record in a segment up to N is already in snapshot-N.
+    // Durability is set by syncInterval:
+    //   0   group commit: commit returns when the record is on disk; one fsync covers every record
+    //       appended while the previous one was running
+    //   > 0 the log is fsynced every syncInterval ms by a background thread and commit does not wait:
+    //       a power failure may lose the last syncInterval ms, a crash of the process loses nothing
+    //   < 0 never fsynced, left to the operating system
+    // A torn record at the end of the last segment (a crash in the middle of a write) ends the replay.
+
+    /**
+     * Receives the records of the log, in order.
+     */
+    public interface Replay {
+
+        void credential(String ID, String hashedPwd, String salt);
+
+        void vote(String ID, SignedVote sv);
+
+        void check(String CF, int check);
+    }
+
+    private static final int CREDENTIAL = 1, VOTE = 2, END = 3, CHECK = 4;
+    private static final int MAX_RECORD = 1 << 20;
+    private static final String SEGMENT = "wal-", SNAPSHOT = "snapshot-", TMP = ".tmp";
+
+    private final Path dir;
+    private final long syncInterval;
+    private final long snapshotBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    private FileChannel channel;
+    private long segment; // number of the current segment
+    private long written, durable; // bytes appended since the log was opened, and how many of them are on disk
+    private boolean syncing, snapshotting, closed;
+    private long sinceSnapshot;
+    private Consumer<Replay> state; // the content of a snapshot
+    private final ScheduledExecutorService syncer;
+
+    public VotesLog(Path dir, long syncInterval, long snapshotBytes) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.syncInterval = syncInterval;
+        this.snapshotBytes = snapshotBytes;
+        if (syncInterval > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "votes-log-sync");
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Replays the newest snapshot and the segments after it, then opens a new segment for the
+     * following records; state gives the content of the next snapshots.
+     */
+    public void recover(Replay replay, Consumer<Replay> state) throws IOException {
+        long snapshot = newest(SNAPSHOT, ".db");
+        if (snapshot >= 0) {
+            Path p = dir.resolve(SNAPSHOT + snapshot + ".db");
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p)))) {
+                int type;
+                do {
+                    type = read(in, replay);
+                } while (type == CREDENTIAL || type == VOTE || type == CHECK);
+                if (type != END) {
+                    throw new IOException("incomplete snapshot " + p);
+                }
+            }
+        }
+        List<Long> segments = numbers(SEGMENT, ".log");
+        long last = snapshot;
+        for (int i = 0; i < segments.size(); i++) {
+            long n = segments.get(i);
+            Path p = dir.resolve(SEGMENT + n + ".log");
+            if (n <= snapshot) {
+                Files.delete(p); // already in the snapshot: its deletion had not finished
+                continue;
+            }
+            long good;
+            try (CountingInputStream count = new CountingInputStream(Files.newInputStream(p));
+                    DataInputStream in = new DataInputStream(count)) {
+                while (read(in, replay) >= 0) { // the segment ends at the first incomplete record
+                    count.commit();
+                }
+                good = count.good;
+            }
+            if (good < Files.size(p)) {
+                if (i < segments.size() - 1) {
+                    throw new IOException("corrupt record in " + p + " at " + good);
+                }
+                try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE)) {
+                    ch.truncate(good); // torn write of the crash
+                    ch.force(true);
+                }
+            }
+            last = n;
+        }
+        lock.lock();
+        try {
+            this.state = state;
+            open(last + 1);
+        } finally {
+            lock.unlock();
+        }
+        if (syncer != null) {
+            syncer.scheduleWithFixedDelay(this::syncAll, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Appends a registration and returns its position, to be passed to commit before acknowledging it.
+     */
+    public long logCredential(String ID, String hashedPwd, String salt) throws IOException {
+        return append(credentialRecord(ID, hashedPwd, salt));
+    }
+
+    /**
+     * Appends a vote and returns its position, to be passed to commit before acknowledging it. The
+     * write itself is quick, so the caller can hold the lock that orders the votes of an ID.
+     */
+    public long logVote(String ID, SignedVote sv) throws IOException {
+        return append(voteRecord(ID, sv));
+    }
+
+    /**
+     * Appends the new check field of CF and returns its position, to be passed to commit before going
+     * on; like logVote, it can be called under the lock that orders the changes of CF.
+     */
+    public long logCheck(String CF, int check) throws IOException {
+        return append(checkRecord(CF, check));
+    }
+
+    /**
+     * Returns when the records up to lsn are as durable as syncInterval says: with group commit,
+     * when they are on disk.
+     */
+    public void commit(long lsn) throws IOException {
+        if (syncInterval != 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            syncTo(lsn);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Syncs what was written and closes the log; a snapshot in progress is left to finish.
+     */
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            syncTo(written);
+            closed = true;
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long append(byte[] record) throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("log closed");
+            }
+            ByteBuffer b = ByteBuffer.wrap(record);
+            while (b.hasRemaining()) {
+                channel.write(b);
+            }
+            written += record.length;
+            sinceSnapshot += record.length;
+            if (state != null && !snapshotting && sinceSnapshot >= snapshotBytes) {
+                snapshotting = true;
+                Thread t = new Thread(this::snapshot, "votes-log-snapshot");
+                t.setDaemon(true);
+                t.start();
+            }
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns when the first lsn bytes are on disk; called with the lock held, which is released
+     * during the fsync so that the following writes can gather for the next one.
+     */
+    private void syncTo(long lsn) throws IOException {
+        while (durable < lsn) {
+            if (syncing) {
+                synced.awaitUninterruptibly();
+                continue;
+            }
+            syncing = true;
+            long target = written;
+            FileChannel ch = channel;
+            lock.unlock();
+            try {
+                ch.force(false);
+            } finally {
+                lock.lock();
+                syncing = false;
+                synced.signalAll();
+            }
+            durable = Math.max(durable, target);
+        }
+    }
+
+    private void syncAll() {
+        lock.lock();
+        try {
+            if (!closed) {
+                syncTo(written);
+            }
+        } catch (IOException e) {
+            System.out.println("Sync of the votes log ERROR");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switches to segment n: the previous one is synced and closed first. Called with the lock held.
+     */
+    private void open(long n) throws IOException {
+        if (channel != null) {
+            syncTo(written); // also waits for a running fsync on the old channel
+            channel.close();
+        }
+        channel = FileChannel.open(dir.resolve(SEGMENT + n + ".log"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segment = n;
+        sinceSnapshot = 0;
+    }
+
+    private void snapshot() {
+        long covered;
+        try {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                covered = segment;
+                open(covered + 1); // from now on the records go after the snapshot
+            } finally {
+                lock.unlock();
+            }
+            Path tmp = dir.resolve(SNAPSHOT + covered + TMP);
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16);
+                try {
+                    state.accept(new Replay() {
+                        @Override
+                        public void credential(String ID, String hashedPwd, String salt) {
+                            try {
+                                out.write(credentialRecord(ID, hashedPwd, salt));
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }
+
+                        @Override
+                        public void vote(String ID, SignedVote sv) {
+                            try {
+                                out.write(voteRecord(ID, sv));
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }
+
+                        @Override
+                        public void check(String CF, int check) {
+                            try {
+                                out.write(checkRecord(CF, check));
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                out.write(new RecordOutput(END).toByteArray());
+                out.flush();
+                ch.force(true);
+            }
+            Files.move(tmp, dir.resolve(SNAPSHOT + covered + ".db"), StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory();
+            for (long n : numbers(SEGMENT, ".log")) {
+                if (n <= covered) {
+                    Files.delete(dir.resolve(SEGMENT + n + ".log"));
+                }
+            }
+            for (long n : numbers(SNAPSHOT, ".db")) {
+                if (n < covered) {
+                    Files.delete(dir.resolve(SNAPSHOT + n + ".db"));
+                }
+            }
+            System.out.println("Snapshot of the votes log SUCCESS");
+        } catch (IOException e) {
+            System.out.println("Snapshot of the votes log ERROR"); // the segments stay: nothing is lost
+        } finally {
+            lock.lock();
+            try {
+                snapshotting = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void syncDirectory() {
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true); // makes the rename durable where the file system allows it
+        } catch (IOException e) {
+            // not supported on every platform
+        }
+    }
+
+    private static byte[] credentialRecord(String ID, String hashedPwd, String salt) throws IOException {
+        RecordOutput r = new RecordOutput(CREDENTIAL);
+        r.data.writeUTF(ID);
+        r.data.writeUTF(hashedPwd);
+        r.data.writeUTF(salt);
+        return r.toByteArray();
+    }
+
+    private static byte[] voteRecord(String ID, SignedVote sv) throws IOException {
+        RecordOutput r = new RecordOutput(VOTE);
+        r.data.writeUTF(ID);
+        WireOutputStream w = WireOutputStream.frames(r.data);
+        w.writeSignedVote(sv);
+        w.flush();
+        return r.toByteArray();
+    }
+
+    private static byte[] checkRecord(String CF, int check) throws IOException {
+        RecordOutput r = new RecordOutput(CHECK);
+        r.data.writeUTF(CF);
+        r.data.writeInt(check);
+        return r.toByteArray();
+    }
+
+    /**
+     * Reads the next record and hands it to replay; returns its type, or -1 at the end of the
+     * stream or at an incomplete or damaged record.
+     */
+    private static int read(DataInputStream in, Replay replay) throws IOException {
+        byte[] body;
+        int crc;
+        try {
+            int length = in.readInt();
+            if (length < 1 || length > MAX_RECORD) {
+                return -1;
+            }
+            crc = in.readInt();
+            body = new byte[length];
+            in.readFully(body);
+        } catch (EOFException e) {
+            return -1;
+        }
+        CRC32 check = new CRC32();
+        check.update(body, 0, body.length);
+        if ((int) check.getValue() != crc) {
+            return -1;
+        }
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(body, 1, body.length - 1));
+        switch (body[0]) {
+            case CREDENTIAL:
+                replay.credential(data.readUTF(), data.readUTF(), data.readUTF());
+                break;
+            case VOTE:
+                String ID = data.readUTF();
+                byte[] frames = new byte[data.available()];
+                data.readFully(frames);
+                replay.vote(ID, WireInputStream.fromFrames(frames).readSignedVote());
+                break;
+            case CHECK:
+                replay.check(data.readUTF(), data.readInt());
+                break;
+            case END:
+                break;
+            default:
+                throw new IOException("unknown record " + body[0]);
+        }
+        return body[0];
+    }
+
+    private long newest(String prefix, String suffix) throws IOException {
+        List<Long> n = numbers(prefix, suffix);
+        return n.isEmpty() ? -1 : n.get(n.size() - 1);
+    }
+
+    private List<Long> numbers(String prefix, String suffix) throws IOException {
+        List<Long> n = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                try {
+                    n.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(n);
+        return n;
+    }
+
+    /**
+     * The body of a record being built: type then payload, framed with length and CRC by toByteArray.
+     */
+    private static final class RecordOutput {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        final DataOutputStream data = new DataOutputStream(bytes);
+
+        RecordOutput(int type) {
+            bytes.write(type);
+        }
+
+        byte[] toByteArray() throws IOException {
+            data.flush();
+            byte[] body = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, body.length);
+            ByteBuffer record = ByteBuffer.allocate(8 + body.length);
+            record.putInt(body.length).putInt((int) crc.getValue()).put(body);
+            return record.array();
+        }
+    }
+
+    /**
+     * Counts the bytes read, and remembers how many of them made complete records.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        long count, good;
+
+        CountingInputStream(InputStream in) {
+            super(new BufferedInputStream(in));
+        }
+
+        void commit() {
+            good = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long s = super.skip(n);
+            count += s;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package utility;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class WireInputStream extends DataInputStream {
+
+    // Reads what WireOutputStream writes (see there for the format). The constructor blocks
+    // until the header of the peer arrives, as ObjectInputStream does. Nothing is instantiated
+    // but the expected types: a frame of another type, a frame longer than the limit of its type
+    // or a payload with missing or trailing bytes is rejected with an IOException, before the
+    // payload is allocated. Only the lists of votes exchanged between the servers (VOTE_BATCH,
+    // BATCH_STATUS, BALLOTS) may take up to MAX_FRAME; a single object, e.g. what a voter sends,
+    // at most MAX_OBJECT.
+    // A SignedVote may only carry a key in the built-in Schnorr group (SCHNORR_DEFAULTS): votes come
+    // from voters, who could otherwise make the servers hash and exponentiate in any group they like.
+    // The explicit parameters of a SignedShare are validated by SchnorrParameters.of, up to
+    // MAX_SCHNORR_BITS bits.
+
+    static final int MAX_FRAME = 64 << 20;
+    static final int MAX_OBJECT = 16 << 10;
+    static final int MAX_SCHNORR_BITS = 4096;
+
+    public WireInputStream(InputStream in) throws IOException {
+        super(new BufferedInputStream(in));
+        int magic = readUnsignedShort();
+        int version = readUnsignedByte();
+        if (magic != WireOutputStream.MAGIC) {
+            throw new IOException("not a wire stream");
+        }
+        if (version != WireOutputStream.VERSION) {
+            throw new IOException("unsupported wire version " + version);
+        }
+    }
+
+    private WireInputStream(byte[] frames) {
+        super(new ByteArrayInputStream(frames));
+    }
+
+    /**
+     * Reads frames already received in full (without the header), e.g. by a non-blocking server.
+     */
+    public static WireInputStream fromFrames(byte[] frames) {
+        return new WireInputStream(frames);
+    }
+
+    /**
+     * The length of the next n frames in buf (ready to be read), or -1 if they have not all arrived
+     * yet; buf is left untouched.
+     */
+    public static int framesLength(ByteBuffer buf, int n) throws IOException {
+        int off = buf.position();
+        for (int i = 0; i < n; i++) {
+            if (buf.limit() - off < 5) {
+                return -1;
+            }
+            int len = buf.getInt(off + 1);
+            if (len < 0 || len > maxLength(buf.get(off) & 0xFF)) {
+                throw new IOException("invalid frame length " + len);
+            }
+            if (buf.limit() - off - 5 < len) {
+                return -1;
+            }
+            off += 5 + len;
+        }
+        return off - buf.position();
+    }
+
+    public SignedVote readSignedVote() throws IOException {
+        DataInputStream body = readFrame(WireOutputStream.SIGNED_VOTE);
+        if (body == null) {
+            return null;
+        }
+        SignedVote sv = getSignedVote(body);
+        endFrame(body);
+        return sv;
+    }
+
+    public VoteBatch readVoteBatch() throws IOException {
+        DataInputStream body = readFrame(WireOutputStream.VOTE_BATCH);
+        if (body == null) {
+            return null;
+        }
+        int n = body.readInt();
+        if (n < 0 || n > body.available() / 4) { // every vote takes at least the pseudonym length, its flags and the byte of the old one
+            throw new IOException("invalid number of votes " + n);
+        }
+        VoteBatch batch = new VoteBatch();
+        for (int i = 0; i < n; i++) {
+            String pseudonym = body.readUTF();
+            SignedVote sv = getSignedVote(body);
+            int hasOld = body.readUnsignedByte();
+            if (hasOld > 1) {
+                throw new IOException("invalid batch entry");
+            }
+            batch.add(pseudonym.isEmpty() ? null : pseudonym, sv, hasOld == 1 ? getSignedVote(body) : null);
+        }
+        endFrame(body);
+        return batch;
+    }
+
+    public boolean[] readBatchStatus() throws IOException {
+        DataInputStream body = readFrame(WireOutputStream.BATCH_STATUS);
+        if (body == null) {
+            return null;
+        }
+        int n = body.readInt();
+        if (n < 0 || n != body.available()) {
+            throw new IOException("invalid batch status");
+        }
+        boolean[] status = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            status[i] = body.readUnsignedByte() != 0;
+        }
+        endFrame(body);
+        return status;
+    }
+
+    public ElGamalPK readElGamalPK() throws IOException {
+        DataInputStream body = readFrame(WireOutputStream.ELGAMAL_PK);
+        if (body == null) {
+            return null;
+        }
+        ElGamalPK PK = getElGamalPK(body);
+        endFrame(body);
+        return PK;
+    }
+
+    public SignedShare readSignedShare() throws IOException {
+        DataInputStream body = readFrame(WireOutputStream.SIGNED_SHARE);
+        if (body == null) {
+            return null;
+        }
+        BigInteger s = getInteger(body);
+        ElGamalSK SK = new ElGamalSK(s, getElGamalPK(body));
+        SchnorrSig sig = getSig(body);
+        SchnorrPK PK = getSchnorrPK(body, true);
+        endFrame(body);
+        return new SignedShare(SK, sig, PK);
+    }
+
+    public Credential readCredential() throws IOException {
+        DataInputStream body = readFrame(WireOutputStream.CREDENTIAL);
+        if (body == null) {
+            return null;
+        }
+        Credential cred = new Credential(body.readUTF(), body.readUTF());
+        endFrame(body);
+        return cred;
+    }
+
+    public ElGamalCT readCT() throws IOException {
+        DataInputStream body = readFrame(WireOutputStream.ELGAMAL_CT);
+        if (body == null) {
+            return null;
+        }
+        ElGamalCT CT = getCT(body);
+        endFrame(body);
+        return CT;
+    }
+
+    public HashMap<ElGamalCT, SchnorrSig> readBallots() throws IOException {
+        DataInputStream body = readFrame(WireOutputStream.BALLOTS);
+        if (body == null) {
+            return null;
+        }
+        int n = body.readInt();
+        if (n < 0 || n > body.available() / 10) { // every pair takes at least 5 lengths of 2 bytes
+            throw new IOException("invalid number of ballots " + n);
+        }
+        HashMap<ElGamalCT, SchnorrSig> ballots = new HashMap<>(2 * n);
+        for (int i = 0; i < n; i++) {
+            ElGamalCT CT = getCT(body);
+            ballots.put(CT, getSig(body));
+        }
+        endFrame(body);
+        return ballots;
+    }
+
+    static int maxLength(int type) { // the longest payload a frame of this type may have
+        switch (type) {
+            case WireOutputStream.NULL:
+                return 0;
+            case WireOutputStream.VOTE_BATCH:
+            case WireOutputStream.BATCH_STATUS:
+            case WireOutputStream.BALLOTS:
+                return MAX_FRAME;
+            default:
+                return MAX_OBJECT;
+        }
+    }
+
+    private DataInputStream readFrame(int expected) throws IOException {
+        int type = readUnsignedByte();
+        if (type != expected && type != WireOutputStream.NULL) {
+            throw new IOException("expected frame type " + expected + ", received " + type);
+        }
+        int len = readInt();
+        if (len < 0 || len > maxLength(type)) {
+            throw new IOException("invalid frame length " + len);
+        }
+        byte[] payload = new byte[len];
+        readFully(payload);
+        if (type == WireOutputStream.NULL) {
+            return null;
+        }
+        return new DataInputStream(new ByteArrayInputStream(payload));
+    }
+
+    private static void endFrame(DataInputStream body) throws IOException {
+        if (body.available() != 0) {
+            throw new IOException("trailing bytes in frame");
+        }
+    }
+
+    private static BigInteger getInteger(DataInputStream body) throws IOException {
+        byte[] be = new byte[body.readUnsignedShort()];
+        body.readFully(be);
+        return new BigInteger(1, be);
+    }
+
+    private static SignedVote getSignedVote(DataInputStream body) throws IOException {
+        int flags = body.readUnsignedByte();
+        ElGamalCT CT = (flags & WireOutputStream.HAS_CT) != 0 ? getCT(body) : null;
+        SchnorrSig sig = (flags & WireOutputStream.HAS_SIG) != 0 ? getSig(body) : null;
+        SchnorrPK PK = (flags & WireOutputStream.HAS_PK) != 0 ? getSchnorrPK(body, false) : null;
+        return new SignedVote(CT, sig, PK);
+    }
+
+    private static ElGamalCT getCT(DataInputStream body) throws IOException {
+        BigInteger C = getInteger(body);
+        return new ElGamalCT(C, getInteger(body));
+    }
+
+    private static SchnorrSig getSig(DataInputStream body) throws IOException {
+        BigInteger a = getInteger(body);
+        BigInteger e = getInteger(body);
+        return new SchnorrSig(a, e, getInteger(body));
+    }
+
+    private static ElGamalPK getElGamalPK(DataInputStream body) throws IOException {
+        int tag = body.readUnsignedByte();
+        if (tag == WireOutputStream.GROUP_MODP) {
+            BigInteger p = getInteger(body);
+            BigInteger q = getInteger(body);
+            BigInteger g = getInteger(body);
+            BigInteger h = getInteger(body);
+            return new ElGamalPK(p, q, g, h, body.readInt());
+        }
+        if (tag == WireOutputStream.GROUP_P256) {
+            BigInteger h = getInteger(body);
+            return new ElGamalPK(P256Group.INSTANCE, h, body.readInt());
+        }
+        throw new IOException("unknown group " + tag);
+    }
+
+    private static SchnorrPK getSchnorrPK(DataInputStream body, boolean explicit) throws IOException {
+        int tag = body.readUnsignedByte();
+        if (tag == WireOutputStream.SCHNORR_DEFAULTS) {
+            SchnorrParameters d = SchnorrParameters.defaults();
+            return new SchnorrPK(d.p, d.q, d.g, getInteger(body), d.securityparameter);
+        }
+        if (tag == WireOutputStream.SCHNORR_EXPLICIT && explicit) {
+            BigInteger p = getInteger(body);
+            BigInteger q = getInteger(body);
+            BigInteger g = getInteger(body);
+            int securityparameter = body.readInt();
+            if (p.bitLength() > MAX_SCHNORR_BITS) {
+                throw new IOException("Schnorr modulus of " + p.bitLength() + " bits");
+            }
+            SchnorrParameters sp;
+            try {
+                sp = SchnorrParameters.of(p, q, g);
+            } catch (IllegalArgumentException | ArithmeticException e) {
+                throw new IOException("invalid Schnorr parameters", e);
+            }
+            return new SchnorrPK(sp.p, sp.q, sp.g, getInteger(body), securityparameter);
+        }
+        throw new IOException("unexpected Schnorr parameters " + tag);
+    }
+}
@@ -0,0 +1,285 @@
+package utility;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.Map;
+
+/**
+ *
+ * @author Nakamoteam
+ */
+public class WireOutputStream extends DataOutputStream {
+
+    // Binary protocol spoken between the servers, in place of Java serialization.
+    // A connection starts with MAGIC and VERSION, written (and flushed) by the constructor, as
+    // ObjectOutputStream does with its own header. Every object is then sent as a frame:
+    //   type (1 byte) || length of the payload (4 bytes) || payload
+    // A null object is a NULL frame with an empty payload. Inside the payload an integer is
+    // its length (2 bytes) followed by its unsigned big-endian magnitude, optional fields
+    // are announced by a flags byte and strings use writeUTF.
+    // Strings, ints and booleans outside of frames (the requests and the acks) are written
+    // as before with the methods of DataOutputStream.
+
+    public static final int MAGIC = 0x4E4B; // "NK"
+    public static final int VERSION = 2; // 2: pseudonyms in VOTE_BATCH
+
+    public static final int NULL = 0;
+    public static final int SIGNED_VOTE = 1;
+    public static final int ELGAMAL_PK = 2;
+    public static final int SIGNED_SHARE = 3;
+    public static final int CREDENTIAL = 4;
+    public static final int ELGAMAL_CT = 5;
+    public static final int BALLOTS = 6;
+    public static final int VOTE_BATCH = 7;
+    public static final int BATCH_STATUS = 8;
+
+    // tags of the group of an ElGamalPK
+    static final int GROUP_MODP = 1;
+    static final int GROUP_P256 = 2;
+
+    // tags of the parameters of a SchnorrPK
+    static final int SCHNORR_EXPLICIT = 0;
+    static final int SCHNORR_DEFAULTS = 1; // the built-in group: only h is sent
+
+    // flags of a SignedVote
+    static final int HAS_CT = 1, HAS_SIG = 2, HAS_PK = 4;
+
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream(256);
+    private final DataOutputStream body = new DataOutputStream(frame);
+
+    public WireOutputStream(OutputStream out) throws IOException {
+        super(new BufferedOutputStream(out));
+        writeShort(MAGIC);
+        writeByte(VERSION);
+        flush();
+    }
+
+    private WireOutputStream(OutputStream out, boolean header) {
+        super(new BufferedOutputStream(out));
+    }
+
+    /**
+     * Writes frames only (no header), e.g. for the answers of a non-blocking server.
+     */
+    public static WireOutputStream frames(OutputStream out) {
+        return new WireOutputStream(out, false);
+    }
+
+    public void writeSignedVote(SignedVote sv) throws IOException {
+        if (sv == null) {
+            writeNull();
+            return;
+        }
+        putSignedVote(sv);
+        endFrame(SIGNED_VOTE);
+    }
+
+    /**
+     * The votes of a batch: their number followed, for each of them, by the pseudonym of the voter
+     * (empty if unknown), the new vote and the old one if there is one (announced by a byte 1, otherwise 0).
+     */
+    public void writeVoteBatch(VoteBatch batch) throws IOException {
+        body.writeInt(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            body.writeUTF(batch.getPseudonym(i) == null ? "" : batch.getPseudonym(i));
+            putSignedVote(batch.getNewVote(i));
+            SignedVote old = batch.getOldVote(i);
+            body.writeByte(old != null ? 1 : 0);
+            if (old != null) {
+                putSignedVote(old);
+            }
+        }
+        endFrame(VOTE_BATCH);
+    }
+
+    /**
+     * The answer to a batch: one byte per vote, in the same order, 1 if the vote was registered.
+     */
+    public void writeBatchStatus(boolean[] status) throws IOException {
+        body.writeInt(status.length);
+        for (boolean ok : status) {
+            body.writeByte(ok ? 1 : 0);
+        }
+        endFrame(BATCH_STATUS);
+    }
+
+    private void putSignedVote(SignedVote sv) throws IOException {
+        int flags = (sv.getVoteCT() != null ? HAS_CT : 0) | (sv.getSign() != null ? HAS_SIG : 0)
+                | (sv.getSignedPK() != null ? HAS_PK : 0);
+        body.writeByte(flags);
+        if (sv.getVoteCT() != null) {
+            putCT(sv.getVoteCT());
+        }
+        if (sv.getSign() != null) {
+            putSig(sv.getSign());
+        }
+        if (sv.getSignedPK() != null) {
+            putSchnorrPK(sv.getSignedPK());
+        }
+    }
+
+    public void writeElGamalPK(ElGamalPK PK) throws IOException {
+        if (PK == null) {
+            writeNull();
+            return;
+        }
+        putElGamalPK(PK);
+        endFrame(ELGAMAL_PK);
+    }
+
+    public void writeSignedShare(SignedShare share) throws IOException {
+        if (share == null) {
+            writeNull();
+            return;
+        }
+        putInteger(share.getShareSK().s);
+        putElGamalPK(share.getShareSK().PK);
+        putSig(share.getSign());
+        putSchnorrPK(share.getSignedPK());
+        endFrame(SIGNED_SHARE);
+    }
+
+    public void writeCredential(Credential cred) throws IOException {
+        if (cred == null) {
+            writeNull();
+            return;
+        }
+        body.writeUTF(cred.getID());
+        body.writeUTF(cred.getPwd());
+        endFrame(CREDENTIAL);
+    }
+
+    public void writeCT(ElGamalCT CT) throws IOException {
+        if (CT == null) {
+            writeNull();
+            return;
+        }
+        putCT(CT);
+        endFrame(ELGAMAL_CT);
+    }
+
+    /**
+     * The pairs ciphertext-signature of a Sbal: their number followed by the pairs.
+     */
+    public void writeBallots(Map<ElGamalCT, SchnorrSig> ballots) throws IOException {
+        body.writeInt(ballots.size());
+        for (Map.Entry<ElGamalCT, SchnorrSig> e : ballots.entrySet()) {
+            putCT(e.getKey());
+            putSig(e.getValue());
+        }
+        endFrame(BALLOTS);
+    }
+
+    /**
+     * As writeBallots(Map), from the store of a Sbal.
+     */
+    public void writeBallots(BallotStore ballots) throws IOException {
+        body.writeInt(ballots.size());
+        try {
+            ballots.writePairs(body);
+        } catch (IOException e) {
+            frame.reset();
+            throw e;
+        }
+        endFrame(BALLOTS);
+    }
+
+    private void writeNull() throws IOException {
+        endFrame(NULL);
+    }
+
+    private void endFrame(int type) throws IOException {
+        if (frame.size() > WireInputStream.maxLength(type)) {
+            frame.reset();
+            throw new IOException("frame too large");
+        }
+        writeByte(type);
+        writeInt(frame.size());
+        frame.writeTo(this);
+        frame.reset();
+    }
+
+    private void putInteger(BigInteger x) throws IOException {
+        putInteger(body, x);
+    }
+
+    static void putInteger(DataOutput out, BigInteger x) throws IOException {
+        if (x.signum() < 0) {
+            throw new IOException("negative integer");
+        }
+        byte[] be = x.toByteArray();
+        putUnsigned(out, be, 0, be.length);
+    }
+
+    /**
+     * An integer given as len big-endian unsigned bytes at be[off], e.g. a fixed-width field of a
+     * record: the leading zeros are dropped, as BigInteger.toByteArray would (zero is one byte 0).
+     */
+    static void putUnsigned(DataOutput out, byte[] be, int off, int len) throws IOException {
+        int skip = 0;
+        while (skip < len - 1 && be[off + skip] == 0) {
+            skip++;
+        }
+        if (len - skip > 0xFFFF) {
+            throw new IOException("integer too large");
+        }
+        out.writeShort(len - skip);
+        out.write(be, off + skip, len - skip);
+    }
+
+    /**
+     * One pair of the BALLOTS frame (see writeBallots).
+     */
+    static void putPair(DataOutput out, ElGamalCT CT, SchnorrSig sig) throws IOException {
+        putInteger(out, CT.C);
+        putInteger(out, CT.C2);
+        putInteger(out, sig.a);
+        putInteger(out, sig.e);
+        putInteger(out, sig.z);
+    }
+
+    private void putCT(ElGamalCT CT) throws IOException {
+        putInteger(CT.C);
+        putInteger(CT.C2);
+    }
+
+    private void putSig(SchnorrSig sig) throws IOException {
+        putInteger(sig.a);
+        putInteger(sig.e);
+        putInteger(sig.z);
+    }
+
+    private void putElGamalPK(ElGamalPK PK) throws IOException {
+        if (PK.group instanceof ModPGroup) {
+            body.writeByte(GROUP_MODP);
+            putInteger(PK.p);
+            putInteger(PK.q);
+            putInteger(PK.g);
+        } else if (PK.group instanceof P256Group) {
+            body.writeByte(GROUP_P256);
+        } else {
+            throw new IOException("unsupported group " + PK.group.getClass().getName());
+        }
+        putInteger(PK.h);
+        body.writeInt(PK.securityparameter);
+    }
+
+    private void putSchnorrPK(SchnorrPK PK) throws IOException {
+        SchnorrParameters d = SchnorrParameters.defaults();
+        if (d.p.equals(PK.p) && d.q.equals(PK.q) && d.g.equals(PK.g) && d.securityparameter == PK.securityparameter) {
+            body.writeByte(SCHNORR_DEFAULTS);
+        } else {
+            body.writeByte(SCHNORR_EXPLICIT);
+            putInteger(PK.p);
+            putInteger(PK.q);
+            putInteger(PK.g);
+            body.writeInt(PK.securityparameter);
+        }
+        putInteger(PK.h);
+    }
+}